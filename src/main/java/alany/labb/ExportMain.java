@@ -0,0 +1,37 @@
+package alany.labb;
+
+import alany.labb.model.BooksDb;
+import alany.labb.model.BooksDbException;
+import alany.labb.model.ExportFormat;
+
+import java.nio.file.Path;
+
+/**
+ * Headless entry point for catalogue exports. Streams the tables straight
+ * from the database, without loading the catalogue into memory.
+ * Usage: ExportMain directory CSV|JSON_LINES|COLUMNAR [url user password]
+ * The connection defaults to the one used by Main.
+ */
+public class ExportMain {
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 5) {
+            System.err.println("Usage: ExportMain directory CSV|JSON_LINES|COLUMNAR [url user password]");
+            System.exit(2);
+        }
+        Path directory = Path.of(args[0]);
+        ExportFormat format = ExportFormat.valueOf(args[1]);
+        BooksDb booksDb = args.length == 5
+                ? new BooksDb(args[2], args[3], args[4])
+                : new BooksDb(Main.URL, Main.USER, Main.PASSWORD);
+        try {
+            long start = System.nanoTime();
+            long rows = booksDb.exportFromDatabase(directory, format);
+            System.out.println("Exported " + rows + " rows to " + directory + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (BooksDbException e) {
+            System.err.println(e.getMessage() + (e.getCause() != null ? ": " + e.getCause() : ""));
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package alany.labb;
+
+import alany.labb.model.BooksDb;
+import alany.labb.model.BooksDbException;
+import alany.labb.model.ImportStats;
+
+import java.nio.file.Path;
+
+/**
+ * Headless entry point for bulk imports, without the JavaFX client.
+ * Usage: ImportMain file [url user password]
+ * The connection defaults to the one used by Main. Re-running a failed
+ * import of the same file resumes from its checkpoint.
+ */
+public class ImportMain {
+
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 4) {
+            System.err.println("Usage: ImportMain file [url user password]");
+            System.exit(2);
+        }
+        Path file = Path.of(args[0]);
+        BooksDb booksDb = args.length == 4
+                ? new BooksDb(args[1], args[2], args[3])
+                : new BooksDb(Main.URL, Main.USER, Main.PASSWORD);
+        try {
+            booksDb.connect();
+            ImportStats stats = booksDb.importCatalogue(file, progress -> System.out.println(progress));
+            if (stats.getResumedFrom() > 0) {
+                System.out.println("Resumed after " + stats.getResumedFrom() + " records");
+            }
+            System.out.println("Done: " + stats);
+            booksDb.disconnect();
+        } catch (BooksDbException e) {
+            System.err.println(e.getMessage() + (e.getCause() != null ? ": " + e.getCause() : ""));
+            System.exit(1);
+        }
+    }
+}
@@ -2,21 +2,51 @@ package alany.labb;
 
 import alany.labb.model.BooksDb;
 import alany.labb.model.BooksDbException;
+import alany.labb.model.ConnectionRouter;
+import alany.labb.model.EmbeddedBooksDb;
+import alany.labb.model.IBooksDb;
+import alany.labb.model.QueryTracer;
+import alany.labb.model.RemoteBooksDb;
 import alany.labb.view.BooksPane;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main extends Application {
+    private static final System.Logger LOG = System.getLogger(Main.class.getName());
+
+    static final String URL = "jdbc:mysql://localhost:3306/lab1";
+    static final String USER = "alan";
+    static final String PASSWORD = "Databas1";
 
     @Override
     public void start(Stage primaryStage) {
 
-        String url = "jdbc:mysql://localhost:3306/lab1";
-        String user = "alan";
-        String password = "Databas1";
-
-        BooksDb booksDb = new BooksDb(url, user, password); // model
+        // -Dbooks.server=<uri> uses the catalogue of a ServerMain instead of a database of its own
+        String server = System.getProperty("books.server");
+        // -Dbooks.user=<name> sets whose ratings are recorded, by default the login name
+        String user = System.getProperty("books.user", System.getProperty("user.name", "anonymous"));
+        IBooksDb booksDb; // model
+        // -Dbooks.store=<dir> keeps the catalogue in files of its own instead of a database
+        String store = System.getProperty("books.store");
+        if (server != null) {
+            booksDb = new RemoteBooksDb(URI.create(server), user);
+        } else if (store != null) {
+            EmbeddedBooksDb embedded = new EmbeddedBooksDb(Path.of(store));
+            // -Dbooks.store.syncMs=<ms> sets how often changes are forced to the disk, 0 for every change
+            embedded.setSyncInterval(Long.getLong("books.store.syncMs", 1000));
+            embedded.setUser(user);
+            booksDb = embedded;
+        } else {
+            BooksDb local = createBooksDb();
+            local.setUser(user);
+            booksDb = local;
+        }
         try {
             if (!booksDb.connect()){
                 System.out.println("No connection");
@@ -38,6 +68,30 @@ public class Main extends Application {
         primaryStage.show();
     }
 
+    /**
+     * The model for the database at URL, configured by system properties.
+     */
+    static BooksDb createBooksDb() {
+        // -Dbooks.replicas=<url>,<url> routes reads to read replicas of the database at URL
+        String replicas = System.getProperty("books.replicas", "");
+        ConnectionRouter router = new ConnectionRouter(URL,
+                replicas.isBlank() ? List.of() : Arrays.asList(replicas.split(",")), USER, PASSWORD);
+        BooksDb booksDb = new BooksDb(router);
+        // -Dbooks.trace.slowMs=<ms> enables JDBC tracing with the given slow-query threshold
+        String slowMs = System.getProperty("books.trace.slowMs");
+        if (slowMs != null) {
+            try {
+                booksDb.setQueryTracer(new QueryTracer(Long.parseLong(slowMs.trim())));
+            } catch (NumberFormatException e) {
+                LOG.log(System.Logger.Level.WARNING,
+                        "Ignoring books.trace.slowMs=" + slowMs + ", not a number of milliseconds; tracing is off");
+            }
+        }
+        // -Dbooks.poll.ms=<ms> sets how often changes are exchanged with other clients
+        booksDb.setPollInterval(Long.getLong("books.poll.ms", 2000));
+        return booksDb;
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -0,0 +1,58 @@
+package alany.labb;
+
+import alany.labb.model.BooksDb;
+import alany.labb.model.BooksDbException;
+import alany.labb.model.CatalogueServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+/**
+ * Headless entry point that serves one in-memory catalogue to many clients.
+ * Usage: ServerMain [port [bind address]]
+ * The port defaults to 8090 and the address to loopback. The server has no
+ * authentication, so only bind it to another address, e.g. 0.0.0.0, on a
+ * network whose hosts may all change the catalogue. Import and export are
+ * off unless -Dbooks.server.files=dir names the directory their paths are
+ * resolved in. The database and its options are the same as for Main.
+ * Start clients with -Dbooks.server=http://host:port
+ */
+public class ServerMain {
+
+    private static final System.Logger LOG = System.getLogger(ServerMain.class.getName());
+
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.err.println("Usage: ServerMain [port [bind address]]");
+            System.exit(2);
+        }
+        int port = args.length >= 1 ? Integer.parseInt(args[0]) : 8090;
+        String files = System.getProperty("books.server.files");
+        BooksDb booksDb = Main.createBooksDb();
+        try {
+            InetAddress bind = args.length == 2 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+            if (!bind.isLoopbackAddress()) {
+                LOG.log(System.Logger.Level.WARNING, "Serving without authentication on " + bind.getHostAddress()
+                        + "; anyone who can reach it may change the catalogue");
+            }
+            booksDb.connect();
+            CatalogueServer server = new CatalogueServer(booksDb, new InetSocketAddress(bind, port),
+                    files == null ? null : Path.of(files));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    booksDb.disconnect();
+                } catch (BooksDbException e) {
+                    System.err.println(e.getMessage());
+                }
+            }));
+            server.start();
+            System.out.println("Serving the catalogue on " + server.getAddress());
+        } catch (BooksDbException | IOException e) {
+            System.err.println(e.getMessage() + (e.getCause() != null ? ": " + e.getCause() : ""));
+            System.exit(1);
+        }
+    }
+}
@@ -35,17 +35,35 @@ public class Author {
         return birthDay;
     }
 
-    public List<Book> getBooks() {
+    public synchronized List<Book> getBooks() {
         return new ArrayList<>(books);
     }
 
-    public void addBook(Book book){
+    synchronized int bookCount() {
+        return books.size();
+    }
+
+    /**
+     * Add a book to an author outside a BooksDb, scanning the books for a
+     * duplicate; see Book.addAuthor, as only BooksDb relates its own.
+     *
+     * @return false if the book was already one of the author's
+     */
+    public synchronized boolean addBook(Book book){
         for (Book b: books){
             if (b.getBookId() == book.getBookId()){
-                return;
+                return false;
             }
         }
         books.add(book);
+        return true;
+    }
+
+    /**
+     * addBook for a caller that knows the book is not one of the author's.
+     */
+    synchronized void linkBook(Book book) {
+        books.add(book);
     }
 
     @Override
@@ -0,0 +1,686 @@
+package alany.labb.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Completions of search prefixes: book titles, ISBNs, and author names
+ * both as "first last" and from the last name, ranked by weight.
+ *
+ * The keys are held in a compressed prefix trie (a PATRICIA trie) in
+ * parallel arrays. A node is only made where keys branch, and the text of
+ * an edge is not copied but read from a key below it, so the trie costs a
+ * few ints per key on top of the titles and names the model already holds,
+ * and a reference to the key's book or author, for pickers; see books.
+ * Only the first char of each edge is kept, so picking a child does not
+ * touch the strings. Keys are compared ignoring case, a char at a time.
+ * Leaves are the keys themselves: a child ref below zero is ~key.
+ *
+ * Each node with more than TOP keys below it keeps a list of the TOP best
+ * of them with different texts, so a lookup walks down the prefix and
+ * copies one list. A smaller subtree is walked instead, which visits at
+ * most TOP keys. Lookups allocate nothing; they fill the caller's
+ * suggestions.
+ *
+ * Keys are added as books and authors are added, and a key's weight is
+ * changed in place, fixing the lists on its path. Nothing is removed.
+ * Lookups share a read lock, so they run concurrently.
+ */
+class AutocompleteIndex {
+    static final int TOP = 8;
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final int END = -1; // the label of a key that ends at its parent
+    private static final int POPULARITY = 100; // weight per doubling of ratings or books
+    private static final int AUTHOR_RATING = 300; // authors weigh as an average book
+    private static final SearchMode[] MODES = SearchMode.values();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // keys: text is matched from start on; title and ISBN keys start at 0
+    private String[] keyText;
+    private int[] keyStart;
+    private byte[] keyMode;
+    private int[] keyHash; // of the text, to tell keys that are suggested alike
+    private int[] keyWeight;
+    private int[] keyLabel; // the first char of the edge to the key
+    private int[] keyNext; // the next child of the same node
+    private Object[] keyOwner; // the book or author
+    private int keys;
+
+    // nodes: the root is 0; ref is a key whose text spells the path to the node
+    private int[] nodeDepth;
+    private int[] nodeRef;
+    private int[] nodeLabel;
+    private int[] nodeChild; // the first child
+    private int[] nodeNext;
+    private int[] nodeCount; // keys below
+    private int[][] nodeTop; // see rebuildTop, if more than TOP keys are below
+    private int nodes;
+
+    // scratch for writers, under the write lock
+    private int[] path = new int[64];
+    private final int[] best = new int[TOP];
+    private int bestSize;
+
+    /**
+     * @param expectedKeys about how many keys will be added
+     */
+    AutocompleteIndex(int expectedKeys) {
+        int capacity = Math.max(16, expectedKeys);
+        keyText = new String[capacity];
+        keyStart = new int[capacity];
+        keyMode = new byte[capacity];
+        keyHash = new int[capacity];
+        keyWeight = new int[capacity];
+        keyLabel = new int[capacity];
+        keyNext = new int[capacity];
+        keyOwner = new Object[capacity];
+        nodeDepth = new int[capacity / 2];
+        nodeRef = new int[capacity / 2];
+        nodeLabel = new int[capacity / 2];
+        nodeChild = new int[capacity / 2];
+        nodeNext = new int[capacity / 2];
+        nodeCount = new int[capacity / 2];
+        nodeTop = new int[capacity / 2][];
+        nodeChild[0] = NONE;
+        nodeNext[0] = NONE;
+        nodes = 1;
+    }
+
+    /**
+     * The weight of a book's keys: its average rating in hundredths, plus
+     * POPULARITY for each doubling of the number of ratings.
+     */
+    static int weight(Book book) {
+        return book.ratingKey() + POPULARITY * bits(book.getRatingStats().getCount());
+    }
+
+    /**
+     * The weight of an author's keys: an average rating, plus POPULARITY
+     * for each doubling of the number of books.
+     */
+    static int weight(Author author) {
+        return AUTHOR_RATING + POPULARITY * bits(author.bookCount());
+    }
+
+    private static int bits(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n);
+    }
+
+    void addBook(Book book) {
+        int weight = weight(book);
+        lock.writeLock().lock();
+        try {
+            insert(book.getTitle(), 0, SearchMode.Title, weight, book);
+            insert(book.getIsbn(), 0, SearchMode.ISBN, weight, book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void addAuthor(Author author) {
+        String name = author.getFirstName() + " " + author.getLastName();
+        int weight = weight(author);
+        lock.writeLock().lock();
+        try {
+            insert(name, 0, SearchMode.Author, weight, author);
+            insert(name, author.getFirstName().length() + 1, SearchMode.Author, weight, author);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reweigh the keys of a book whose ratings have changed.
+     */
+    void updateBook(Book book) {
+        int weight = weight(book);
+        lock.writeLock().lock();
+        try {
+            reweigh(book.getTitle(), 0, SearchMode.Title, NONE, weight);
+            reweigh(book.getIsbn(), 0, SearchMode.ISBN, NONE, weight);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reweigh the keys of an author who has just got another book. The
+     * weight only changes when the number of books doubles.
+     */
+    void updateAuthor(Author author) {
+        int count = author.bookCount();
+        if ((count & (count - 1)) != 0) {
+            return;
+        }
+        // authors with one name are told apart by weight, as they are suggested alike
+        int oldWeight = AUTHOR_RATING + POPULARITY * bits(count - 1);
+        int weight = weight(author);
+        String name = author.getFirstName() + " " + author.getLastName();
+        lock.writeLock().lock();
+        try {
+            reweigh(name, 0, SearchMode.Author, oldWeight, weight);
+            reweigh(name, author.getFirstName().length() + 1, SearchMode.Author, oldWeight, weight);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fill out with the best completions of prefix, best first, ignoring
+     * case. Keys with the same text and mode, e.g. two books with one title
+     * or an author found from both names, are suggested once.
+     *
+     * @return the number of suggestions filled in
+     */
+    int complete(CharSequence prefix, Suggestion[] out) {
+        lock.readLock().lock();
+        try {
+            int n = find(prefix);
+            if (n == NONE) {
+                return 0;
+            }
+            int size = 0;
+            if (n < 0) {
+                size = offer(out, size, ~n);
+            } else if (nodeTop[n] != null) {
+                for (int key : nodeTop[n]) {
+                    size = offer(out, size, key);
+                }
+            } else {
+                size = offerAll(out, size, n);
+            }
+            for (int s = 0; s < size; s++) {
+                out[s].set(keyText[out[s].key], MODES[keyMode[out[s].key]]);
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The books whose title or ISBN starts with prefix, ignoring case, e.g.
+     * for a picker. The keys below the prefix are walked in no particular
+     * order, and only until limit books are found.
+     */
+    List<Book> books(CharSequence prefix, int limit) {
+        List<Book> found = new ArrayList<>();
+        collect(prefix, Book.class, limit, found);
+        return found;
+    }
+
+    /**
+     * The authors whose first name, last name or full name starts with
+     * prefix, ignoring case; see books.
+     */
+    List<Author> authors(CharSequence prefix, int limit) {
+        List<Author> found = new ArrayList<>();
+        collect(prefix, Author.class, limit, found);
+        return found;
+    }
+
+    private <T> void collect(CharSequence prefix, Class<T> type, int limit, List<T> found) {
+        if (limit <= 0) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            int n = find(prefix);
+            if (n != NONE) {
+                // a book is found by its title and ISBN, an author by both names
+                collect(n, type, limit, found, new IdentityHashMap<>());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false once found is full
+     */
+    private <T> boolean collect(int ref, Class<T> type, int limit, List<T> found, Map<Object, Boolean> seen) {
+        if (ref < 0) {
+            Object owner = keyOwner[~ref];
+            if (type.isInstance(owner) && seen.put(owner, Boolean.TRUE) == null) {
+                found.add(type.cast(owner));
+            }
+            return found.size() < limit;
+        }
+        for (int r = nodeChild[ref]; r != NONE; r = next(r)) {
+            if (!collect(r, type, limit, found, seen)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The node or key ref where the keys starting with prefix are, or NONE
+     * if there are none. Under the read lock.
+     */
+    private int find(CharSequence prefix) {
+        int length = prefix.length();
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            int r = child(n, Character.toLowerCase(prefix.charAt(i)));
+            if (r == NONE) {
+                return NONE;
+            }
+            int ref = keyOf(r);
+            int end = depthOf(r);
+            for (i++; i < end && i < length; i++) {
+                if (at(ref, i) != Character.toLowerCase(prefix.charAt(i))) {
+                    return NONE;
+                }
+            }
+            if (i < length && r < 0) {
+                return NONE; // the prefix is longer than the key
+            }
+            n = r;
+        }
+        return n;
+    }
+
+    /**
+     * Insert key into the suggestions so far, which are best first, unless
+     * it is worse than all of a full out, or than one suggested alike, which
+     * it otherwise replaces.
+     *
+     * @return the new number of suggestions
+     */
+    private int offer(Suggestion[] out, int size, int key) {
+        for (int s = 0; s < size; s++) {
+            if (alike(out[s].key, key)) {
+                if (!better(key, out[s].key)) {
+                    return size;
+                }
+                Suggestion same = out[s];
+                for (; s + 1 < size; s++) {
+                    out[s] = out[s + 1];
+                }
+                out[--size] = same;
+                break;
+            }
+        }
+        int s;
+        if (size < out.length) {
+            s = size++;
+        } else if (better(key, out[size - 1].key)) {
+            s = size - 1;
+        } else {
+            return size;
+        }
+        Suggestion free = out[s];
+        for (; s > 0 && better(key, out[s - 1].key); s--) {
+            out[s] = out[s - 1];
+        }
+        free.key = key;
+        out[s] = free;
+        return size;
+    }
+
+    private int offerAll(Suggestion[] out, int size, int node) {
+        for (int r = nodeChild[node]; r != NONE; r = next(r)) {
+            size = r < 0 ? offer(out, size, ~r) : offerAll(out, size, r);
+        }
+        return size;
+    }
+
+    private void insert(String text, int start, SearchMode mode, int weight, Object owner) {
+        if (text == null || text.length() <= start) {
+            return;
+        }
+        int key = newKey(text, start, mode, weight, owner);
+        int length = text.length() - start;
+        int pathSize = 0;
+        int n = 0;
+        while (true) {
+            if (pathSize == path.length) {
+                path = Arrays.copyOf(path, pathSize * 2);
+            }
+            path[pathSize++] = n;
+            nodeCount[n]++;
+            int depth = nodeDepth[n];
+            int label = depth == length ? END : at(key, depth);
+            int r = label == END ? NONE : child(n, label);
+            if (r == NONE) {
+                keyLabel[key] = label;
+                keyNext[key] = nodeChild[n];
+                nodeChild[n] = ~key;
+                break;
+            }
+            int ref = keyOf(r);
+            int end = depthOf(r);
+            int i = depth + 1;
+            while (i < end && i < length && at(ref, i) == at(key, i)) {
+                i++;
+            }
+            if (i == end && r >= 0) {
+                n = r;
+                continue;
+            }
+            // the key leaves the edge to r at i: branch there
+            int m = newNode(i, ref, label);
+            replaceChild(n, r, m);
+            setLabel(r, i == end ? END : at(ref, i));
+            keyLabel[key] = i == length ? END : at(key, i);
+            nodeChild[m] = r;
+            setNext(r, ~key);
+            keyNext[key] = NONE;
+            nodeCount[m] = (r < 0 ? 1 : nodeCount[r]) + 1;
+            if (nodeCount[m] > TOP) {
+                rebuildTop(m);
+            }
+            break;
+        }
+        for (int p = pathSize - 1; p >= 0; p--) {
+            int node = path[p];
+            if (nodeTop[node] != null) {
+                offerTop(node, key);
+            } else if (nodeCount[node] > TOP) {
+                rebuildTop(node);
+            }
+        }
+    }
+
+    /**
+     * Set the weight of the key with this text, start and mode, and fix
+     * the lists of the nodes above it. The key is the one holding this very
+     * text, or if oldWeight is not NONE, one with an equal text and that
+     * weight.
+     */
+    private void reweigh(String text, int start, SearchMode mode, int oldWeight, int weight) {
+        if (text == null || text.length() <= start) {
+            return;
+        }
+        int length = text.length() - start;
+        int pathSize = 0;
+        int n = 0;
+        int key = NONE;
+        while (key == NONE) {
+            if (pathSize == path.length) {
+                path = Arrays.copyOf(path, pathSize * 2);
+            }
+            path[pathSize++] = n;
+            int depth = nodeDepth[n];
+            if (depth == length) {
+                for (int r = nodeChild[n]; r != NONE && key == NONE; r = next(r)) {
+                    if (r < 0 && keyLabel[~r] == END && isKey(~r, text, start, mode, oldWeight)) {
+                        key = ~r;
+                    }
+                }
+                if (key == NONE) {
+                    return;
+                }
+                break;
+            }
+            int r = child(n, Character.toLowerCase(text.charAt(start + depth)));
+            if (r == NONE || r >= 0 && nodeDepth[r] > length || r < 0 && !isKey(~r, text, start, mode, oldWeight)) {
+                return;
+            }
+            if (r < 0) {
+                key = ~r;
+            } else {
+                n = r;
+            }
+        }
+        int old = keyWeight[key];
+        if (old == weight) {
+            return;
+        }
+        keyWeight[key] = weight;
+        // A heavier key can only move up in a list. A lighter one moves down in a list it
+        // is in, unless a key outside the list may now beat it: if it was last in a full
+        // list, or if a key alike is hidden behind it. Only books get lighter, and a key
+        // alike a book's is beside it, as it has the same text.
+        boolean hidden = weight < old && hasAlike(path[pathSize - 1], key);
+        for (int p = pathSize - 1; p >= 0; p--) {
+            int[] top = nodeTop[path[p]];
+            if (top == null) {
+                continue;
+            }
+            int s = indexOf(top, key);
+            if (weight > old) {
+                if (s >= 0) {
+                    insertOrdered(top, s, key);
+                } else {
+                    offerTop(path[p], key);
+                }
+            } else if (s >= 0) {
+                if (!hidden && (top.length < TOP || s < TOP - 1 && better(key, top[TOP - 1]))) {
+                    for (; s + 1 < top.length && better(top[s + 1], key); s++) {
+                        top[s] = top[s + 1];
+                    }
+                    top[s] = key;
+                } else {
+                    rebuildTop(path[p]);
+                }
+            }
+        }
+    }
+
+    private boolean hasAlike(int node, int key) {
+        for (int r = nodeChild[node]; r != NONE; r = next(r)) {
+            if (r < 0 && ~r != key && alike(~r, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isKey(int key, String text, int start, SearchMode mode, int oldWeight) {
+        return keyStart[key] == start && keyMode[key] == mode.ordinal() && (keyText[key] == text
+                || oldWeight != NONE && keyWeight[key] == oldWeight && keyText[key].equals(text));
+    }
+
+    /**
+     * Replace the list of node with the best keys in its children's lists,
+     * or below them where they have no list: the TOP best keys below it,
+     * best first, leaving out keys suggested alike with a better one.
+     */
+    private void rebuildTop(int node) {
+        bestSize = 0;
+        for (int r = nodeChild[node]; r != NONE; r = next(r)) {
+            if (r < 0) {
+                consider(~r);
+            } else if (nodeTop[r] != null) {
+                for (int key : nodeTop[r]) {
+                    consider(key);
+                }
+            } else {
+                considerAll(r);
+            }
+        }
+        if (nodeTop[node] == null || nodeTop[node].length != bestSize) {
+            nodeTop[node] = new int[bestSize];
+        }
+        System.arraycopy(best, 0, nodeTop[node], 0, bestSize);
+    }
+
+    private void considerAll(int node) {
+        for (int r = nodeChild[node]; r != NONE; r = next(r)) {
+            if (r < 0) {
+                consider(~r);
+            } else {
+                considerAll(r);
+            }
+        }
+    }
+
+    private void consider(int key) {
+        for (int s = 0; s < bestSize; s++) {
+            if (alike(best[s], key)) {
+                if (better(key, best[s])) {
+                    insertOrdered(best, s, key);
+                }
+                return;
+            }
+        }
+        if (bestSize < TOP) {
+            insertOrdered(best, bestSize++, key);
+        } else if (better(key, best[TOP - 1])) {
+            insertOrdered(best, TOP - 1, key);
+        }
+    }
+
+    /**
+     * Put key into the list of node, as rebuildTop would.
+     */
+    private void offerTop(int node, int key) {
+        int[] top = nodeTop[node];
+        for (int s = 0; s < top.length; s++) {
+            if (alike(top[s], key)) {
+                if (better(key, top[s])) {
+                    insertOrdered(top, s, key);
+                }
+                return;
+            }
+        }
+        if (top.length < TOP) {
+            top = Arrays.copyOf(top, top.length + 1);
+            nodeTop[node] = top;
+            insertOrdered(top, top.length - 1, key);
+        } else if (better(key, top[TOP - 1])) {
+            insertOrdered(top, TOP - 1, key);
+        }
+    }
+
+    /**
+     * Put key at slot s of list, then move it up past the keys it beats.
+     */
+    private void insertOrdered(int[] list, int s, int key) {
+        for (; s > 0 && better(key, list[s - 1]); s--) {
+            list[s] = list[s - 1];
+        }
+        list[s] = key;
+    }
+
+    private static int indexOf(int[] list, int key) {
+        for (int s = 0; s < list.length; s++) {
+            if (list[s] == key) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether key a ranks above key b: heavier, then added earlier
+     */
+    private boolean better(int a, int b) {
+        return keyWeight[a] > keyWeight[b] || keyWeight[a] == keyWeight[b] && a < b;
+    }
+
+    /**
+     * @return whether two keys are suggested alike, having the same text and mode
+     */
+    private boolean alike(int a, int b) {
+        return keyHash[a] == keyHash[b] && keyMode[a] == keyMode[b]
+                && (keyText[a] == keyText[b] || keyText[a].equals(keyText[b]));
+    }
+
+    /**
+     * @return the child of node whose edge starts with c, or NONE
+     */
+    private int child(int node, int c) {
+        for (int r = nodeChild[node]; r != NONE; r = next(r)) {
+            if ((r < 0 ? keyLabel[~r] : nodeLabel[r]) == c) {
+                return r;
+            }
+        }
+        return NONE;
+    }
+
+    private void replaceChild(int node, int old, int replacement) {
+        setNext(replacement, next(old));
+        if (nodeChild[node] == old) {
+            nodeChild[node] = replacement;
+            return;
+        }
+        int r = nodeChild[node];
+        while (next(r) != old) {
+            r = next(r);
+        }
+        setNext(r, replacement);
+    }
+
+    private char at(int key, int depth) {
+        return Character.toLowerCase(keyText[key].charAt(keyStart[key] + depth));
+    }
+
+    private int keyOf(int ref) {
+        return ref < 0 ? ~ref : nodeRef[ref];
+    }
+
+    private int depthOf(int ref) {
+        return ref < 0 ? keyText[~ref].length() - keyStart[~ref] : nodeDepth[ref];
+    }
+
+    private int next(int ref) {
+        return ref < 0 ? keyNext[~ref] : nodeNext[ref];
+    }
+
+    private void setNext(int ref, int next) {
+        if (ref < 0) {
+            keyNext[~ref] = next;
+        } else {
+            nodeNext[ref] = next;
+        }
+    }
+
+    private void setLabel(int ref, int label) {
+        if (ref < 0) {
+            keyLabel[~ref] = label;
+        } else {
+            nodeLabel[ref] = label;
+        }
+    }
+
+    private int newKey(String text, int start, SearchMode mode, int weight, Object owner) {
+        if (keys == keyText.length) {
+            int capacity = keys + keys / 2;
+            keyText = Arrays.copyOf(keyText, capacity);
+            keyStart = Arrays.copyOf(keyStart, capacity);
+            keyMode = Arrays.copyOf(keyMode, capacity);
+            keyHash = Arrays.copyOf(keyHash, capacity);
+            keyWeight = Arrays.copyOf(keyWeight, capacity);
+            keyLabel = Arrays.copyOf(keyLabel, capacity);
+            keyNext = Arrays.copyOf(keyNext, capacity);
+            keyOwner = Arrays.copyOf(keyOwner, capacity);
+        }
+        keyText[keys] = text;
+        keyStart[keys] = start;
+        keyMode[keys] = (byte) mode.ordinal();
+        keyHash[keys] = text.hashCode();
+        keyWeight[keys] = weight;
+        keyNext[keys] = NONE;
+        keyOwner[keys] = owner;
+        return keys++;
+    }
+
+    private int newNode(int depth, int ref, int label) {
+        if (nodes == nodeDepth.length) {
+            int capacity = nodes + nodes / 2;
+            nodeDepth = Arrays.copyOf(nodeDepth, capacity);
+            nodeRef = Arrays.copyOf(nodeRef, capacity);
+            nodeLabel = Arrays.copyOf(nodeLabel, capacity);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeNext = Arrays.copyOf(nodeNext, capacity);
+            nodeCount = Arrays.copyOf(nodeCount, capacity);
+            nodeTop = Arrays.copyOf(nodeTop, capacity);
+        }
+        nodeDepth[nodes] = depth;
+        nodeRef[nodes] = ref;
+        nodeLabel[nodes] = label;
+        nodeChild[nodes] = NONE;
+        nodeNext[nodes] = NONE;
+        return nodes++;
+    }
+}
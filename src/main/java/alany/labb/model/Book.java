@@ -10,8 +10,11 @@ public class Book {
     private final String title;
     private final Date published;
     private final Genre genre;
-    private int rating;
+    private volatile int rating; // the catalogue rating, used until users have rated the book
+    private volatile RatingStats ratingStats = RatingStats.EMPTY;
     private final List<Author> authors;
+    private String authorsDisplay; // cached for the table view, reset when an author is added
+    private String ratingDisplay; // cached for the table view, reset when the rating changes
 
     public Book(int bookId, String isbn, String title, Date published, Genre genre, int rating, List<Author> authors) {
         this.bookId = bookId;
@@ -40,26 +43,139 @@ public class Book {
     public Genre getGenre() {
         return genre;
     }
+    /**
+     * @return the average rating rounded to a whole number
+     */
     public int getRating() {
+        return (ratingKey() + 50) / 100;
+    }
+
+    /**
+     * @return the average of the users' ratings, or the catalogue rating if no user has rated the book
+     */
+    public double getAverageRating() {
+        RatingStats stats = ratingStats;
+        return stats.getCount() == 0 ? rating : stats.getAverage();
+    }
+
+    int getCatalogueRating() {
         return rating;
     }
-    public void setRating(int rating) {
+
+    public RatingStats getRatingStats() {
+        return ratingStats;
+    }
+
+    /**
+     * Set the catalogue rating, which is shown until users have rated the book.
+     */
+    public synchronized void setRating(int rating) {
         this.rating = rating;
+        ratingDisplay = null;
     }
-    public List<Author> getAuthors() {
+
+    /**
+     * The average rating in hundredths, the key of the rating index.
+     */
+    int ratingKey() {
+        return (int) Math.round(getAverageRating() * 100);
+    }
+
+    /**
+     * Replace one user's rating in the stats.
+     *
+     * @param oldRating the user's previous rating, or 0 if none
+     * @return the rating key before the change
+     */
+    synchronized int rate(int oldRating, int newRating) {
+        int oldKey = ratingKey();
+        ratingStats = ratingStats.rate(oldRating, newRating);
+        ratingDisplay = null;
+        return oldKey;
+    }
+
+    /**
+     * @return the rating key before the change
+     */
+    synchronized int setRatingStats(RatingStats stats) {
+        int oldKey = ratingKey();
+        ratingStats = stats;
+        ratingDisplay = null;
+        return oldKey;
+    }
+
+    /**
+     * The average rating with one decimal and the number of ratings, or
+     * the catalogue rating, cached until the rating changes.
+     */
+    public synchronized String getRatingDisplay() {
+        String display = ratingDisplay;
+        if (display == null) {
+            RatingStats stats = ratingStats;
+            display = stats.getCount() == 0 ? Integer.toString(rating)
+                    : String.format("%.1f (%d)", stats.getAverage(), stats.getCount());
+            ratingDisplay = display;
+        }
+        return display;
+    }
+    public synchronized List<Author> getAuthors() {
         return new ArrayList<>(authors);
     }
-    public void addAuthor(Author author){
+    /**
+     * Add an author to a book outside a BooksDb, e.g. a copy made by
+     * RemoteBooksDb, scanning the authors for a duplicate. The books of a
+     * BooksDb are only related by BooksDb, which checks its relation index
+     * and then links both sides and its search indexes; adding an author
+     * to one of them here would leave those behind.
+     */
+    public synchronized void addAuthor(Author author){
         for (Author a: authors){
             if (a.getAuthorId() == author.getAuthorId()){
                 return;
             }
         }
         authors.add(author);
+        authorsDisplay = null;
+    }
+
+    /**
+     * addAuthor for a caller that knows the author is not one of the book's.
+     */
+    synchronized void linkAuthor(Author author) {
+        authors.add(author);
+        authorsDisplay = null;
+    }
+
+    synchronized int authorCount() {
+        return authors.size();
+    }
+
+    synchronized Author authorAt(int index) {
+        return authors.get(index);
+    }
+
+    /**
+     * The authors as one comma separated string, built once and cached
+     * until an author is added.
+     */
+    public synchronized String getAuthorsDisplay() {
+        String display = authorsDisplay;
+        if (display == null) {
+            StringBuilder sb = new StringBuilder();
+            for (Author a: authors){
+                if (sb.length() > 0){
+                    sb.append(", ");
+                }
+                sb.append(a.getFirstName()).append(' ').append(a.getLastName());
+            }
+            display = sb.toString();
+            authorsDisplay = display;
+        }
+        return display;
     }
 
     @Override
     public String toString() {
-        return title + ", " + isbn + ", " + published.toString() + ", " + genre + ", " + rating;
+        return title + ", " + isbn + ", " + published + ", " + genre + ", " + getRatingDisplay();
     }
 }
\ No newline at end of file
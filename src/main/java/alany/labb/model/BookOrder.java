@@ -0,0 +1,24 @@
+package alany.labb.model;
+
+import java.util.Comparator;
+
+/**
+ * Orders for ranked searches, see IBooksDb.searchTopBooks.
+ * Each order puts the "best" book first: highest average rating, most recently
+ * published (books without a date last), or alphabetically first title.
+ */
+public enum BookOrder {
+    Rating(Comparator.comparingDouble(Book::getAverageRating).reversed()),
+    Published(Comparator.comparing(Book::getPublished, Comparator.nullsLast(Comparator.<java.sql.Date>reverseOrder()))),
+    Title(Comparator.comparing(Book::getTitle, String.CASE_INSENSITIVE_ORDER));
+
+    private final Comparator<Book> comparator;
+
+    BookOrder(Comparator<Book> comparator) {
+        this.comparator = comparator;
+    }
+
+    public Comparator<Book> comparator() {
+        return comparator;
+    }
+}
@@ -1,68 +1,231 @@
 package alany.labb.model;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class BooksDb implements IBooksDb {
+    private static final System.Logger LOG = System.getLogger(BooksDb.class.getName());
+    private static final int PROGRESS_INTERVAL = 8192;
+    private static final int ID_LIST_CHUNK = 500;
+    private static final int EXPORT_BLOCK = 1024;
+    private static final long PRUNE_INTERVAL_MINUTES = 60;
+    private static final String SELECT_BOOKS = "SELECT id, isbn, title, published, genre, rating FROM book";
+    private static final String SELECT_AUTHORS = "SELECT id, firstName, lastName, birthDay FROM author";
+    private static final long UNDATED = Long.MIN_VALUE; // publishedKey of a book without a date, in no range
+
     private final List<Book> books;
     private final List<Author> authors;
-    private final String url;
-    private final String user;
-    private final String password;
+    private final Map<String, Book> booksByIsbn = new HashMap<>();
+    /** isbns of books being inserted by createBook, not yet in booksByIsbn */
+    private final Set<String> creatingIsbns = new HashSet<>();
+    private final Map<Integer, Book> booksById = new HashMap<>();
+    private final Map<Integer, Author> authorsById = new HashMap<>();
+    private final ConnectionRouter router;
+    private final SortedIndex ratingIndex = new SortedIndex(Book::ratingKey); // average in hundredths
+    private final SortedIndex publishedIndex = new SortedIndex(BooksDb::publishedKey);
+    private final RelationIndex relationIndex = new RelationIndex(); // author_book, guarded by this
+    private FuzzyIndex fuzzyIndex; // built on the first fuzzy search, see fuzzyIndex()
+    private volatile AutocompleteIndex autocomplete; // built once the model is loaded, see buildAutocomplete()
+    private QueryTracer tracer;
+    private Book[] booksSnapshot; // see snapshot()
+    private int highestBookId; // ids of books and authors created while not connected follow these
+    private int highestAuthorId;
+    private volatile ModelJournal journal; // see setJournal
+
+    // multi-client coherence, see ChangeLog
+    private final ChangeLog changeLog = new ChangeLog(UUID.randomUUID().toString());
+    private final UserRatings userRatings = new UserRatings();
+    private volatile String user = System.getProperty("user.name", "anonymous");
+    private final List<int[]> pendingRelations = new ArrayList<>();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private final Object syncLock = new Object(); // one synchronize at a time, poller or updateDb
+    private volatile boolean connected;
+    private volatile long lastWritePosition; // change log id of this client's last write
+    private long pollIntervalMillis = 2000;
+    private ScheduledExecutorService poller;
 
     public BooksDb(String url, String user, String password) {
-        this.url = url;
-        this.user = user;
-        this.password = password;
+        this(new ConnectionRouter(url, List.of(), user, password));
+    }
+
+    /**
+     * @param router routes writes to the primary database and reads to replicas
+     */
+    public BooksDb(ConnectionRouter router) {
+        this.router = router;
         this.books = new ArrayList<>();
         this.authors = new ArrayList<>();
     }
 
+    /**
+     * Trace all statements sent to the database, or stop tracing if tracer is null.
+     *
+     * @param tracer the tracer to record statements in
+     */
+    public void setQueryTracer(QueryTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public QueryTracer getQueryTracer() {
+        return tracer;
+    }
+
+    private Connection writeConnection() throws SQLException {
+        return traced(router.write());
+    }
+
+    /**
+     * A connection for reads, which sees at least this client's own writes.
+     */
+    private Connection readConnection() throws SQLException {
+        return traced(router.read(lastWritePosition));
+    }
+
+    private Connection traced(Connection connection) {
+        QueryTracer t = tracer;
+        return t == null ? connection : t.trace(connection);
+    }
+
+    private void recordChanges(Connection connection, List<ChangeLog.Change> changes) throws SQLException {
+        long position = changeLog.record(connection, changes);
+        if (position > lastWritePosition) {
+            lastWritePosition = position;
+        }
+    }
+
+    /**
+     * Set how often the background poller writes pending changes and reads
+     * the changes of other clients. Takes effect on the next connect.
+     */
+    public void setPollInterval(long millis) {
+        this.pollIntervalMillis = millis;
+    }
+
+    /**
+     * Set the user whose ratings rateBook(Book, int) records.
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
     @Override
-    public List<Book> getBooks() {
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public synchronized List<Book> getBooks() {
         return new ArrayList<>(books);
     }
 
     @Override
-    public List<Author> getAuthors() {
+    public synchronized List<Author> getAuthors() {
         return new ArrayList<>(authors);
     }
 
     @Override
     public boolean connect() throws BooksDbException {
-        try {
-            retrieveBooks();
-            retrieveAuthors();
-            retrieveRelations();
-            return true; // Indicate successful connection
-        } catch (BooksDbException e) {
+        try (Connection connection = writeConnection()) {
+            changeLog.createTable(connection);
+            userRatings.createTables(connection);
+        } catch (SQLException e) {
             throw new BooksDbException("Failed to connect to the database", e);
         }
+        // load everything through one read connection, so it is one consistent replica
+        try (Connection connection = readConnection()) {
+            // read the log position before the tables, so nothing committed in between is missed
+            changeLog.start(connection);
+            Map<Integer, RatingStats> stats = userRatings.loadStats(connection);
+            userRatings.loadUser(connection, user);
+            synchronized (this) {
+                retrieveBooks(connection);
+                for (Book book : books) {
+                    RatingStats bookStats = stats.get(book.getBookId());
+                    if (bookStats != null) {
+                        book.setRatingStats(bookStats);
+                    }
+                }
+                ratingIndex.build(books);
+                publishedIndex.build(books);
+                retrieveAuthors(connection);
+                retrieveRelations(connection);
+            }
+        } catch (SQLException | BooksDbException e) {
+            throw new BooksDbException("Failed to connect to the database", e);
+        }
+        buildAutocomplete();
+        connected = true;
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BooksDb change poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                synchronize();
+            } catch (BooksDbException e) {
+                LOG.log(System.Logger.Level.WARNING, "Failed to synchronize with the database", e);
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        poller.scheduleWithFixedDelay(this::pruneChangeLog, 0, PRUNE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        return true; // Indicate successful connection
     }
 
     @Override
     public void disconnect() throws BooksDbException {
-        try (Connection connection = DriverManager.getConnection(url, user, password)) {
-            // Clear existing relations before reseting all my books and authors.
-            String deleteAllRelationsQuery = "DELETE FROM author_book";
-            try (PreparedStatement deleteStatement = connection.prepareStatement(deleteAllRelationsQuery)) {
-                deleteStatement.executeUpdate();
+        if (poller != null) {
+            poller.shutdown();
+            try {
+                poller.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-
-            updateBooks(connection);
-            updateAuthors(connection);
-            updateRelation(connection);
-
-        } catch (SQLException e) {
-            throw new BooksDbException("Failed to disconnect from the database", e);
+            poller = null;
+        }
+        try {
+            if (connected) {
+                try (Connection connection = writeConnection()) {
+                    flushPending(connection);
+                } catch (SQLException e) {
+                    throw new BooksDbException("Failed to disconnect from the database", e);
+                } finally {
+                    connected = false;
+                }
+            }
+        } finally {
+            router.close();
         }
     }
 
-    private void retrieveBooks() throws BooksDbException {
-        try (Connection connection = DriverManager.getConnection(url, user, password);
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM book");
+    private void retrieveBooks(Connection connection) throws BooksDbException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM book");
              ResultSet resultSet = statement.executeQuery()) {
 
             while (resultSet.next()) {
@@ -73,16 +236,15 @@ public class BooksDb implements IBooksDb {
                 Genre genre = Genre.valueOf(resultSet.getString("genre"));
                 int rating = resultSet.getInt("rating");
 
-                books.add(new Book(bookId, isbn, title, published, genre, rating));
+                addBook(new Book(bookId, isbn, title, published, genre, rating));
             }
         } catch (Exception e) {
             throw new BooksDbException("Failed to fetch books from the database", e);
         }
     }
 
-    private void retrieveAuthors() throws BooksDbException {
-        try (Connection connection = DriverManager.getConnection(url, user, password);
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM author");
+    private void retrieveAuthors(Connection connection) throws BooksDbException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM author");
              ResultSet resultSet = statement.executeQuery()) {
 
             while (resultSet.next()) {
@@ -90,117 +252,193 @@ public class BooksDb implements IBooksDb {
                 String firstName = resultSet.getString("firstName").toLowerCase();
                 String lastName = resultSet.getString("lastName").toLowerCase();
                 Date birthDay = resultSet.getDate("birthDay");
-                authors.add(new Author(id, firstName, lastName, birthDay.toLocalDate()));
+                addAuthor(new Author(id, firstName, lastName, birthDay.toLocalDate()));
             }
         } catch (SQLException e) {
             throw new BooksDbException("Failed to fetch authors from the database", e);
         }
     }
 
-    private void retrieveRelations() throws BooksDbException{
-        try (Connection connection = DriverManager.getConnection(url, user, password);
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM author_book");
+    private void retrieveRelations(Connection connection) throws BooksDbException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM author_book");
              ResultSet resultSet = statement.executeQuery()) {
 
+            int[] relations = new int[64];
+            int n = 0;
             while (resultSet.next()) {
-                int authorId = resultSet.getInt("author_id");
-                int bookId = resultSet.getInt("book_id");
-
-                for (Book book: books){
-                    if (book.getBookId() == bookId){
-                        for (Author author: authors){
-                            if (author.getAuthorId() == authorId){
-                                book.addAuthor(author);
-                                author.addBook(book);
-                            }
-                        }
-                    }
+                if (2 * n + 2 > relations.length) {
+                    relations = Arrays.copyOf(relations, relations.length * 2);
                 }
-
+                relations[2 * n] = resultSet.getInt("author_id");
+                relations[2 * n + 1] = resultSet.getInt("book_id");
+                n++;
             }
+            linkAll(relations, n);
         } catch (SQLException e) {
             throw new BooksDbException("Failed to fetch authors from the database", e);
         }
     }
 
-    private void updateBooks(Connection connection) throws SQLException {
-        // First, delete all existing books
-        String deleteBooksQuery = "DELETE FROM book";
+    @Override
+    public List<Book> searchBooksByTitle(String searchTitle) throws BooksDbException {
+        List<Book> result = new ArrayList<>();
+        searchTitle = searchTitle.toLowerCase();
+        for (Book book : snapshot()) {
+            if (book.getTitle().toLowerCase().contains(searchTitle)) {
+                result.add(book);
+            }
+        }
+        return result;
+    }
 
-        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteBooksQuery)) {
-            deleteStatement.executeUpdate();
+    @Override
+    public List<Book> searchBooksByISBN(String isbn) throws BooksDbException {
+        List<Book> result = new ArrayList<>();
+        for (Book book : snapshot()) {
+            if (book.getIsbn().contains(isbn)) {
+                result.add(book);
+            }
         }
+        return result;
+    }
 
-        // Then, reset auto-increment to start from 1
-        String resetAutoIncrementQuery = "ALTER TABLE book AUTO_INCREMENT = 1";
+    @Override
+    public List<Book> searchBooksByAuthor(String name) throws BooksDbException {
+        List<Book> result = new ArrayList<>();
+        name = name.toLowerCase();
+        for (Book book : snapshot()) {
+            for (Author author: book.getAuthors()){
+                if ((author.getFirstName() + " " + author.getLastName()).contains(name)) {
+                    result.add(book);
+                }
 
-        try (PreparedStatement resetAutoIncrementStatement = connection.prepareStatement(resetAutoIncrementQuery)) {
-            resetAutoIncrementStatement.executeUpdate();
+            }
         }
+        return result;
+    }
 
-        // Now, insert the new books from the Java list
-        String insertBookQuery = "INSERT INTO book (isbn, title, published, genre, rating) VALUES (?, ?, ?, ?, ?)";
+    @Override
+    public List<Book> searchBooksByRating(String ratingStr) throws BooksDbException {
+        int rating = Integer.parseInt(ratingStr);
+        return ratingRange(rating, rating);
+    }
 
-        try (PreparedStatement insertStatement = connection.prepareStatement(insertBookQuery)) {
+    @Override
+    public List<Book> searchBooksByRatingRange(int min, int max) throws BooksDbException {
+        return ratingRange(min, max);
+    }
+
+    /**
+     * The books whose average rating rounds to min through max, from the
+     * index, which is keyed on the average in hundredths.
+     */
+    private List<Book> ratingRange(int min, int max) {
+        return ratingIndex.range(min * 100L - 50, max == Integer.MAX_VALUE ? Long.MAX_VALUE : max * 100L + 49);
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(LocalDate from, LocalDate to) throws BooksDbException {
+        return publishedIndex.range(
+                from == null ? UNDATED + 1 : from.toEpochDay(),
+                to == null ? Long.MAX_VALUE : to.toEpochDay());
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return fuzzyIndex().search(query);
+    }
+
+    /**
+     * The fuzzy index, built from the whole model when first needed rather
+     * than while loading, which it would slow down several times over.
+     */
+    private synchronized FuzzyIndex fuzzyIndex() {
+        if (fuzzyIndex == null) {
+            FuzzyIndex index = new FuzzyIndex();
             for (Book book : books) {
-                insertStatement.setString(1, book.getIsbn());
-                insertStatement.setString(2, book.getTitle());
-                insertStatement.setDate(3, book.getPublished());
-                insertStatement.setString(4, book.getGenre().toString());
-                insertStatement.setInt(5, book.getRating());
-                insertStatement.executeUpdate();
+                index.addBook(book);
+                for (Author author : book.getAuthors()) {
+                    index.addAuthor(book, author);
+                }
             }
+            fuzzyIndex = index;
         }
+        return fuzzyIndex;
     }
 
-    private void updateAuthors(Connection connection) throws SQLException {
-        // First, delete all existing authors
-        String deleteAuthorsQuery = "DELETE FROM author";
+    /**
+     * The publish date as an epoch day, or UNDATED for a book without one,
+     * which sorts it last in the most recent first order of the index.
+     */
+    private static long publishedKey(Book book) {
+        return book.getPublished() == null ? UNDATED : book.getPublished().toLocalDate().toEpochDay();
+    }
 
-        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteAuthorsQuery)) {
-            deleteStatement.executeUpdate();
+    /**
+     * Parse a publish date range such as "2001-01-01..2005-06-30", "1990..1999",
+     * "2001.." or a single year "2001". A year means the whole year.
+     *
+     * @return {from, to}, where null means an open end
+     */
+    private static LocalDate[] parsePublishedRange(String range) throws BooksDbException {
+        String[] parts = range.trim().split("\\.\\.", -1);
+        if (parts.length > 2) {
+            throw new BooksDbException("Invalid publish date range '" + range + "'");
         }
-
-        // Then, reset auto-increment to start from 1
-        String resetAutoIncrementQuery = "ALTER TABLE author AUTO_INCREMENT = 1";
-
-        try (PreparedStatement resetAutoIncrementStatement = connection.prepareStatement(resetAutoIncrementQuery)) {
-            resetAutoIncrementStatement.executeUpdate();
+        try {
+            String from = parts[0].trim();
+            String to = parts.length == 2 ? parts[1].trim() : from;
+            return new LocalDate[]{
+                    from.isEmpty() ? null : parseDate(from, false),
+                    to.isEmpty() ? null : parseDate(to, true)};
+        } catch (DateTimeException | NumberFormatException e) {
+            throw new BooksDbException("Invalid publish date range '" + range + "'", e);
         }
+    }
 
-        // Now, insert or update the authors from the Java list
-        String insertAuthorQuery = "INSERT INTO author (firstName, lastName, birthDay) VALUES (?, ?, ?)";
-
-        try (PreparedStatement insertStatement = connection.prepareStatement(insertAuthorQuery)) {
-            for (Author author : authors) {
-                insertStatement.setString(1, author.getFirstName());
-                insertStatement.setString(2, author.getLastName());
-                insertStatement.setDate(3, Date.valueOf(author.getBirthDay()));
-                insertStatement.executeUpdate();
-            }
+    private static LocalDate parseDate(String date, boolean endOfYear) {
+        if (date.length() == 4) {
+            int year = Integer.parseInt(date);
+            return endOfYear ? LocalDate.of(year, 12, 31) : LocalDate.of(year, 1, 1);
         }
+        return LocalDate.parse(date);
     }
 
-    private void updateRelation(Connection connection) throws SQLException {
-        // Insert updated relations
-        String insertRelationsQuery = "INSERT INTO author_book (author_id, book_id) VALUES (?, ?)";
-        try (PreparedStatement insertStatement = connection.prepareStatement(insertRelationsQuery)) {
-            for (Book book : books) {
-                for (Author author : book.getAuthors()) {
-                    insertStatement.setInt(1, author.getAuthorId());
-                    insertStatement.setInt(2, book.getBookId());
-                    insertStatement.executeUpdate();
+    /**
+     * The matches of a search mode backed by a sorted index, in the order
+     * they should be displayed, or null if the mode is not index backed.
+     */
+    private List<Book> indexedSearch(SearchMode mode, String searchFor) throws BooksDbException {
+        switch (mode) {
+            case Rating:
+            case MinRating: {
+                int rating;
+                try {
+                    rating = Integer.parseInt(searchFor);
+                } catch (NumberFormatException e) {
+                    throw new BooksDbException("Invalid rating '" + searchFor + "'", e);
                 }
+                List<Book> result = ratingRange(rating, mode == SearchMode.Rating ? rating : Integer.MAX_VALUE);
+                Collections.reverse(result); // best rated first
+                return result;
+            }
+            case Published: {
+                LocalDate[] range = parsePublishedRange(searchFor);
+                return searchBooksByPublished(range[0], range[1]);
             }
+            case Fuzzy:
+                return searchBooksFuzzy(searchFor);
+            default:
+                return null;
         }
     }
 
     @Override
-    public List<Book> searchBooksByTitle(String searchTitle) throws BooksDbException {
+    public List<Book> searchBooksByGenre(String genreStr) throws BooksDbException {
         List<Book> result = new ArrayList<>();
-        searchTitle = searchTitle.toLowerCase();
-        for (Book book : books) {
-            if (book.getTitle().toLowerCase().contains(searchTitle)) {
+        Genre genre = Genre.valueOf(genreStr);
+        for (Book book : snapshot()) {
+            if (book.getGenre() == genre){
                 result.add(book);
             }
         }
@@ -208,136 +446,1190 @@ public class BooksDb implements IBooksDb {
     }
 
     @Override
-    public List<Book> searchBooksByISBN(String isbn) throws BooksDbException {
-        List<Book> result = new ArrayList<>();
-        for (Book book : books) {
-            if (book.getIsbn().contains(isbn)) {
-                result.add(book);
+    public void searchBooks(SearchMode mode, String searchFor, int chunkSize, SearchListener listener) throws BooksDbException {
+        List<Book> indexed = indexedSearch(mode, searchFor);
+        if (indexed != null) {
+            // already sorted by the index, only needs chunking
+            int total = indexed.size();
+            for (int i = 0; i < total; i += chunkSize) {
+                int end = Math.min(total, i + chunkSize);
+                if (!listener.onChunk(new ArrayList<>(indexed.subList(i, end)), end, total)) {
+                    return;
+                }
             }
+            listener.onChunk(new ArrayList<>(), total, total);
+            return;
         }
-        return result;
+        Predicate<Book> matcher = matcher(mode, searchFor);
+        Book[] snapshot = snapshot();
+        int total = snapshot.length;
+        List<Book> chunk = new ArrayList<>(chunkSize);
+        for (int i = 0; i < total; i++) {
+            Book book = snapshot[i];
+            if (matcher.test(book)) {
+                chunk.add(book);
+            }
+            // report progress now and then even when nothing matches, so the search can be cancelled
+            if (chunk.size() >= chunkSize || (i + 1) % PROGRESS_INTERVAL == 0) {
+                if (!listener.onChunk(chunk, i + 1, total)) {
+                    return;
+                }
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        listener.onChunk(chunk, total, total);
     }
 
     @Override
-    public List<Book> searchBooksByAuthor(String name) throws BooksDbException {
-        List<Book> result = new ArrayList<>();
-        name = name.toLowerCase();
-        for (Book book : books) {
-            for (Author author: book.getAuthors()){
-                if ((author.getFirstName() + " " + author.getLastName()).contains(name)) {
+    public Stream<Book> streamBooks(SearchMode mode, String searchFor) throws BooksDbException {
+        if (mode == SearchMode.Fuzzy) {
+            return searchBooksFuzzy(searchFor).stream(); // already ranked
+        }
+        Predicate<Book> matcher = matcher(mode, searchFor);
+        return Arrays.stream(snapshot()).filter(matcher);
+    }
+
+    @Override
+    public List<Book> searchTopBooks(SearchMode mode, String searchFor, BookOrder order, int k) throws BooksDbException {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        Predicate<Book> matcher = matcher(mode, searchFor);
+        if (order == BookOrder.Rating || order == BookOrder.Published) {
+            // the index already has the order, walk it from the best end and stop at k
+            List<Book> result = new ArrayList<>(k);
+            SortedIndex index = order == BookOrder.Rating ? ratingIndex : publishedIndex;
+            index.forEachDescending(book -> {
+                if (matcher.test(book)) {
                     result.add(book);
                 }
-
+                return result.size() < k;
+            });
+            return result;
+        }
+        Comparator<Book> best = order.comparator();
+        // bounded heap with the worst of the current top k at its head
+        PriorityQueue<Book> heap = new PriorityQueue<>(k + 1, best.reversed());
+        for (Book book : snapshot()) {
+            if (!matcher.test(book)) {
+                continue;
+            }
+            if (heap.size() < k) {
+                heap.add(book);
+            } else if (best.compare(book, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(book);
             }
         }
+        List<Book> result = new ArrayList<>(heap);
+        result.sort(best);
         return result;
     }
 
+    /**
+     * The books as an array, shared by all searches until the next book is
+     * added, so concurrent searches do not each copy the list.
+     */
+    private synchronized Book[] snapshot() {
+        Book[] snapshot = booksSnapshot;
+        if (snapshot == null) {
+            snapshot = books.toArray(new Book[0]);
+            booksSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private Predicate<Book> matcher(SearchMode mode, String searchFor) throws BooksDbException {
+        try {
+            switch (mode) {
+                case Title: {
+                    String title = searchFor.toLowerCase();
+                    return book -> book.getTitle().toLowerCase().contains(title);
+                }
+                case ISBN:
+                    return book -> book.getIsbn().contains(searchFor);
+                case Author: {
+                    String name = searchFor.toLowerCase();
+                    return book -> {
+                        for (Author author : book.getAuthors()) {
+                            if ((author.getFirstName() + " " + author.getLastName()).toLowerCase().contains(name)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    };
+                }
+                case Rating: {
+                    int rating = Integer.parseInt(searchFor);
+                    return book -> book.getRating() == rating;
+                }
+                case Genre: {
+                    Genre genre = Genre.valueOf(searchFor);
+                    return book -> book.getGenre() == genre;
+                }
+                case MinRating: {
+                    int rating = Integer.parseInt(searchFor);
+                    return book -> book.getRating() >= rating;
+                }
+                case Published: {
+                    LocalDate[] range = parsePublishedRange(searchFor);
+                    long from = range[0] == null ? UNDATED + 1 : range[0].toEpochDay();
+                    long to = range[1] == null ? Long.MAX_VALUE : range[1].toEpochDay();
+                    return book -> {
+                        long key = publishedKey(book);
+                        return key >= from && key <= to;
+                    };
+                }
+                case Fuzzy: {
+                    Set<Book> matches = new HashSet<>(searchBooksFuzzy(searchFor));
+                    return matches::contains;
+                }
+                default:
+                    throw new BooksDbException("Unsupported search mode " + mode);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BooksDbException("Invalid search value '" + searchFor + "' for " + mode, e);
+        }
+    }
+
+    /**
+     * Looked up in the autocomplete index. Until it is built, the books are
+     * scanned in blocks, like exportCatalogue, so writers are not held up
+     * for the whole scan.
+     */
     @Override
-    public List<Book> searchBooksByRating(String ratingStr) throws BooksDbException {
-        List<Book> result = new ArrayList<>();
-        int rating = Integer.parseInt(ratingStr);
-        for (Book book : books) {
-                if (book.getRating() == rating){
-                    result.add(book);
+    public List<Book> findBooks(String prefix, int limit) throws BooksDbException {
+        AutocompleteIndex index = autocomplete;
+        List<Book> result;
+        if (index != null) {
+            result = index.books(prefix, limit);
+        } else {
+            result = new ArrayList<>();
+            Book[] block = new Book[EXPORT_BLOCK];
+            int n;
+            for (int i = 0; result.size() < limit && (n = copyBlock(books, i, block)) > 0; i += n) {
+                for (int j = 0; j < n && result.size() < limit; j++) {
+                    Book book = block[j];
+                    if (startsWithIgnoreCase(book.getTitle(), prefix, 0)
+                            || startsWithIgnoreCase(book.getIsbn(), prefix, 0)) {
+                        result.add(book);
+                    }
+                }
             }
         }
+        result.sort(BookOrder.Title.comparator());
         return result;
     }
 
+    /**
+     * Looked up in the autocomplete index, or scanned like findBooks until
+     * it is built.
+     */
     @Override
-    public List<Book> searchBooksByGenre(String genreStr) throws BooksDbException {
-        List<Book> result = new ArrayList<>();
-        Genre genre = Genre.valueOf(genreStr);
-        for (Book book : books) {
-            if (book.getGenre() == genre){
-                result.add(book);
+    public List<Author> searchAuthors(String name, int limit) throws BooksDbException {
+        AutocompleteIndex index = autocomplete;
+        List<Author> result;
+        if (index != null) {
+            result = index.authors(name, limit);
+        } else {
+            result = new ArrayList<>();
+            Author[] block = new Author[EXPORT_BLOCK];
+            int n;
+            for (int i = 0; result.size() < limit && (n = copyBlock(authors, i, block)) > 0; i += n) {
+                for (int j = 0; j < n && result.size() < limit; j++) {
+                    if (nameStartsWith(block[j], name)) {
+                        result.add(block[j]);
+                    }
+                }
             }
         }
+        result.sort(Comparator.comparing(Author::getLastName, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(Author::getFirstName, String.CASE_INSENSITIVE_ORDER));
         return result;
     }
 
+    /**
+     * Whether the author's last name or "first last" starts with name,
+     * matched in place, as the autocomplete index does.
+     */
+    private static boolean nameStartsWith(Author author, String name) {
+        String first = author.getFirstName();
+        if (startsWithIgnoreCase(author.getLastName(), name, 0)) {
+            return true;
+        }
+        if (name.length() <= first.length()) {
+            return startsWithIgnoreCase(first, name, 0);
+        }
+        return first.regionMatches(true, 0, name, 0, first.length()) && name.charAt(first.length()) == ' '
+                && startsWithIgnoreCase(author.getLastName(), name, first.length() + 1);
+    }
+
+    /**
+     * Whether text starts with prefix from the char at from on.
+     */
+    private static boolean startsWithIgnoreCase(String text, String prefix, int from) {
+        return text != null && text.regionMatches(true, 0, prefix, from, prefix.length() - from);
+    }
+
+    /**
+     * Answered from the autocomplete index without taking the model's lock
+     * or allocating. Finds nothing until the index is built.
+     */
+    @Override
+    public int suggest(CharSequence prefix, Suggestion[] out) {
+        AutocompleteIndex index = autocomplete;
+        return index == null ? 0 : index.complete(prefix, out);
+    }
+
+    /**
+     * Build the autocomplete index in the background, so loading does not
+     * wait for it. Books and authors added meanwhile are added to it before
+     * it is published; weights changed meanwhile catch up on the next change.
+     */
+    private void buildAutocomplete() {
+        Thread builder = new Thread(() -> {
+            long start = System.nanoTime();
+            Book[] loadedBooks;
+            Author[] loadedAuthors;
+            synchronized (this) {
+                loadedBooks = snapshot();
+                loadedAuthors = authors.toArray(new Author[0]);
+            }
+            AutocompleteIndex index = new AutocompleteIndex(2 * (loadedBooks.length + loadedAuthors.length));
+            for (Book book : loadedBooks) {
+                index.addBook(book);
+            }
+            for (Author author : loadedAuthors) {
+                index.addAuthor(author);
+            }
+            synchronized (this) {
+                for (int i = loadedBooks.length; i < books.size(); i++) {
+                    index.addBook(books.get(i));
+                }
+                for (int i = loadedAuthors.length; i < authors.size(); i++) {
+                    index.addAuthor(authors.get(i));
+                }
+                autocomplete = index;
+            }
+            LOG.log(System.Logger.Level.DEBUG, "Built the autocomplete index in {0} ms",
+                    (System.nanoTime() - start) / 1000000);
+        }, "BooksDb autocomplete builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Rate a book as the current user, see setUser.
+     */
     @Override
     public void rateBook(Book book, int rating) {
-        for (Book b: books){
-            if (b.getBookId() == book.getBookId()){
-                b.setRating(rating);
-                break;
+        rateBook(book, user, rating);
+    }
+
+    /**
+     * Record a user's rating of a book, replacing the user's earlier rating
+     * of it. The book's aggregates and place in the rating index change at
+     * once; the rating itself is written by the next synchronize. Takes no
+     * lock that searches wait for, other than the rating index's own.
+     */
+    public void rateBook(Book book, String user, int rating) {
+        if (rating < RatingStats.MIN_RATING || rating > RatingStats.MAX_RATING) {
+            throw new IllegalArgumentException("Invalid rating " + rating);
+        }
+        Book b = findBook(book.getBookId());
+        if (b == null) {
+            return;
+        }
+        if (connected && !userRatings.isLoaded(user)) {
+            try (Connection connection = readConnection()) {
+                userRatings.loadUser(connection, user);
+            } catch (SQLException e) {
+                LOG.log(System.Logger.Level.WARNING, "Failed to load the ratings of " + user, e);
+                return;
+            }
+        }
+        int oldRating;
+        ModelJournal j = journal;
+        if (j != null) {
+            // stored and recorded under one lock, so a captured state has both or neither
+            synchronized (userRatings) {
+                try {
+                    j.rating(user, b.getBookId(), rating);
+                } catch (IOException e) {
+                    LOG.log(System.Logger.Level.WARNING, "Failed to store the rating of " + b.getTitle(), e);
+                    return;
+                }
+                oldRating = userRatings.rate(user, b.getBookId(), rating, false);
+            }
+        } else {
+            oldRating = userRatings.rate(user, b.getBookId(), rating, connected);
+        }
+        if (oldRating != rating) {
+            int oldKey = b.rate(oldRating, rating);
+            ratingIndex.update(b, oldKey);
+            AutocompleteIndex index = autocomplete;
+            if (index != null) {
+                index.updateBook(b);
             }
         }
     }
 
+    /**
+     * Create a book. When connected, the book is written to the database
+     * at once, to get its id from there.
+     */
     @Override
-    public void createBook(String title, String isbn, String genre, String rating){
-        for (Book book: books){
-            if (book.getIsbn().equals(isbn)){
+    public void createBook(String title, String isbn, String genre, String rating) throws BooksDbException {
+        synchronized (this) {
+            if (booksByIsbn.containsKey(isbn) || creatingIsbns.contains(isbn)){
                 return;
             }
         }
-        Book book = new Book(highestBookId(),
-                isbn, title,
-                Date.valueOf(LocalDate.now()),
-                Genre.valueOf(genre),
-                Integer.parseInt(rating));
-        books.add(book);
+        Date published = Date.valueOf(LocalDate.now());
+        Genre bookGenre = Genre.valueOf(genre);
+        int bookRating = Integer.parseInt(rating);
+        if (!connected) {
+            synchronized (this) {
+                if (booksByIsbn.containsKey(isbn)) {
+                    return;
+                }
+                Book book = new Book(highestBookId + 1, isbn, title, published, bookGenre, bookRating);
+                journal(j -> j.book(book));
+                addBook(book);
+                ratingIndex.add(book);
+                publishedIndex.add(book);
+            }
+            return;
+        }
+        // claim the isbn while the insert runs outside the monitor, so that
+        // a concurrent create of the same isbn does not insert it twice
+        synchronized (this) {
+            if (booksByIsbn.containsKey(isbn) || !creatingIsbns.add(isbn)) {
+                return;
+            }
+        }
+        try {
+            int id = insertAndLog("INSERT INTO book (isbn, title, published, genre, rating) VALUES (?, ?, ?, ?, ?)",
+                        statement -> {
+                            statement.setString(1, isbn);
+                            statement.setString(2, title);
+                            statement.setDate(3, published);
+                            statement.setString(4, bookGenre.toString());
+                            statement.setInt(5, bookRating);
+                        }, ChangeLog.BOOK);
+            Book book = new Book(id, isbn, title, published, bookGenre, bookRating);
+            synchronized (this) {
+                addBook(book);
+                ratingIndex.add(book);
+                publishedIndex.add(book);
+            }
+        } finally {
+            synchronized (this) {
+                creatingIsbns.remove(isbn);
+            }
+        }
     }
 
+    /**
+     * Create an author. When connected, the author is written to the
+     * database at once, to get its id from there.
+     */
     @Override
-    public void createAuthor(String firstName, String lastName, LocalDate birthDay){
-        Author author = new Author(highestAuthorId(), firstName, lastName, birthDay);
+    public void createAuthor(String firstName, String lastName, LocalDate birthDay) throws BooksDbException {
+        if (!connected) {
+            synchronized (this) {
+                Author author = new Author(highestAuthorId + 1, firstName, lastName, birthDay);
+                journal(j -> j.author(author));
+                addAuthor(author);
+            }
+            return;
+        }
+        int id = insertAndLog("INSERT INTO author (firstName, lastName, birthDay) VALUES (?, ?, ?)",
+                    statement -> {
+                        statement.setString(1, firstName);
+                        statement.setString(2, lastName);
+                        statement.setDate(3, Date.valueOf(birthDay));
+                    }, ChangeLog.AUTHOR);
+        Author author = new Author(id, firstName, lastName, birthDay);
+        synchronized (this) {
+            addAuthor(author);
+        }
+    }
+
+    /**
+     * Store a change in the model's journal, if it has one, see setJournal.
+     */
+    private void journal(JournalWrite write) throws BooksDbException {
+        ModelJournal j = journal;
+        if (j != null) {
+            try {
+                write.write(j);
+            } catch (IOException e) {
+                throw new BooksDbException("Failed to store the change", e);
+            }
+        }
+    }
+
+    private interface JournalWrite {
+        void write(ModelJournal journal) throws IOException;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    /**
+     * Insert one row and its change log entry in one transaction.
+     *
+     * @return the generated id of the row
+     */
+    private int insertAndLog(String sql, Binder binder, String entity) throws BooksDbException {
+        try (Connection connection = writeConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int id;
+                try (PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    binder.bind(statement);
+                    statement.executeUpdate();
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        if (!keys.next()) {
+                            throw new SQLException("No id generated for new " + entity);
+                        }
+                        id = keys.getInt(1);
+                    }
+                }
+                recordChanges(connection, List.of(new ChangeLog.Change(entity, ChangeLog.INSERT, id, 0)));
+                connection.commit();
+                return id;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new BooksDbException("Failed to create " + entity + " in the database", e);
+        }
+    }
+
+    private void addBook(Book book) {
+        books.add(book);
+        booksSnapshot = null;
+        if (fuzzyIndex != null) {
+            fuzzyIndex.addBook(book);
+        }
+        if (autocomplete != null) {
+            autocomplete.addBook(book);
+        }
+        booksByIsbn.put(book.getIsbn(), book);
+        booksById.put(book.getBookId(), book);
+        highestBookId = Math.max(highestBookId, book.getBookId());
+    }
+
+    /**
+     * Relate a book and an author in the model and the fuzzy and
+     * autocomplete indexes, unless the relation index already has them.
+     *
+     * @return false if the book and author were already related
+     */
+    private boolean link(Book book, Author author) {
+        if (!relationIndex.add(author.getAuthorId(), book.getBookId())) {
+            return false;
+        }
+        linked(book, author);
+        return true;
+    }
+
+    /**
+     * Link n pairs, given as author id and book id after each other in
+     * relations, in one bulk add to the relation index. Pairs of unknown
+     * books or authors are skipped. Overwrites relations.
+     */
+    private void linkAll(int[] relations, int n) {
+        int known = 0;
+        for (int i = 0; i < n; i++) {
+            int authorId = relations[2 * i];
+            int bookId = relations[2 * i + 1];
+            if (authorsById.containsKey(authorId) && booksById.containsKey(bookId)) {
+                relations[2 * known] = authorId;
+                relations[2 * known + 1] = bookId;
+                known++;
+            }
+        }
+        int added = relationIndex.addAll(relations, known);
+        for (int i = 0; i < added; i++) {
+            linked(booksById.get(relations[2 * i + 1]), authorsById.get(relations[2 * i]));
+        }
+    }
+
+    // the relation index already has the pair, so the lists need no duplicate check
+    private void linked(Book book, Author author) {
+        book.linkAuthor(author);
+        author.linkBook(book);
+        if (fuzzyIndex != null) {
+            fuzzyIndex.addAuthor(book, author);
+        }
+        if (autocomplete != null) {
+            autocomplete.updateAuthor(author);
+        }
+    }
+
+    synchronized boolean hasRelation(Book book, Author author) {
+        return relationIndex.contains(author.getAuthorId(), book.getBookId());
+    }
+
+    private void addAuthor(Author author) {
         authors.add(author);
+        if (autocomplete != null) {
+            autocomplete.addAuthor(author);
+        }
+        authorsById.put(author.getAuthorId(), author);
+        highestAuthorId = Math.max(highestAuthorId, author.getAuthorId());
+    }
+
+    /**
+     * Store every change made to the model while not connected in journal
+     * before applying it, or stop storing changes if journal is null.
+     */
+    void setJournal(ModelJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Load a stored model into this empty model, building the indexes once
+     * instead of book by book.
+     */
+    synchronized void restore(ModelJournal.State state) {
+        for (Book book : state.books()) {
+            addBook(book);
+        }
+        for (Author author : state.authors()) {
+            addAuthor(author);
+        }
+        int[] relations = state.relations();
+        linkAll(Arrays.copyOf(relations, relations.length), relations.length / 2);
+        userRatings.restore(state.ratings());
+        for (Map.Entry<Integer, RatingStats> stats : UserRatings.aggregate(state.ratings()).entrySet()) {
+            Book book = booksById.get(stats.getKey());
+            if (book != null) {
+                book.setRatingStats(stats.getValue());
+            }
+        }
+        ratingIndex.build(books);
+        publishedIndex.build(books);
+        buildAutocomplete();
+    }
+
+    /**
+     * Capture the whole model between two changes, and at that point tell
+     * the journal, which then stores later changes apart from earlier ones.
+     */
+    synchronized ModelJournal.State captureState() throws IOException {
+        synchronized (userRatings) {
+            // by author in id order, each author's books in the order they were linked
+            int[] relations = new int[2 * relationIndex.size()];
+            int n = 0;
+            for (int authorId = 0; authorId < relationIndex.authorIdLimit(); authorId++) {
+                for (int i = 0; i < relationIndex.bookCount(authorId); i++) {
+                    relations[n++] = authorId;
+                    relations[n++] = relationIndex.bookAt(authorId, i);
+                }
+            }
+            ModelJournal.State state = new ModelJournal.State(new ArrayList<>(books), new ArrayList<>(authors),
+                    relations, userRatings.copyRatings());
+            ModelJournal j = journal;
+            if (j != null) {
+                j.checkpoint();
+            }
+            return state;
+        }
     }
 
     @Override
-    public boolean createRelation(Book book, Author author){
-        for (Book b: books){
-            if (b.getBookId() == book.getBookId()){
-                for (Author a: b.getAuthors()){
-                    if (a.getAuthorId() == author.getAuthorId()){
-                        return false;
+    public ImportStats importCatalogue(Path file, Consumer<ImportStats> progress) throws BooksDbException {
+        return new CatalogueImporter(this).importFile(file, progress);
+    }
+
+    @Override
+    public long exportCatalogue(Path directory, ExportFormat format) throws BooksDbException {
+        CatalogueExporter exporter = new CatalogueExporter(directory, format);
+        try {
+            // walk the live lists in small blocks instead of copying them; they only grow
+            Book[] bookBlock = new Book[EXPORT_BLOCK];
+            Author[] authorBlock = new Author[EXPORT_BLOCK];
+            try (ExportWriter writer = exporter.openBooks()) {
+                int n;
+                for (int i = 0; (n = copyBlock(books, i, bookBlock)) > 0; i += n) {
+                    for (int j = 0; j < n; j++) {
+                        Book book = bookBlock[j];
+                        exporter.writeBook(writer, book.getBookId(), book.getIsbn(), book.getTitle(),
+                                toLocalDate(book.getPublished()), book.getGenre(), book.getCatalogueRating());
+                    }
+                }
+            }
+            try (ExportWriter writer = exporter.openAuthors()) {
+                int n;
+                for (int i = 0; (n = copyBlock(authors, i, authorBlock)) > 0; i += n) {
+                    for (int j = 0; j < n; j++) {
+                        Author author = authorBlock[j];
+                        exporter.writeAuthor(writer, author.getAuthorId(), author.getFirstName(),
+                                author.getLastName(), author.getBirthDay());
+                    }
+                }
+            }
+            try (ExportWriter writer = exporter.openRelations()) {
+                int n;
+                for (int i = 0; (n = copyBlock(books, i, bookBlock)) > 0; i += n) {
+                    for (int j = 0; j < n; j++) {
+                        Book book = bookBlock[j];
+                        synchronized (book) {
+                            for (int k = 0; k < book.authorCount(); k++) {
+                                exporter.writeRelation(writer, book.authorAt(k).getAuthorId(), book.getBookId(),
+                                        book.getIsbn());
+                            }
+                        }
+                    }
+                }
+            }
+            return exporter.getRows();
+        } catch (IOException e) {
+            throw new BooksDbException("Failed to export the catalogue to " + directory, e);
+        }
+    }
+
+    /**
+     * Export the catalogue straight from the database with forward-only
+     * streaming cursors, without loading it into the model.
+     *
+     * @return the number of rows written
+     */
+    public long exportFromDatabase(Path directory, ExportFormat format) throws BooksDbException {
+        CatalogueExporter exporter = new CatalogueExporter(directory, format);
+        try (Connection connection = readConnection()) {
+            try (ExportWriter writer = exporter.openBooks();
+                 PreparedStatement statement = streamingStatement(connection,
+                         "SELECT id, isbn, title, published, genre, rating FROM book");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    exporter.writeBook(writer, resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3),
+                            toLocalDate(resultSet.getDate(4)), Genre.valueOf(resultSet.getString(5)),
+                            resultSet.getInt(6));
+                }
+            }
+            try (ExportWriter writer = exporter.openAuthors();
+                 PreparedStatement statement = streamingStatement(connection,
+                         "SELECT id, firstName, lastName, birthDay FROM author");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    exporter.writeAuthor(writer, resultSet.getInt(1), resultSet.getString(2),
+                            resultSet.getString(3), resultSet.getDate(4).toLocalDate());
+                }
+            }
+            try (ExportWriter writer = exporter.openRelations();
+                 PreparedStatement statement = streamingStatement(connection,
+                         "SELECT ab.author_id, ab.book_id, b.isbn FROM author_book ab JOIN book b ON b.id = ab.book_id");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    exporter.writeRelation(writer, resultSet.getInt(1), resultSet.getInt(2), resultSet.getString(3));
+                }
+            }
+            return exporter.getRows();
+        } catch (SQLException | IOException e) {
+            throw new BooksDbException("Failed to export the database to " + directory, e);
+        }
+    }
+
+    private static PreparedStatement streamingStatement(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        // MySQL Connector/J streams rows one by one only with this fetch size
+        statement.setFetchSize(Integer.MIN_VALUE);
+        return statement;
+    }
+
+    /**
+     * Copy up to block.length elements of a model list, starting at from, into block.
+     *
+     * @return the number of elements copied
+     */
+    private synchronized <T> int copyBlock(List<T> list, int from, T[] block) {
+        int n = Math.max(0, Math.min(block.length, list.size() - from));
+        for (int i = 0; i < n; i++) {
+            block[i] = list.get(from + i);
+        }
+        return n;
+    }
+
+    synchronized Book findBookByIsbn(String isbn) {
+        return booksByIsbn.get(isbn);
+    }
+
+    synchronized Book findBook(int bookId) {
+        return booksById.get(bookId);
+    }
+
+    synchronized Author findAuthor(int authorId) {
+        return authorsById.get(authorId);
+    }
+
+    /**
+     * Insert one batch of imported rows in a single transaction, using JDBC
+     * batches, and add them to the model once committed. The database assigns
+     * the ids of new books and authors; relations refer to committed ids,
+     * or by CatalogueImporter.batchRef to books and authors of the batch.
+     *
+     * @return the ids assigned to the authors, in the order given
+     */
+    int[] importBatch(List<CatalogueImporter.BookRow> newBooks, List<CatalogueImporter.AuthorRow> newAuthors,
+                      List<int[]> newRelations) throws BooksDbException {
+        if (!connected) {
+            return importLocally(newBooks, newAuthors, newRelations);
+        }
+        try (Connection connection = writeConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int[] bookIds = insertBatch(connection,
+                        "INSERT INTO book (isbn, title, published, genre, rating) VALUES (?, ?, ?, ?, ?)",
+                        newBooks, (statement, row) -> {
+                            statement.setString(1, row.isbn());
+                            statement.setString(2, row.title());
+                            statement.setDate(3, toDate(row.published()));
+                            statement.setString(4, row.genre().toString());
+                            statement.setInt(5, row.rating());
+                        });
+                int[] authorIds = insertBatch(connection,
+                        "INSERT INTO author (firstName, lastName, birthDay) VALUES (?, ?, ?)",
+                        newAuthors, (statement, row) -> {
+                            statement.setString(1, row.firstName());
+                            statement.setString(2, row.lastName());
+                            statement.setDate(3, Date.valueOf(row.birthDay()));
+                        });
+                List<int[]> relations = CatalogueImporter.resolveRelations(newRelations, bookIds, authorIds);
+                insertBatch(connection, "INSERT INTO author_book (author_id, book_id) VALUES (?, ?)",
+                        relations, (statement, row) -> {
+                            statement.setInt(1, row[0]);
+                            statement.setInt(2, row[1]);
+                        });
+                List<ChangeLog.Change> changes = new ArrayList<>();
+                for (int id : bookIds) {
+                    changes.add(new ChangeLog.Change(ChangeLog.BOOK, ChangeLog.INSERT, id, 0));
+                }
+                for (int id : authorIds) {
+                    changes.add(new ChangeLog.Change(ChangeLog.AUTHOR, ChangeLog.INSERT, id, 0));
+                }
+                for (int[] relation : relations) {
+                    changes.add(new ChangeLog.Change(ChangeLog.RELATION, ChangeLog.INSERT, relation[0], relation[1]));
+                }
+                recordChanges(connection, changes);
+                connection.commit();
+
+                synchronized (this) {
+                    List<Book> added = new ArrayList<>(bookIds.length);
+                    for (int i = 0; i < bookIds.length; i++) {
+                        CatalogueImporter.BookRow row = newBooks.get(i);
+                        Book book = new Book(bookIds[i], row.isbn(), row.title(), toDate(row.published()),
+                                row.genre(), row.rating());
+                        addBook(book);
+                        added.add(book);
+                    }
+                    ratingIndex.addAll(added);
+                    publishedIndex.addAll(added);
+                    for (int i = 0; i < authorIds.length; i++) {
+                        CatalogueImporter.AuthorRow row = newAuthors.get(i);
+                        addAuthor(new Author(authorIds[i], row.firstName(), row.lastName(), row.birthDay()));
+                    }
+                    for (int[] relation : relations) {
+                        Author author = authorsById.get(relation[0]);
+                        Book book = booksById.get(relation[1]);
+                        if (author != null && book != null) {
+                            link(book, author);
+                        }
+                    }
+                }
+                return authorIds;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new BooksDbException("Failed to write import batch to the database", e);
+        }
+    }
+
+    /**
+     * importBatch while not connected: ids are assigned here, and each row
+     * is stored in the journal before it is added.
+     */
+    private synchronized int[] importLocally(List<CatalogueImporter.BookRow> newBooks,
+                                             List<CatalogueImporter.AuthorRow> newAuthors,
+                                             List<int[]> newRelations) throws BooksDbException {
+        // the journal cannot store an undated book, so refuse the batch before any of it is stored
+        for (CatalogueImporter.BookRow row : newBooks) {
+            if (row.published() == null && journal != null) {
+                throw new BooksDbException("Book " + row.isbn() + " has no publish date, which the embedded store needs");
+            }
+        }
+        List<Book> added = new ArrayList<>(newBooks.size());
+        try {
+            for (CatalogueImporter.BookRow row : newBooks) {
+                Book book = new Book(highestBookId + 1, row.isbn(), row.title(), toDate(row.published()),
+                        row.genre(), row.rating());
+                journal(j -> j.book(book));
+                addBook(book);
+                added.add(book);
+            }
+        } finally {
+            // the books added before a failed journal write stay in the model
+            ratingIndex.addAll(added);
+            publishedIndex.addAll(added);
+        }
+        int[] authorIds = new int[newAuthors.size()];
+        for (int i = 0; i < authorIds.length; i++) {
+            CatalogueImporter.AuthorRow row = newAuthors.get(i);
+            Author author = new Author(highestAuthorId + 1, row.firstName(), row.lastName(), row.birthDay());
+            journal(j -> j.author(author));
+            addAuthor(author);
+            authorIds[i] = author.getAuthorId();
+        }
+        int[] bookIds = new int[added.size()];
+        for (int i = 0; i < bookIds.length; i++) {
+            bookIds[i] = added.get(i).getBookId();
+        }
+        for (int[] relation : CatalogueImporter.resolveRelations(newRelations, bookIds, authorIds)) {
+            Author author = authorsById.get(relation[0]);
+            Book book = booksById.get(relation[1]);
+            if (author != null && book != null) {
+                journal(j -> j.relation(relation[0], relation[1]));
+                link(book, author);
+            }
+        }
+        // the importer's checkpoint will say the batch is stored
+        journal(ModelJournal::sync);
+        return authorIds;
+    }
+
+    private interface RowBinder<T> {
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    private <T> int[] insertBatch(Connection connection, String sql, List<T> rows, RowBinder<T> binder) throws SQLException {
+        int[] ids = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return ids;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            for (T row : rows) {
+                binder.bind(statement, row);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            int count = 0;
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                while (keys.next()) {
+                    if (count < ids.length) {
+                        ids[count] = keys.getInt(1);
                     }
+                    count++;
                 }
             }
+            if (count != ids.length) {
+                // the rows cannot be matched to their ids; the caller rolls back
+                throw new SQLException("Got " + count + " generated keys for " + ids.length + " rows");
+            }
+        }
+        return ids;
+    }
+
+    /** The SQL date of a local date, or null for an undated book. */
+    private static Date toDate(LocalDate date) {
+        return date == null ? null : Date.valueOf(date);
+    }
+
+    /** The local date of an SQL date, or null for an undated book. */
+    private static LocalDate toLocalDate(Date date) {
+        return date == null ? null : date.toLocalDate();
+    }
+
+    @Override
+    public synchronized boolean createRelation(Book book, Author author){
+        if (relationIndex.contains(author.getAuthorId(), book.getBookId())){
+            return false;
+        }
+        try {
+            journal(j -> j.relation(author.getAuthorId(), book.getBookId()));
+        } catch (BooksDbException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to store a relation of " + book.getTitle(), e);
+            return false;
+        }
+        link(book, author);
+        if (connected){
+            pendingRelations.add(new int[]{author.getAuthorId(), book.getBookId()}); // written by the next synchronize
         }
-        book.addAuthor(author);
-        author.addBook(book);
         return true;
     }
 
     @Override
     public void updateDb() throws BooksDbException {
-        try (Connection connection = DriverManager.getConnection(url, user, password)) {
-            // Clear existing relations before reseting all my books and authors.
-            String deleteAllRelationsQuery = "DELETE FROM author_book";
-            try (PreparedStatement deleteStatement = connection.prepareStatement(deleteAllRelationsQuery)) {
-                deleteStatement.executeUpdate();
+        QueryTracer t = tracer;
+        long roundTripsBefore = t == null ? 0 : t.getRoundTrips();
+        try {
+            synchronize();
+        } finally {
+            if (t != null) {
+                LOG.log(System.Logger.Level.INFO,
+                        "updateDb sent {0} statements", t.getRoundTrips() - roundTripsBefore);
+                t.logSummary();
+            }
+        }
+    }
+    /**
+     * Write the pending ratings and relations of this client, then apply the
+     * changes other clients have logged since the last call. Runs on the
+     * poller thread every poll interval, and on updateDb.
+     */
+    private void synchronize() throws BooksDbException {
+        if (!connected) {
+            throw new BooksDbException("Not connected to the database");
+        }
+        int applied;
+        try {
+            synchronized (syncLock) {
+                try (Connection connection = writeConnection()) {
+                    flushPending(connection);
+                }
+                try (Connection connection = readConnection()) {
+                    applied = applyRemoteChanges(connection);
+                }
+            }
+        } catch (SQLException e) {
+            throw new BooksDbException("Failed to synchronize with the database", e);
+        }
+        if (applied > 0) {
+            for (Runnable listener : changeListeners) {
+                listener.run();
             }
+        }
+    }
 
-            updateBooks(connection);
-            updateAuthors(connection);
-            updateRelation(connection);
+    /**
+     * Delete the change log entries every client has long since read.
+     * Runs on the poller thread, so it never overlaps a synchronize.
+     */
+    private void pruneChangeLog() {
+        try (Connection connection = writeConnection()) {
+            int pruned = changeLog.prune(connection);
+            if (pruned > 0) {
+                LOG.log(System.Logger.Level.DEBUG, "Pruned {0} change log entries", pruned);
+            }
+        } catch (SQLException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to prune the change log", e);
+        }
+    }
 
+    /**
+     * Write the pending ratings and relations with their log entries in one
+     * transaction. On failure they stay pending for the next attempt.
+     */
+    private void flushPending(Connection connection) throws SQLException {
+        List<int[]> relations;
+        synchronized (this) {
+            relations = new ArrayList<>(pendingRelations);
+            pendingRelations.clear();
+        }
+        Map<UserRatings.Key, int[]> ratings = userRatings.takePending();
+        if (ratings.isEmpty() && relations.isEmpty()) {
+            return;
+        }
+        connection.setAutoCommit(false);
+        try {
+            List<ChangeLog.Change> changes = new ArrayList<>(UserRatings.write(connection, ratings));
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT IGNORE INTO author_book (author_id, book_id) VALUES (?, ?)")) {
+                for (int[] relation : relations) {
+                    statement.setInt(1, relation[0]);
+                    statement.setInt(2, relation[1]);
+                    statement.addBatch();
+                    changes.add(new ChangeLog.Change(ChangeLog.RELATION, ChangeLog.INSERT, relation[0], relation[1]));
+                }
+                statement.executeBatch();
+            }
+            recordChanges(connection, changes);
+            connection.commit();
         } catch (SQLException e) {
-            throw new BooksDbException("Failed to disconnect from the database", e);
+            connection.rollback();
+            // newer ratings made meanwhile win over the failed ones
+            userRatings.restorePending(ratings);
+            synchronized (this) {
+                pendingRelations.addAll(0, relations);
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Read the log entries after the last seen one and apply those of other
+     * clients to the model and its indexes, fetching only the changed rows.
+     *
+     * @return the number of changes applied
+     */
+    private int applyRemoteChanges(Connection connection) throws SQLException {
+        if (changeLog.isBehind(connection)) {
+            return reloadAll(connection);
+        }
+        List<ChangeLog.Change> changes = changeLog.poll(connection);
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        Set<Integer> bookIds = new LinkedHashSet<>();
+        Set<Integer> authorIds = new LinkedHashSet<>();
+        List<int[]> relations = new ArrayList<>();
+        for (ChangeLog.Change change : changes) {
+            if (change.clientId().equals(changeLog.getClientId())) {
+                continue;
+            }
+            if (change.op().equals(ChangeLog.RATE)) {
+                // possibly by one of this client's users, whose loaded ratings are then stale
+                userRatings.ratedElsewhere();
+            }
+            switch (change.entity()) {
+                case ChangeLog.BOOK -> bookIds.add(change.entityId());
+                case ChangeLog.AUTHOR -> authorIds.add(change.entityId());
+                case ChangeLog.RELATION -> relations.add(new int[]{change.entityId(), change.otherId()});
+                default -> { }
+            }
+        }
+        if (bookIds.isEmpty() && authorIds.isEmpty() && relations.isEmpty()) {
+            return 0;
+        }
+
+        List<Book> changedBooks = new ArrayList<>();
+        selectByIds(connection, SELECT_BOOKS + " WHERE id IN ", bookIds,
+                resultSet -> changedBooks.add(readBook(resultSet)));
+        List<Author> changedAuthors = new ArrayList<>();
+        selectByIds(connection, SELECT_AUTHORS + " WHERE id IN ", authorIds,
+                resultSet -> changedAuthors.add(readAuthor(resultSet)));
+        Map<Integer, RatingStats> changedStats = new HashMap<>();
+        selectByIds(connection, UserRatings.SELECT_STATS + " WHERE book_id IN ", bookIds,
+                resultSet -> changedStats.put(resultSet.getInt(1), UserRatings.readStats(resultSet)));
+        merge(changedBooks, changedAuthors, changedStats, relations);
+        return bookIds.size() + authorIds.size() + relations.size();
+    }
+
+    /**
+     * Catch up after change log entries this client had not read were
+     * pruned: poll from the latest entry again, and merge every row of the
+     * tables into the model, as if each had changed.
+     *
+     * @return the number of rows merged
+     */
+    private int reloadAll(Connection connection) throws SQLException {
+        LOG.log(System.Logger.Level.WARNING, "Missed pruned change log entries, reloading the catalogue");
+        // read the log position before the tables, as connect does
+        changeLog.start(connection);
+        userRatings.ratedElsewhere();
+        List<Book> allBooks = new ArrayList<>();
+        selectAll(connection, SELECT_BOOKS, resultSet -> allBooks.add(readBook(resultSet)));
+        List<Author> allAuthors = new ArrayList<>();
+        selectAll(connection, SELECT_AUTHORS, resultSet -> allAuthors.add(readAuthor(resultSet)));
+        Map<Integer, RatingStats> allStats = new HashMap<>();
+        selectAll(connection, UserRatings.SELECT_STATS,
+                resultSet -> allStats.put(resultSet.getInt(1), UserRatings.readStats(resultSet)));
+        List<int[]> allRelations = new ArrayList<>();
+        selectAll(connection, "SELECT author_id, book_id FROM author_book",
+                resultSet -> allRelations.add(new int[]{resultSet.getInt(1), resultSet.getInt(2)}));
+        merge(allBooks, allAuthors, allStats, allRelations);
+        return allBooks.size() + allAuthors.size() + allRelations.size();
+    }
+
+    private static Book readBook(ResultSet resultSet) throws SQLException {
+        return new Book(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3), resultSet.getDate(4),
+                Genre.valueOf(resultSet.getString(5)), resultSet.getInt(6));
+    }
+
+    private static Author readAuthor(ResultSet resultSet) throws SQLException {
+        return new Author(resultSet.getInt(1), resultSet.getString(2).toLowerCase(),
+                resultSet.getString(3).toLowerCase(), resultSet.getDate(4).toLocalDate());
+    }
+
+    /**
+     * Add the books, authors and relations read from the database that the
+     * model lacks, and update the ratings of the books it has.
+     */
+    private void merge(List<Book> changedBooks, List<Author> changedAuthors, Map<Integer, RatingStats> changedStats,
+                       List<int[]> relations) {
+        synchronized (this) {
+            List<Book> added = new ArrayList<>();
+            for (Book changed : changedBooks) {
+                Book book = booksById.get(changed.getBookId());
+                // the stored aggregates lack this client's unwritten ratings
+                RatingStats stats = UserRatings.plus(changedStats.getOrDefault(changed.getBookId(), RatingStats.EMPTY),
+                        userRatings.pendingDelta(changed.getBookId()));
+                if (book == null) {
+                    changed.setRatingStats(stats);
+                    addBook(changed);
+                    added.add(changed);
+                } else {
+                    int oldKey = book.ratingKey();
+                    book.setRating(changed.getRating());
+                    book.setRatingStats(stats);
+                    if (book.ratingKey() != oldKey) {
+                        ratingIndex.update(book, oldKey);
+                    }
+                    if (autocomplete != null) {
+                        autocomplete.updateBook(book);
+                    }
+                }
+            }
+            ratingIndex.addAll(added);
+            publishedIndex.addAll(added);
+            for (Author changed : changedAuthors) {
+                if (!authorsById.containsKey(changed.getAuthorId())) {
+                    addAuthor(changed);
+                }
+            }
+            for (int[] relation : relations) {
+                Author author = authorsById.get(relation[0]);
+                Book book = booksById.get(relation[1]);
+                if (author != null && book != null) {
+                    link(book, author);
+                }
+            }
         }
     }
-    private int highestBookId(){
-        int highestId = 1;
-        for (Book book: books){
-            if (book.getBookId() > highestId){
-                highestId = book.getBookId();
+
+    private interface RowReader {
+        void read(ResultSet resultSet) throws SQLException;
+    }
+
+    private void selectAll(Connection connection, String sql, RowReader reader) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                reader.read(resultSet);
             }
         }
-        return highestId;
     }
 
-    private int highestAuthorId(){
-        int highestId = 1;
-        for (Author author: authors){
-            if (author.getAuthorId() > highestId){
-                highestId = author.getAuthorId();
+    private void selectByIds(Connection connection, String sql, Set<Integer> ids, RowReader reader) throws SQLException {
+        List<Integer> all = new ArrayList<>(ids);
+        for (int start = 0; start < all.size(); start += ID_LIST_CHUNK) {
+            List<Integer> chunk = all.subList(start, Math.min(all.size(), start + ID_LIST_CHUNK));
+            StringBuilder placeholders = new StringBuilder("(");
+            for (int i = 0; i < chunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            placeholders.append(')');
+            try (PreparedStatement statement = connection.prepareStatement(sql + placeholders)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        reader.read(resultSet);
+                    }
+                }
             }
         }
-        return highestId;
     }
 }
\ No newline at end of file
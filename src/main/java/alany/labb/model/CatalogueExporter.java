@@ -0,0 +1,103 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+/**
+ * Streams the catalogue to three files in a directory: books, authors and
+ * author_book, each in the chosen ExportFormat. Rows are handed over one
+ * at a time, either from the in-memory model or from a database cursor,
+ * and written by an ExportWriter. The direct buffers are allocated once
+ * per exporter and reused for all three files, so the heap used does not
+ * depend on the size of the catalogue.
+ *
+ * Text exports use the field names of the catalogue import, so an export
+ * can be imported again.
+ */
+public class CatalogueExporter {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_COLUMNS = 6;
+
+    private final Path directory;
+    private final ExportFormat format;
+    private final ByteBuffer[] buffers;
+    private long rows;
+
+    public CatalogueExporter(Path directory, ExportFormat format) {
+        this.directory = directory;
+        this.format = format;
+        this.buffers = new ByteBuffer[format == ExportFormat.COLUMNAR ? MAX_COLUMNS + 1 : 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * @return the number of rows written to all files so far
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    ExportWriter openBooks() throws IOException {
+        return open("books",
+                new String[]{"id", "isbn", "title", "published", "genre", "rating"},
+                new byte[]{ExportWriter.INT, ExportWriter.STRING, ExportWriter.STRING,
+                        ExportWriter.DATE, ExportWriter.BYTE, ExportWriter.BYTE});
+    }
+
+    ExportWriter openAuthors() throws IOException {
+        return open("authors",
+                new String[]{"id", "firstName", "lastName", "birthDay"},
+                new byte[]{ExportWriter.INT, ExportWriter.STRING, ExportWriter.STRING, ExportWriter.DATE});
+    }
+
+    ExportWriter openRelations() throws IOException {
+        return open("author_book",
+                new String[]{"author_id", "book_id", "isbn"},
+                new byte[]{ExportWriter.INT, ExportWriter.INT, ExportWriter.STRING});
+    }
+
+    /**
+     * @param published null when the book is undated
+     */
+    void writeBook(ExportWriter writer, int id, String isbn, String title, LocalDate published,
+                   Genre genre, int rating) throws IOException {
+        writer.beginRow();
+        writer.intField(id);
+        writer.stringField(isbn);
+        writer.stringField(title);
+        writer.dateField(published);
+        writer.enumField(genre);
+        writer.byteField(rating);
+        writer.endRow();
+        rows++;
+    }
+
+    void writeAuthor(ExportWriter writer, int id, String firstName, String lastName, LocalDate birthDay) throws IOException {
+        writer.beginRow();
+        writer.intField(id);
+        writer.stringField(firstName);
+        writer.stringField(lastName);
+        writer.dateField(birthDay);
+        writer.endRow();
+        rows++;
+    }
+
+    void writeRelation(ExportWriter writer, int authorId, int bookId, String isbn) throws IOException {
+        writer.beginRow();
+        writer.intField(authorId);
+        writer.intField(bookId);
+        writer.stringField(isbn);
+        writer.endRow();
+        rows++;
+    }
+
+    private ExportWriter open(String table, String[] names, byte[] types) throws IOException {
+        Files.createDirectories(directory);
+        return new ExportWriter(directory.resolve(table + format.getExtension()), format, names, types, buffers);
+    }
+}
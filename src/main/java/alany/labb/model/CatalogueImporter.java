@@ -0,0 +1,399 @@
+package alany.labb.model;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Streaming bulk import of books, authors and relations into a BooksDb.
+ *
+ * The file is CSV with a header row, or JSON (an array of objects or JSON
+ * Lines), chosen by the file extension. Each record is one of
+ * <ul>
+ *     <li>a book: isbn, title, genre, and optionally rating (1-5, default 1) and published (yyyy-mm-dd)</li>
+ *     <li>an author: firstName, lastName, birthDay (yyyy-mm-dd), and optionally id</li>
+ *     <li>a relation: isbn, author_id</li>
+ * </ul>
+ * The kind is taken from a "type" field (book, author or relation) when
+ * present, otherwise from the fields. An author_id refers to the id field
+ * of an author earlier in the file, or else to an existing author.
+ *
+ * Books whose ISBN already exists and relations that already exist are
+ * skipped. Records are written in batches, each in one transaction; a
+ * relation to a book or author of the same batch refers to it by its place
+ * in the batch until the batch has ids. After every batch a checkpoint file
+ * next to the import file records how far the import got, and a new import
+ * of the same file resumes from there. The checkpoint is removed when the
+ * import completes.
+ *
+ * The checkpoint names each batch before writing it, so a resume knows
+ * which records may have been committed without being checkpointed. Books
+ * and relations of that batch are found again as duplicates; an author of
+ * it is taken to be one already stored with the same name and birthday,
+ * since authors have no natural key of their own.
+ */
+public class CatalogueImporter {
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** published is null when the record has none */
+    record BookRow(String isbn, String title, LocalDate published, Genre genre, int rating) {}
+    record AuthorRow(String sourceId, String firstName, String lastName, LocalDate birthDay) {}
+
+    private final BooksDb booksDb;
+    private final int batchSize;
+
+    private final List<BookRow> pendingBooks = new ArrayList<>();
+    private final Map<String, Integer> pendingIsbns = new HashMap<>(); // to the place in pendingBooks
+    private final List<AuthorRow> pendingAuthors = new ArrayList<>();
+    private final Map<String, Integer> pendingAuthorIds = new HashMap<>(); // to the place in pendingAuthors
+    private final List<int[]> pendingRelations = new ArrayList<>(); // see batchRef
+    private final Set<Long> pendingRelationKeys = new HashSet<>();
+    private final Map<String, Integer> importedAuthorIds = new HashMap<>();
+    private ImportStats stats;
+    private Path checkpoint;
+    private long batchStart; // the first record of the pending batch
+    private long inFlightEnd; // records before this may be stored though not checkpointed, see readCheckpoint
+    private Map<String, Author> storedAuthors; // by authorKey, built when a resume needs it
+
+    public CatalogueImporter(BooksDb booksDb) {
+        this(booksDb, DEFAULT_BATCH_SIZE);
+    }
+
+    public CatalogueImporter(BooksDb booksDb, int batchSize) {
+        this.booksDb = booksDb;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Import a file, resuming from its checkpoint if an earlier import failed.
+     *
+     * @param file the CSV or JSON file
+     * @param progress called with a snapshot of the counters after every batch, may be null
+     * @return the final counters
+     */
+    public ImportStats importFile(Path file, Consumer<ImportStats> progress) throws BooksDbException {
+        stats = new ImportStats();
+        checkpoint = file.resolveSibling(file.getFileName() + ".checkpoint");
+        importedAuthorIds.clear();
+        try {
+            stats.totalBytes = Files.size(file);
+            long resumeFrom = readCheckpoint();
+            stats.resumedFrom = resumeFrom;
+            batchStart = resumeFrom;
+            storedAuthors = null;
+
+            CountingInputStream counter = new CountingInputStream(Files.newInputStream(file));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8), 1 << 16);
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            boolean json = name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson");
+            try (RecordReader records = json ? new JsonRecordReader(reader) : new CsvRecordReader(reader)) {
+                Map<String, String> record;
+                while ((record = records.next()) != null) {
+                    long index = stats.records++;
+                    if (index < resumeFrom) {
+                        continue;
+                    }
+                    process(record, index);
+                    if (pendingBooks.size() + pendingAuthors.size() + pendingRelations.size() >= batchSize) {
+                        flush(index + 1);
+                        stats.bytesRead = counter.count;
+                        if (progress != null) {
+                            progress.accept(stats.copy());
+                        }
+                    }
+                }
+            }
+            flush(stats.records);
+            stats.bytesRead = stats.totalBytes;
+            if (progress != null) {
+                progress.accept(stats.copy());
+            }
+            Files.deleteIfExists(checkpoint);
+            return stats.copy();
+        } catch (IOException e) {
+            throw new BooksDbException("Failed to import " + file + " after " + stats.records + " records", e);
+        }
+    }
+
+    private void process(Map<String, String> record, long index) throws BooksDbException, IOException {
+        String type = field(record, "type");
+        if (type == null) {
+            type = record.containsKey("title") ? "book"
+                    : record.containsKey("firstName") ? "author"
+                    : record.containsKey("author_id") ? "relation" : "";
+        }
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "book":
+                processBook(record);
+                break;
+            case "author":
+                processAuthor(record, index);
+                break;
+            case "relation":
+                processRelation(record);
+                break;
+            default:
+                stats.invalid++;
+        }
+    }
+
+    private void processBook(Map<String, String> record) {
+        String isbn = field(record, "isbn");
+        String title = field(record, "title");
+        String genre = field(record, "genre");
+        String rating = field(record, "rating");
+        String published = field(record, "published");
+        BookRow row;
+        try {
+            int r = rating == null ? 1 : Integer.parseInt(rating);
+            if (isbn == null || title == null || genre == null || r < 1 || r > 5) {
+                stats.invalid++;
+                return;
+            }
+            row = new BookRow(isbn, title,
+                    published == null ? null : LocalDate.parse(published),
+                    Genre.valueOf(genre), r);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            stats.invalid++;
+            return;
+        }
+        if (booksDb.findBookByIsbn(isbn) != null || pendingIsbns.putIfAbsent(isbn, pendingBooks.size()) != null) {
+            stats.duplicates++;
+            return;
+        }
+        pendingBooks.add(row);
+    }
+
+    private void processAuthor(Map<String, String> record, long index) {
+        String id = field(record, "id");
+        String firstName = field(record, "firstName");
+        String lastName = field(record, "lastName");
+        String birthDay = field(record, "birthDay");
+        if (firstName == null || lastName == null || birthDay == null) {
+            stats.invalid++;
+            return;
+        }
+        if (id != null && (importedAuthorIds.containsKey(id) || pendingAuthorIds.containsKey(id))) {
+            stats.duplicates++; // already imported before a resume, or twice in the file
+            return;
+        }
+        AuthorRow row;
+        try {
+            row = new AuthorRow(id, firstName, lastName, LocalDate.parse(birthDay));
+        } catch (DateTimeException e) {
+            stats.invalid++;
+            return;
+        }
+        if (index < inFlightEnd) {
+            Author stored = storedAuthor(row);
+            if (stored != null) {
+                // written by the batch that was cut off before its checkpoint
+                if (id != null) {
+                    importedAuthorIds.put(id, stored.getAuthorId());
+                }
+                stats.duplicates++;
+                return;
+            }
+        }
+        if (id != null) {
+            pendingAuthorIds.put(id, pendingAuthors.size());
+        }
+        pendingAuthors.add(row);
+    }
+
+    private Author storedAuthor(AuthorRow row) {
+        if (storedAuthors == null) {
+            storedAuthors = new HashMap<>();
+            for (Author author : booksDb.getAuthors()) {
+                storedAuthors.putIfAbsent(authorKey(author.getFirstName(), author.getLastName(), author.getBirthDay()),
+                        author);
+            }
+        }
+        return storedAuthors.get(authorKey(row.firstName(), row.lastName(), row.birthDay()));
+    }
+
+    // names are stored lower-cased by some paths, see BooksDb.retrieveAuthors
+    private static String authorKey(String firstName, String lastName, LocalDate birthDay) {
+        return firstName.toLowerCase(Locale.ROOT) + '\n' + lastName.toLowerCase(Locale.ROOT) + '\n' + birthDay;
+    }
+
+    private void processRelation(Map<String, String> record) {
+        String isbn = field(record, "isbn");
+        String authorId = field(record, "author_id");
+        if (isbn == null || authorId == null) {
+            stats.invalid++;
+            return;
+        }
+        // rows of the current batch have no ids yet, so they are referred to by their place
+        Integer pendingBook = pendingIsbns.get(isbn);
+        Integer pendingAuthor = pendingAuthorIds.get(authorId);
+        Book book = pendingBook != null ? null : booksDb.findBookByIsbn(isbn);
+        Author author = pendingAuthor != null ? null : resolveAuthor(authorId);
+        if (pendingBook == null && book == null || pendingAuthor == null && author == null) {
+            stats.invalid++;
+            return;
+        }
+        int bookRef = pendingBook != null ? batchRef(pendingBook) : book.getBookId();
+        int authorRef = pendingAuthor != null ? batchRef(pendingAuthor) : author.getAuthorId();
+        if (book != null && author != null && booksDb.hasRelation(book, author)) {
+            stats.duplicates++;
+            return;
+        }
+        if (!pendingRelationKeys.add(((long) authorRef << 32) | (bookRef & 0xffffffffL))) {
+            stats.duplicates++;
+            return;
+        }
+        pendingRelations.add(new int[]{authorRef, bookRef});
+    }
+
+    /**
+     * The reference in a pending relation to the row at place in the
+     * pending books or authors: negative, so it is told apart from an id.
+     */
+    static int batchRef(int place) {
+        return -place - 1;
+    }
+
+    /**
+     * Replace the batch references of relations with the ids the rows of
+     * the batch were given.
+     */
+    static List<int[]> resolveRelations(List<int[]> relations, int[] bookIds, int[] authorIds) {
+        List<int[]> resolved = new ArrayList<>(relations.size());
+        for (int[] relation : relations) {
+            int authorId = relation[0] < 0 ? authorIds[-relation[0] - 1] : relation[0];
+            int bookId = relation[1] < 0 ? bookIds[-relation[1] - 1] : relation[1];
+            resolved.add(new int[]{authorId, bookId});
+        }
+        return resolved;
+    }
+
+    private Author resolveAuthor(String sourceId) {
+        Integer id = importedAuthorIds.get(sourceId);
+        if (id != null) {
+            return booksDb.findAuthor(id);
+        }
+        try {
+            return booksDb.findAuthor(Integer.parseInt(sourceId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the pending batch and record in the checkpoint that the first
+     * committedRecords records are done.
+     */
+    private void flush(long committedRecords) throws BooksDbException, IOException {
+        if (pendingBooks.isEmpty() && pendingAuthors.isEmpty() && pendingRelations.isEmpty()) {
+            batchStart = committedRecords;
+            return;
+        }
+        Files.writeString(checkpoint, "batch " + batchStart + " " + committedRecords + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        int[] authorIds = booksDb.importBatch(pendingBooks, pendingAuthors, pendingRelations);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < authorIds.length; i++) {
+            String sourceId = pendingAuthors.get(i).sourceId();
+            if (sourceId != null) {
+                importedAuthorIds.put(sourceId, authorIds[i]);
+                sb.append("author ").append(sourceId).append(' ').append(authorIds[i]).append('\n');
+            }
+        }
+        sb.append("records ").append(committedRecords).append('\n');
+        Files.writeString(checkpoint, sb, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+
+        stats.books += pendingBooks.size();
+        stats.authors += pendingAuthors.size();
+        stats.relations += pendingRelations.size();
+        pendingBooks.clear();
+        pendingIsbns.clear();
+        pendingAuthors.clear();
+        pendingAuthorIds.clear();
+        pendingRelations.clear();
+        pendingRelationKeys.clear();
+        batchStart = committedRecords;
+    }
+
+    /**
+     * Restore the author id mapping from the checkpoint of an earlier run,
+     * and note the records of a batch it was writing when it stopped.
+     *
+     * @return the number of records already imported
+     */
+    private long readCheckpoint() throws IOException {
+        inFlightEnd = 0;
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        long records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(checkpoint, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && parts[0].equals("author")) {
+                    importedAuthorIds.put(parts[1], Integer.parseInt(parts[2]));
+                } else if (parts.length == 2 && parts[0].equals("records")) {
+                    records = Long.parseLong(parts[1]);
+                    inFlightEnd = 0;
+                } else if (parts.length == 3 && parts[0].equals("batch")) {
+                    inFlightEnd = Long.parseLong(parts[2]);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static String field(Map<String, String> record, String name) {
+        String value = record.get(name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
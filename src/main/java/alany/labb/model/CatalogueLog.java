@@ -0,0 +1,573 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * The files of an EmbeddedBooksDb: an append-only log of changes to the
+ * model, and a snapshot of the whole model that the log continues.
+ *
+ * Both are sequences of records, each
+ * <pre>
+ *     int length, int crc, byte type, fields
+ * </pre>
+ * where length counts the type and fields and crc is their CRC-32C. Ints
+ * and longs are big-endian, strings are an int length and UTF-8 bytes.
+ * A book is id, isbn, title, published (epoch day), genre and catalogue
+ * rating; an author is id, first name, last name and birthday (epoch day);
+ * a relation is author id and book id; a rating is user, book id and rating.
+ *
+ * The log is split into generations, log-N.dat. A snapshot of generation N,
+ * snapshot.dat, holds the model as it was when log N was started, and ends
+ * with an end record counting its records; it is written to a temporary
+ * file and renamed once complete, after which the logs before N are
+ * deleted. Opening reads the snapshot and replays the logs from its
+ * generation on. Replay of a log stops at the first record that is cut off
+ * or fails its checksum, which is where a crash interrupted a write; new
+ * changes then go to a new generation, so the damaged tail is never
+ * followed by valid records in the same file.
+ *
+ * Both files are read whole into heap buffers, not mapped, as a mapping
+ * holds its file open until it is collected, which on Windows keeps the
+ * file from being renamed or deleted. Appends are written to the file at
+ * once, so they survive a crash of the process, and are forced to the disk
+ * by sync, or by every append if syncEachWrite is set. An append that
+ * fails is cut off the log again, or if that fails too the log moves on to
+ * a new generation, so a torn record is never followed by later ones.
+ */
+class CatalogueLog implements ModelJournal {
+    private static final int LOG_MAGIC = 0x424B4C47; // BKLG
+    private static final int SNAPSHOT_MAGIC = 0x424B534E; // BKSN
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 16; // magic, version, generation
+    private static final int RECORD_HEADER = 8; // length, crc
+    private static final int MAX_RECORD = 1 << 24;
+    private static final long MIN_COMPACT_BYTES = 16L << 20;
+
+    private static final byte END = 0;
+    private static final byte BOOK = 1;
+    private static final byte AUTHOR = 2;
+    private static final byte RELATION = 3;
+    private static final byte RATING = 4;
+
+    private static final String SNAPSHOT = "snapshot.dat";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final String LOG_PREFIX = "log-";
+    private static final String LOG_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final Encoder encoder = new Encoder(1 << 12);
+    private FileChannel log;
+    private long generation;
+    private long checkpointGeneration;
+    private long logBytes; // in the logs since the snapshot
+    private long snapshotBytes;
+    private boolean syncEachWrite;
+
+    CatalogueLog(Path directory) {
+        this.directory = directory;
+    }
+
+    synchronized void setSyncEachWrite(boolean syncEachWrite) {
+        this.syncEachWrite = syncEachWrite;
+    }
+
+    /**
+     * Read the snapshot and replay the logs, and open the log for appends.
+     *
+     * @return the stored model
+     */
+    synchronized State open() throws IOException {
+        Files.createDirectories(directory);
+        Loader loader = new Loader();
+        long snapshotGeneration = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            snapshotGeneration = readSnapshot(snapshot, loader);
+            snapshotBytes = Files.size(snapshot);
+        }
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_TEMP));
+
+        long last = -1;
+        long lastEnd = 0;
+        boolean lastClean = false;
+        for (long g : logGenerations()) {
+            Path file = logFile(g);
+            if (g < snapshotGeneration) {
+                Files.delete(file); // left by a crash after the snapshot was written
+                continue;
+            }
+            long size = Files.size(file);
+            lastEnd = replay(file, g, loader);
+            lastClean = lastEnd == size && lastEnd >= FILE_HEADER;
+            last = g;
+            logBytes += size;
+        }
+        if (last >= 0 && lastClean) {
+            generation = last;
+            log = FileChannel.open(logFile(last), StandardOpenOption.WRITE);
+            log.position(lastEnd);
+        } else {
+            startLog(Math.max(snapshotGeneration, last + 1));
+        }
+        return loader.state();
+    }
+
+    synchronized void close() throws IOException {
+        if (log != null) {
+            log.force(false);
+            log.close();
+            log = null;
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (log != null) {
+            log.force(false);
+        }
+    }
+
+    /**
+     * @return whether the logs have grown past the snapshot, so a new snapshot would shorten the next open
+     */
+    synchronized boolean needsCompaction() {
+        return logBytes > Math.max(MIN_COMPACT_BYTES, snapshotBytes);
+    }
+
+    @Override
+    public synchronized void book(Book book) throws IOException {
+        append(out -> encodeBook(out, book));
+    }
+
+    @Override
+    public synchronized void author(Author author) throws IOException {
+        append(out -> encodeAuthor(out, author));
+    }
+
+    @Override
+    public synchronized void relation(int authorId, int bookId) throws IOException {
+        append(out -> out.begin(RELATION).putInt(authorId).putInt(bookId).end());
+    }
+
+    @Override
+    public synchronized void rating(String user, int bookId, int rating) throws IOException {
+        append(out -> out.begin(RATING).putString(user).putInt(bookId).putInt(rating).end());
+    }
+
+    @Override
+    public synchronized void checkpoint() throws IOException {
+        log.force(false);
+        log.close();
+        startLog(generation + 1);
+        checkpointGeneration = generation;
+    }
+
+    /**
+     * Write a snapshot of a state captured with BooksDb.captureState, which
+     * replaces the logs started before it.
+     */
+    void writeSnapshot(State state) throws IOException {
+        long snapshotGeneration;
+        synchronized (this) {
+            snapshotGeneration = checkpointGeneration;
+        }
+        Path temp = directory.resolve(SNAPSHOT_TEMP);
+        Encoder out = new Encoder(1 << 20);
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, fileHeader(SNAPSHOT_MAGIC, snapshotGeneration));
+            for (Book book : state.books()) {
+                encodeBook(out, book);
+                records++;
+                out.drainIfFull(channel);
+            }
+            for (Author author : state.authors()) {
+                encodeAuthor(out, author);
+                records++;
+                out.drainIfFull(channel);
+            }
+            int[] relations = state.relations();
+            for (int i = 0; i + 1 < relations.length; i += 2) {
+                out.begin(RELATION).putInt(relations[i]).putInt(relations[i + 1]).end();
+                records++;
+                out.drainIfFull(channel);
+            }
+            for (Map.Entry<UserRatings.Key, Integer> rating : state.ratings().entrySet()) {
+                out.begin(RATING).putString(rating.getKey().user()).putInt(rating.getKey().bookId())
+                        .putInt(rating.getValue()).end();
+                records++;
+                out.drainIfFull(channel);
+            }
+            out.begin(END).putLong(records).end();
+            out.drain(channel);
+            channel.force(true);
+        }
+        Path snapshot = directory.resolve(SNAPSHOT);
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+
+        synchronized (this) {
+            snapshotBytes = Files.size(snapshot);
+            logBytes = log.size();
+            for (long g : logGenerations()) {
+                if (g < snapshotGeneration) {
+                    Files.delete(logFile(g));
+                }
+            }
+        }
+    }
+
+    private interface Encoding {
+        void encode(Encoder out) throws IOException;
+    }
+
+    /**
+     * Encode one record and append it to the log. The encoder is left empty
+     * either way, so a record that fails to encode is not written with the next.
+     */
+    private void append(Encoding encoding) throws IOException {
+        int length;
+        try {
+            encoding.encode(encoder);
+            ByteBuffer record = encoder.flip();
+            length = record.remaining();
+            long recordStart = log.position();
+            try {
+                writeFully(log, record);
+            } catch (IOException e) {
+                dropTornRecord(recordStart, e);
+                throw e;
+            }
+        } finally {
+            encoder.clear();
+        }
+        logBytes += length;
+        if (syncEachWrite) {
+            log.force(false);
+        }
+    }
+
+    /**
+     * Cut the log back to where a failed append started, or start a new
+     * generation if it cannot be cut, so replay stops at the torn record
+     * only after the last change that was made.
+     */
+    private void dropTornRecord(long recordStart, IOException failure) {
+        try {
+            log.truncate(recordStart);
+            log.position(recordStart);
+        } catch (IOException truncateFailed) {
+            failure.addSuppressed(truncateFailed);
+            try {
+                log.close();
+                startLog(generation + 1);
+            } catch (IOException rotateFailed) {
+                failure.addSuppressed(rotateFailed);
+            }
+        }
+    }
+
+    private void startLog(long newGeneration) throws IOException {
+        generation = newGeneration;
+        log = FileChannel.open(logFile(newGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writeFully(log, fileHeader(LOG_MAGIC, newGeneration));
+        log.force(false);
+        syncDirectory();
+        logBytes += FILE_HEADER;
+    }
+
+    /**
+     * Make renames and new files in the directory durable, where the
+     * platform allows opening a directory.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not supported on e.g. Windows, where the rename itself is durable
+        }
+    }
+
+    private Path logFile(long g) {
+        return directory.resolve(LOG_PREFIX + g + LOG_SUFFIX);
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(LOG_PREFIX.length(),
+                            name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private static ByteBuffer fileHeader(int magic, long generation) {
+        return ByteBuffer.allocate(FILE_HEADER).putInt(magic).putInt(VERSION).putLong(generation).flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void encodeBook(Encoder out, Book book) throws IOException {
+        if (book.getPublished() == null) {
+            throw new IOException("Book " + book.getIsbn() + " has no publish date, which the log needs");
+        }
+        out.begin(BOOK).putInt(book.getBookId()).putString(book.getIsbn()).putString(book.getTitle())
+                .putLong(book.getPublished().toLocalDate().toEpochDay()).putString(book.getGenre().name())
+                .putInt(book.getCatalogueRating()).end();
+    }
+
+    private static void encodeAuthor(Encoder out, Author author) {
+        out.begin(AUTHOR).putInt(author.getAuthorId()).putString(author.getFirstName())
+                .putString(author.getLastName()).putLong(author.getBirthDay().toEpochDay()).end();
+    }
+
+    /**
+     * @return the generation of the snapshot
+     */
+    private static long readSnapshot(Path file, Loader loader) throws IOException {
+        ByteBuffer buffer = readFile(file);
+        if (buffer.remaining() < FILE_HEADER || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a catalogue snapshot: " + file);
+        }
+        long snapshotGeneration = buffer.getLong();
+        long records = 0;
+        CRC32C crc = new CRC32C();
+        while (true) {
+            byte type = nextRecord(buffer, crc);
+            if (type < 0) {
+                throw new IOException("Damaged catalogue snapshot " + file + " after " + records + " records");
+            }
+            if (type == END) {
+                if (buffer.getLong() != records) {
+                    throw new IOException("Incomplete catalogue snapshot " + file);
+                }
+                return snapshotGeneration;
+            }
+            loader.read(type, buffer);
+            records++;
+        }
+    }
+
+    /**
+     * @return the position after the last intact record
+     */
+    private static long replay(Path file, long expectedGeneration, Loader loader) throws IOException {
+        ByteBuffer buffer = readFile(file);
+        if (buffer.remaining() < FILE_HEADER || buffer.getInt() != LOG_MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != expectedGeneration) {
+            return 0; // cut off while being created
+        }
+        CRC32C crc = new CRC32C();
+        while (true) {
+            int start = buffer.position();
+            byte type = nextRecord(buffer, crc);
+            if (type <= END) {
+                return start;
+            }
+            loader.read(type, buffer);
+        }
+    }
+
+    private static ByteBuffer readFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE - 8) {
+                throw new IOException("Catalogue file too large to read: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break; // shorter than its size said, which replay treats as a cut off tail
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Check the record at the buffer's position and move to its fields.
+     *
+     * @return its type, or -1 if it is cut off or damaged
+     */
+    private static byte nextRecord(ByteBuffer buffer, CRC32C crc) {
+        if (buffer.remaining() < RECORD_HEADER + 1) {
+            return -1;
+        }
+        int length = buffer.getInt();
+        int expected = buffer.getInt();
+        if (length < 1 || length > MAX_RECORD || length > buffer.remaining()) {
+            return -1;
+        }
+        int start = buffer.position();
+        crc.reset();
+        crc.update(buffer.slice(start, length));
+        if ((int) crc.getValue() != expected) {
+            return -1;
+        }
+        return buffer.get();
+    }
+
+    /**
+     * Folds snapshot and log records into a State.
+     */
+    private static class Loader {
+        private final List<Book> books = new ArrayList<>();
+        private final List<Author> authors = new ArrayList<>();
+        private final Map<UserRatings.Key, Integer> ratings = new HashMap<>();
+        private final Map<String, Genre> genres = new HashMap<>();
+        private final Map<Long, Date> dates = new HashMap<>();
+        private int[] relations = new int[1024];
+        private int relationInts;
+
+        void read(byte type, ByteBuffer in) throws IOException {
+            switch (type) {
+                case BOOK -> books.add(new Book(in.getInt(), getString(in), getString(in),
+                        date(in.getLong()),
+                        genres.computeIfAbsent(getString(in), Genre::valueOf), in.getInt()));
+                case AUTHOR -> authors.add(new Author(in.getInt(), getString(in), getString(in),
+                        LocalDate.ofEpochDay(in.getLong())));
+                case RELATION -> {
+                    if (relationInts + 2 > relations.length) {
+                        relations = Arrays.copyOf(relations, relations.length * 2);
+                    }
+                    relations[relationInts++] = in.getInt();
+                    relations[relationInts++] = in.getInt();
+                }
+                case RATING -> {
+                    String user = getString(in);
+                    ratings.put(new UserRatings.Key(user, in.getInt()), in.getInt());
+                }
+                default -> throw new IOException("Unknown catalogue record type " + type);
+            }
+        }
+
+        /**
+         * Books share a Date per day, which also saves converting each one.
+         */
+        private Date date(long epochDay) {
+            return dates.computeIfAbsent(epochDay, day -> Date.valueOf(LocalDate.ofEpochDay(day)));
+        }
+
+        State state() {
+            return new State(books, authors, Arrays.copyOf(relations, relationInts), ratings);
+        }
+
+        private static String getString(ByteBuffer in) {
+            int length = in.getInt();
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Builds records in a direct buffer, to be written to a channel.
+     */
+    private static class Encoder {
+        private ByteBuffer buffer;
+        private int recordStart;
+        private final CRC32C crc = new CRC32C();
+
+        Encoder(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        Encoder begin(byte type) {
+            ensure(RECORD_HEADER + 1);
+            recordStart = buffer.position();
+            buffer.position(recordStart + RECORD_HEADER);
+            buffer.put(type);
+            return this;
+        }
+
+        Encoder putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        Encoder putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        Encoder putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            return this;
+        }
+
+        void end() {
+            int end = buffer.position();
+            int length = end - recordStart - RECORD_HEADER;
+            crc.reset();
+            crc.update(buffer.slice(recordStart + RECORD_HEADER, length));
+            buffer.putInt(recordStart, length);
+            buffer.putInt(recordStart + 4, (int) crc.getValue());
+        }
+
+        ByteBuffer flip() {
+            return buffer.flip();
+        }
+
+        void clear() {
+            buffer.clear();
+        }
+
+        void drainIfFull(FileChannel channel) throws IOException {
+            if (buffer.position() > buffer.capacity() / 2) {
+                drain(channel);
+            }
+        }
+
+        void drain(FileChannel channel) throws IOException {
+            writeFully(channel, buffer.flip());
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                larger.put(buffer.flip());
+                buffer = larger;
+            }
+        }
+    }
+}
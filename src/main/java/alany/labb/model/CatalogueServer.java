@@ -0,0 +1,526 @@
+package alany.labb.model;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves one BooksDb, with its indexes and pending writes, to many
+ * RemoteBooksDb clients over HTTP, so each client does not need its own
+ * copy of the catalogue.
+ *
+ * Every operation of IBooksDb is one request, with the arguments as query
+ * parameters. Requests that change the catalogue must be POSTs without an
+ * Origin header, so a web page cannot make a browser send one. There is
+ * no authentication, so the server should only listen on an address its
+ * clients are trusted on; ServerMain listens on loopback unless told
+ * otherwise. Import and export paths are resolved under a file root given
+ * to the server, and are refused if they lead out of it; without a root,
+ * import and export are off.
+ *
+ * The response is JSON Lines of flat records, each with a type:
+ * <ul>
+ *     <li>author: id, firstName, lastName, birthDay</li>
+ *     <li>book: id, isbn, title, published, genre, rating (the catalogue
+ *     rating), ratings, rating_sum and histogram (the users' ratings, the
+ *     histogram as five counts separated by spaces), and authors, the ids of
+ *     its authors separated by spaces; an author record comes before the
+ *     first book that refers to it</li>
+ *     <li>chunk: scanned, total; ends one chunk of a progressive search</li>
+ *     <li>progress and result: the counters of an import, or the result of
+ *     another operation</li>
+ *     <li>error: message; the operation failed</li>
+ * </ul>
+ * A response is only sent once the operation has produced its first block
+ * of output, so a request that fails before, e.g. on a missing or invalid
+ * parameter, gets an error status and a single error record. A failure
+ * after that, midway through a search, can only end the records with an
+ * error record. Search results are streamed and flushed per chunk, so a
+ * client can stop a search by closing the response.
+ *
+ * Each request runs on its own virtual thread when the runtime has them
+ * (Java 21, or Java 20 with --enable-preview), otherwise on a cached thread
+ * pool. Clients wait for changes with a long poll on /changes, which parks
+ * on a ReentrantLock condition rather than a monitor so a waiting virtual
+ * thread does not hold on to its carrier thread.
+ */
+public class CatalogueServer {
+    private static final System.Logger LOG = System.getLogger(CatalogueServer.class.getName());
+    private static final long MAX_WAIT_MILLIS = 30000;
+
+    private final BooksDb booksDb;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path fileRoot; // import and export paths must be under it, null for none
+
+    // bumped on every change to the model, see /changes
+    private final ReentrantLock versionLock = new ReentrantLock();
+    private final Condition versionChanged = versionLock.newCondition();
+    private long version;
+
+    private interface Handler {
+        void handle(Map<String, String> params, RecordWriter out) throws BooksDbException, IOException;
+    }
+
+    /**
+     * A request that fails with the given HTTP status.
+     */
+    private static class HttpError extends BooksDbException {
+        final int status;
+
+        HttpError(int status, String msg) {
+            super(msg);
+            this.status = status;
+        }
+    }
+
+    /**
+     * A server without import and export.
+     */
+    public CatalogueServer(BooksDb booksDb, InetSocketAddress address) throws IOException {
+        this(booksDb, address, null);
+    }
+
+    /**
+     * @param fileRoot the directory import and export paths are resolved in, or null to turn them off
+     */
+    public CatalogueServer(BooksDb booksDb, InetSocketAddress address, Path fileRoot) throws IOException {
+        this.booksDb = booksDb;
+        this.fileRoot = fileRoot == null ? null : fileRoot.toAbsolutePath().normalize();
+        // without TCP_NODELAY the last chunk of each response waits for a delayed ACK, about 40 ms;
+        // read once when the JDK server is first used, so it must be set before create
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(address, 0);
+        this.executor = requestExecutor();
+        server.setExecutor(executor);
+        booksDb.addChangeListener(this::changed);
+
+        handle("/books", (params, out) -> writeBooks(out, booksDb.getBooks()));
+        handle("/booksById", (params, out) -> {
+            Set<Integer> sentAuthors = new HashSet<>();
+            for (String id : param(params, "ids").split(" ")) {
+                if (!id.isEmpty()) {
+                    Book book = booksDb.findBook(Integer.parseInt(id));
+                    if (book != null) {
+                        writeBook(out, book, sentAuthors);
+                    }
+                }
+            }
+        });
+        handle("/authors", (params, out) -> {
+            for (Author author : booksDb.getAuthors()) {
+                writeAuthor(out, author);
+            }
+        });
+        handle("/findBooks", (params, out) -> writeBooks(out, booksDb.findBooks(
+                param(params, "q"), Integer.parseInt(param(params, "limit")))));
+        handle("/searchAuthors", (params, out) -> {
+            for (Author author : booksDb.searchAuthors(param(params, "q"), Integer.parseInt(param(params, "limit")))) {
+                writeAuthor(out, author);
+            }
+        });
+        handle("/suggest", (params, out) -> {
+            Suggestion[] suggestions = new Suggestion[Math.min(AutocompleteIndex.TOP,
+                    Integer.parseInt(param(params, "limit")))];
+            for (int i = 0; i < suggestions.length; i++) {
+                suggestions[i] = new Suggestion();
+            }
+            int size = booksDb.suggest(param(params, "q"), suggestions);
+            for (int i = 0; i < size; i++) {
+                out.begin("suggestion")
+                        .field("text", suggestions[i].getText())
+                        .field("mode", suggestions[i].getMode().name())
+                        .end();
+            }
+        });
+        handle("/search", this::search);
+        handle("/top", (params, out) -> writeBooks(out, booksDb.searchTopBooks(
+                SearchMode.valueOf(param(params, "mode")), param(params, "q"),
+                BookOrder.valueOf(param(params, "order")), Integer.parseInt(param(params, "k")))));
+        handle("/rating", (params, out) -> writeBooks(out, booksDb.searchBooksByRatingRange(
+                Integer.parseInt(param(params, "min")), Integer.parseInt(param(params, "max")))));
+        handle("/published", (params, out) -> writeBooks(out, booksDb.searchBooksByPublished(
+                date(params.get("from")), date(params.get("to")))));
+        mutation("/rate", (params, out) -> {
+            Book book = booksDb.findBook(Integer.parseInt(param(params, "book")));
+            if (book == null) {
+                throw new HttpError(404, "No book with id " + params.get("book"));
+            }
+            String user = params.get("user");
+            booksDb.rateBook(book, user == null ? booksDb.getUser() : user, Integer.parseInt(param(params, "rating")));
+            changed();
+            writeBook(out, book, new HashSet<>()); // with its new aggregates
+        });
+        mutation("/book", (params, out) -> {
+            booksDb.createBook(param(params, "title"), param(params, "isbn"), param(params, "genre"),
+                    param(params, "rating"));
+            changed();
+        });
+        mutation("/author", (params, out) -> {
+            booksDb.createAuthor(param(params, "firstName"), param(params, "lastName"),
+                    LocalDate.parse(param(params, "birthDay")));
+            changed();
+        });
+        mutation("/relation", (params, out) -> {
+            Book book = booksDb.findBook(Integer.parseInt(param(params, "book")));
+            Author author = booksDb.findAuthor(Integer.parseInt(param(params, "author")));
+            if (book == null || author == null) {
+                throw new HttpError(404, "No such book or author");
+            }
+            boolean created = booksDb.createRelation(book, author);
+            if (created) {
+                changed();
+            }
+            out.begin("result").field("created", created).end();
+        });
+        mutation("/update", (params, out) -> booksDb.updateDb());
+        mutation("/import", (params, out) -> {
+            ImportStats stats = booksDb.importCatalogue(underRoot(param(params, "file")), progress -> {
+                try {
+                    writeStats(out, "progress", progress);
+                    out.flush();
+                } catch (IOException e) {
+                    // the client has gone, the import carries on
+                }
+            });
+            changed();
+            writeStats(out, "result", stats);
+        });
+        mutation("/export", (params, out) -> {
+            long rows = booksDb.exportCatalogue(underRoot(param(params, "dir")),
+                    ExportFormat.valueOf(param(params, "format")));
+            out.begin("result").field("rows", rows).end();
+        });
+        handle("/changes", (params, out) -> out.begin("result")
+                .field("version", awaitChange(Long.parseLong(param(params, "since")),
+                        Math.min(MAX_WAIT_MILLIS, Long.parseLong(params.getOrDefault("wait", "0")))))
+                .end());
+    }
+
+    public void start() {
+        server.start();
+        LOG.log(System.Logger.Level.INFO, "Serving the catalogue on " + server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * A virtual thread per request when available, else a cached pool. Looked
+     * up reflectively because virtual threads are a preview API in Java 20.
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.log(System.Logger.Level.INFO, "Virtual threads are not available, using a thread pool");
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "CatalogueServer request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void search(Map<String, String> params, RecordWriter out) throws BooksDbException, IOException {
+        Set<Integer> sentAuthors = new HashSet<>();
+        int chunkSize = Math.max(1, Integer.parseInt(params.getOrDefault("chunk", "256")));
+        IOException[] failure = new IOException[1];
+        booksDb.searchBooks(SearchMode.valueOf(param(params, "mode")), param(params, "q"), chunkSize,
+                (chunk, scanned, total) -> {
+                    try {
+                        for (Book book : chunk) {
+                            writeBook(out, book, sentAuthors);
+                        }
+                        out.begin("chunk").field("scanned", scanned).field("total", total).end();
+                        out.flush();
+                        return true;
+                    } catch (IOException e) {
+                        failure[0] = e; // the client closed the response, stop searching
+                        return false;
+                    }
+                });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Serve a read, by GET or POST.
+     */
+    private void handle(String path, Handler handler) {
+        server.createContext(path, exchange -> serve(exchange, handler));
+    }
+
+    /**
+     * Serve a change to the catalogue, which only a POST from outside a
+     * browser page may make.
+     */
+    private void mutation(String path, Handler handler) {
+        server.createContext(path, exchange -> serve(exchange, (params, out) -> {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                throw new HttpError(405, path + " changes the catalogue and must be a POST");
+            }
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                throw new HttpError(403, "Requests from web pages may not change the catalogue");
+            }
+            handler.handle(params, out);
+        }));
+    }
+
+    /**
+     * The path of an import or export, resolved in the file root.
+     */
+    private Path underRoot(String name) throws BooksDbException {
+        if (fileRoot == null) {
+            throw new HttpError(403, "Import and export are turned off on this server");
+        }
+        try {
+            Path path = fileRoot.resolve(name).normalize();
+            // a link inside the root may lead out of it, so compare real paths as far as they exist
+            Path existing = path;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (!path.startsWith(fileRoot)
+                    || existing != null && !existing.toRealPath().startsWith(fileRoot.toRealPath())) {
+                throw new HttpError(403, name + " is outside the server's file root");
+            }
+            return path;
+        } catch (InvalidPathException | IOException e) {
+            throw new HttpError(400, "Invalid path " + name);
+        }
+    }
+
+    private void serve(HttpExchange exchange, Handler handler) {
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            // the status is only sent with the first block of output, so an early failure can still set it
+            DeferredBody body = new DeferredBody(exchange);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 1 << 16);
+            RecordWriter out = new RecordWriter(writer);
+            try {
+                handler.handle(query(exchange.getRequestURI().getRawQuery()), out);
+            } catch (BooksDbException | RuntimeException e) {
+                if (body.started) {
+                    out.begin("error").field("message", String.valueOf(e.getMessage())).end();
+                } else {
+                    // drop whatever the handler buffered before it failed
+                    exchange.sendResponseHeaders(status(e), 0);
+                    writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+                    new RecordWriter(writer).begin("error").field("message", String.valueOf(e.getMessage())).end();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            LOG.log(System.Logger.Level.DEBUG, "Client closed " + exchange.getRequestURI(), e);
+        }
+    }
+
+    /**
+     * The status of a request that failed with e: a bad parameter is the
+     * client's fault, and so is a change the model refused without an
+     * underlying failure, e.g. a duplicate ISBN.
+     */
+    private static int status(Exception e) {
+        if (e instanceof HttpError) {
+            return ((HttpError) e).status;
+        }
+        if (e instanceof IllegalArgumentException || e instanceof DateTimeException) {
+            return 400;
+        }
+        if (e instanceof BooksDbException && e.getCause() == null) {
+            return 400;
+        }
+        return 500;
+    }
+
+    /**
+     * The response body, which sends the 200 status before its first write.
+     */
+    private static class DeferredBody extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream body;
+        boolean started;
+
+        DeferredBody(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        private OutputStream body() throws IOException {
+            if (!started) {
+                started = true;
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            body().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            body().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            body().flush();
+        }
+    }
+
+    private void changed() {
+        versionLock.lock();
+        try {
+            version++;
+            versionChanged.signalAll();
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the version is past since, or until the wait is over.
+     *
+     * @return the current version
+     */
+    private long awaitChange(long since, long waitMillis) {
+        versionLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (version <= since && nanos > 0) {
+                nanos = versionChanged.awaitNanos(nanos);
+            }
+            return version;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return version;
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    private static void writeBooks(RecordWriter out, List<Book> books) throws IOException {
+        Set<Integer> sentAuthors = new HashSet<>();
+        for (Book book : books) {
+            writeBook(out, book, sentAuthors);
+        }
+    }
+
+    private static void writeBook(RecordWriter out, Book book, Set<Integer> sentAuthors) throws IOException {
+        StringBuilder authorIds = new StringBuilder();
+        for (Author author : book.getAuthors()) {
+            if (sentAuthors.add(author.getAuthorId())) {
+                writeAuthor(out, author);
+            }
+            if (authorIds.length() > 0) {
+                authorIds.append(' ');
+            }
+            authorIds.append(author.getAuthorId());
+        }
+        RatingStats stats = book.getRatingStats();
+        out.begin("book")
+                .field("id", book.getBookId())
+                .field("isbn", book.getIsbn())
+                .field("title", book.getTitle());
+        if (book.getPublished() != null) {
+            out.field("published", book.getPublished().toString()); // left out for an undated book
+        }
+        out.field("genre", book.getGenre().name())
+                .field("rating", book.getCatalogueRating())
+                .field("ratings", stats.getCount())
+                .field("rating_sum", stats.getSum())
+                .field("histogram", stats.histogramString())
+                .field("authors", authorIds.toString())
+                .end();
+    }
+
+    private static void writeAuthor(RecordWriter out, Author author) throws IOException {
+        out.begin("author")
+                .field("id", author.getAuthorId())
+                .field("firstName", author.getFirstName())
+                .field("lastName", author.getLastName())
+                .field("birthDay", author.getBirthDay().toString())
+                .end();
+    }
+
+    private static void writeStats(RecordWriter out, String type, ImportStats stats) throws IOException {
+        out.begin(type)
+                .field("records", stats.records)
+                .field("books", stats.books)
+                .field("authors", stats.authors)
+                .field("relations", stats.relations)
+                .field("duplicates", stats.duplicates)
+                .field("invalid", stats.invalid)
+                .field("bytesRead", stats.bytesRead)
+                .field("totalBytes", stats.totalBytes)
+                .field("resumedFrom", stats.resumedFrom)
+                .end();
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String param(Map<String, String> params, String name) throws BooksDbException {
+        String value = params.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static LocalDate date(String value) {
+        return value == null || value.isEmpty() ? null : LocalDate.parse(value);
+    }
+}
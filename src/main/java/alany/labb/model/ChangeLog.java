@@ -0,0 +1,231 @@
+package alany.labb.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The change_log table, which records every mutation made by any client
+ * of the database. Clients poll it for entries with a higher id than the
+ * last one they have seen, and apply the changes made by other clients
+ * to their in-memory model.
+ *
+ * Entries are written in the same transaction as the change they record.
+ * An AUTO_INCREMENT id is taken when the entry is inserted, not when its
+ * transaction commits, so an entry may become visible after entries with
+ * higher ids have been read. The ids skipped over by a read are therefore
+ * kept as gaps and asked for again on every poll, until they show up or
+ * are older than any transaction could be; a rolled back transaction
+ * leaves gaps that never fill.
+ *
+ * Entries older than RETENTION_HOURS are deleted by prune. A client that
+ * has not polled for that long is behind, see isBehind, and must load the
+ * tables again to see every change.
+ */
+class ChangeLog {
+    static final int RETENTION_HOURS = 24;
+    private static final long GAP_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final int MAX_GAPS = 10000;
+    private static final int MAX_LISTED_GAPS = 100; // more gaps are asked for as one id range
+    private static final int START_LOOKBACK = 1000; // ids below the latest one checked for gaps at start
+
+    static final String BOOK = "book";
+    static final String AUTHOR = "author";
+    static final String RELATION = "relation";
+    static final String INSERT = "insert";
+    static final String RATE = "rate";
+
+    /**
+     * One change. For relations entityId is the author id and otherId the book id.
+     */
+    record Change(long id, String clientId, String entity, String op, int entityId, int otherId) {
+        Change(String entity, String op, int entityId, int otherId) {
+            this(0, null, entity, op, entityId, otherId);
+        }
+    }
+
+    private final String clientId;
+    private long lastId; // the highest id read
+    private final Map<Long, Long> gaps = new LinkedHashMap<>(); // id to when it was first missed, oldest first
+
+    ChangeLog(String clientId) {
+        this.clientId = clientId;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    void createTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS change_log ("
+                    + "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                    + "client_id VARCHAR(64) NOT NULL, "
+                    + "entity VARCHAR(16) NOT NULL, "
+                    + "op VARCHAR(16) NOT NULL, "
+                    + "entity_id INT NOT NULL, "
+                    + "other_id INT NOT NULL DEFAULT 0, "
+                    + "changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+
+    /**
+     * @return the id of the latest entry, or 0 if the log is empty
+     */
+    long latestId(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM change_log");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Start polling after the latest entry, before the tables are loaded.
+     * Ids missing just below it may belong to transactions that have not
+     * committed yet, whose changes the load may miss, so they are gaps.
+     */
+    void start(Connection connection) throws SQLException {
+        lastId = latestId(connection);
+        gaps.clear();
+        long from = Math.max(0, lastId - START_LOOKBACK);
+        long expected = from + 1;
+        long now = System.currentTimeMillis();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT id FROM change_log WHERE id > ? AND id <= ? ORDER BY id")) {
+            statement.setLong(1, from);
+            statement.setLong(2, lastId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    long id = resultSet.getLong(1);
+                    for (; expected < id; expected++) {
+                        gaps.put(expected, now);
+                    }
+                    expected = id + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append entries for changes made by this client.
+     *
+     * @return the id of the last entry written, or 0 if there were no changes
+     */
+    long record(Connection connection, List<Change> changes) throws SQLException {
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        long lastId = 0;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO change_log (client_id, entity, op, entity_id, other_id) VALUES (?, ?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            for (Change change : changes) {
+                statement.setString(1, clientId);
+                statement.setString(2, change.entity());
+                statement.setString(3, change.op());
+                statement.setInt(4, change.entityId());
+                statement.setInt(5, change.otherId());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                while (keys.next()) {
+                    lastId = Math.max(lastId, keys.getLong(1));
+                }
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Whether entries this client has not read were pruned, so that polling
+     * would miss changes. That is when the oldest entry left is past the
+     * one after the highest id read.
+     */
+    boolean isBehind(Connection connection) throws SQLException {
+        if (lastId == 0) {
+            // started on an empty log, whose next id is unknown
+            return false;
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT MIN(id) FROM change_log");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() && resultSet.getLong(1) > lastId + 1;
+        }
+    }
+
+    /**
+     * @return the entries, by any client, that were not returned before:
+     * those after the highest id read and those that filled a gap, in id order
+     */
+    List<Change> poll(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        Iterator<Long> firstMissed = gaps.values().iterator();
+        while (firstMissed.hasNext() && (now - firstMissed.next() > GAP_TIMEOUT_MILLIS || gaps.size() > MAX_GAPS)) {
+            firstMissed.remove();
+        }
+        // many gaps are asked for by the range from the oldest one, and the entries read before are skipped
+        boolean listed = gaps.size() <= MAX_LISTED_GAPS;
+        StringBuilder sql = new StringBuilder(
+                "SELECT id, client_id, entity, op, entity_id, other_id FROM change_log WHERE id > ?");
+        if (!gaps.isEmpty() && listed) {
+            sql.append(" OR id IN (");
+            for (int i = 0; i < gaps.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+        }
+        sql.append(" ORDER BY id");
+        List<Change> changes = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int parameter = 1;
+            statement.setLong(parameter++, listed ? lastId : gaps.keySet().iterator().next() - 1);
+            if (listed) {
+                for (long gap : gaps.keySet()) {
+                    statement.setLong(parameter++, gap);
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    long id = resultSet.getLong(1);
+                    if (id <= lastId && !gaps.containsKey(id)) {
+                        continue;
+                    }
+                    changes.add(new Change(id, resultSet.getString(2), resultSet.getString(3),
+                            resultSet.getString(4), resultSet.getInt(5), resultSet.getInt(6)));
+                }
+            }
+        }
+        for (Change change : changes) {
+            long id = change.id();
+            if (id > lastId) {
+                for (long missing = Math.max(lastId + 1, id - MAX_GAPS); missing < id; missing++) {
+                    gaps.put(missing, now);
+                }
+                lastId = id;
+            } else {
+                gaps.remove(id);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Delete the entries older than RETENTION_HOURS.
+     *
+     * @return the number of entries deleted
+     */
+    int prune(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM change_log WHERE changed_at < NOW() - INTERVAL ? HOUR")) {
+            statement.setInt(1, RETENTION_HOURS);
+            return statement.executeUpdate();
+        }
+    }
+}
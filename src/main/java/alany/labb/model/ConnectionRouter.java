@@ -0,0 +1,231 @@
+package alany.labb.model;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes BooksDb connections between a primary database and optional read
+ * replicas. Writes always go to the primary. Reads go round-robin to the
+ * replicas that are healthy and fresh, and fall back to the primary.
+ *
+ * Freshness is measured on the change_log table as a lag in time. Every
+ * check interval a background thread samples the primary's latest log id
+ * and each replica's. A replica has caught up with the primary as of the
+ * latest sample time at which the primary's id was no higher than the
+ * replica's id is now, and it is fresh while that time is within the last
+ * maxLagMillis. Under steady writes a replica is never quite level with
+ * the primary, but it stays fresh as long as it is only a little behind.
+ * A read can also require a minimum log id, e.g. the id of the caller's
+ * own last write, so it sees its own writes (read-after-write).
+ *
+ * The checks reuse one connection per database and run on their own
+ * thread, started by the first read and stopped by close, so a read only
+ * looks at the latest results. A replica that fails a check or a connect
+ * is skipped for the down period.
+ *
+ * To try it locally, run two MySQL instances with the second replicating
+ * the first and start Main with
+ * -Dbooks.replicas=jdbc:mysql://localhost:3307/lab1
+ */
+public class ConnectionRouter {
+    private static final System.Logger LOG = System.getLogger(ConnectionRouter.class.getName());
+
+    private final String primaryUrl;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final String user;
+    private final String password;
+    private final AtomicInteger next = new AtomicInteger();
+    private long checkIntervalMillis = 1000;
+    private long maxLagMillis = 5000;
+    private long downMillis = 10000;
+    private ScheduledExecutorService checker; // see startChecks
+    private Connection primaryCheck; // the checker thread's own connection to the primary
+    private final Deque<long[]> primarySamples = new ArrayDeque<>(); // {time, log id}, oldest first, checker only
+
+    private static class Replica {
+        final String url;
+        Connection check; // the checker thread's own connection
+        volatile long position;
+        volatile long caughtUpAt;
+        volatile long downUntil = Long.MIN_VALUE;
+
+        Replica(String url) {
+            this.url = url;
+        }
+    }
+
+    public ConnectionRouter(String primaryUrl, List<String> replicaUrls, String user, String password) {
+        this.primaryUrl = primaryUrl;
+        for (String url : replicaUrls) {
+            replicas.add(new Replica(url));
+        }
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * @param checkIntervalMillis how often each replica's health and lag are checked, from the first read on
+     * @param maxLagMillis how long ago a replica must have been caught up with the primary to be read from
+     * @param downMillis how long a failing replica is skipped
+     */
+    public void setLimits(long checkIntervalMillis, long maxLagMillis, long downMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.maxLagMillis = maxLagMillis;
+        this.downMillis = downMillis;
+    }
+
+    /**
+     * @return a connection to the primary
+     */
+    public Connection write() throws SQLException {
+        return DriverManager.getConnection(primaryUrl, user, password);
+    }
+
+    /**
+     * @param minPosition the change log id the read must see, or 0
+     * @return a connection to a fresh replica, or to the primary if there is none
+     */
+    public Connection read(long minPosition) throws SQLException {
+        int n = replicas.size();
+        if (n > 0) {
+            startChecks();
+        }
+        for (int i = 0; i < n; i++) {
+            Replica replica = replicas.get(Math.floorMod(next.getAndIncrement(), n));
+            if (!usable(replica, minPosition)) {
+                continue;
+            }
+            try {
+                return DriverManager.getConnection(replica.url, user, password);
+            } catch (SQLException e) {
+                markDown(replica, e);
+            }
+        }
+        return write();
+    }
+
+    private boolean usable(Replica replica, long minPosition) {
+        long now = System.currentTimeMillis();
+        return now >= replica.downUntil
+                && replica.position >= minPosition
+                && now - replica.caughtUpAt <= maxLagMillis;
+    }
+
+    private synchronized void startChecks() {
+        if (checker != null) {
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConnectionRouter replica checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkAll, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the checks and close their connections. A later read starts them again.
+     */
+    public synchronized void close() {
+        if (checker == null) {
+            return;
+        }
+        checker.shutdown();
+        try {
+            checker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checker = null;
+        closeQuietly(primaryCheck);
+        primaryCheck = null;
+        primarySamples.clear();
+        for (Replica replica : replicas) {
+            closeQuietly(replica.check);
+            replica.check = null;
+        }
+    }
+
+    /**
+     * Sample the primary's log id, then each replica's, and work out how
+     * long ago each replica was level with the primary. Runs on the checker
+     * thread only.
+     */
+    private void checkAll() {
+        long now = System.currentTimeMillis();
+        try {
+            if (primaryCheck == null) {
+                primaryCheck = write();
+            }
+            primarySamples.addLast(new long[]{now, position(primaryCheck)});
+        } catch (SQLException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to check the primary: " + e.getMessage());
+            closeQuietly(primaryCheck);
+            primaryCheck = null;
+            return; // without a sample of the primary the replicas' lag is unknown
+        }
+        // samples older than the lag limit only tell that a replica is stale, which the oldest one kept tells too
+        while (primarySamples.size() > 1 && now - primarySamples.peekFirst()[0] > maxLagMillis + checkIntervalMillis) {
+            primarySamples.removeFirst();
+        }
+        for (Replica replica : replicas) {
+            if (now < replica.downUntil) {
+                continue;
+            }
+            try {
+                if (replica.check == null) {
+                    replica.check = DriverManager.getConnection(replica.url, user, password);
+                }
+                long position = position(replica.check);
+                replica.position = position;
+                Iterator<long[]> samples = primarySamples.descendingIterator();
+                while (samples.hasNext()) {
+                    long[] sample = samples.next();
+                    if (sample[1] <= position) {
+                        replica.caughtUpAt = Math.max(replica.caughtUpAt, sample[0]);
+                        break;
+                    }
+                }
+            } catch (SQLException e) {
+                closeQuietly(replica.check);
+                replica.check = null;
+                markDown(replica, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // the connection is dropped either way
+            }
+        }
+    }
+
+    private static long position(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM change_log");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private void markDown(Replica replica, SQLException e) {
+        replica.downUntil = System.currentTimeMillis() + downMillis;
+        LOG.log(System.Logger.Level.WARNING, "Replica " + replica.url + " is down for " + downMillis + " ms: "
+                + e.getMessage());
+    }
+}
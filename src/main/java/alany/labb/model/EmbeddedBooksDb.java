@@ -0,0 +1,259 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * An IBooksDb stored in a directory of its own instead of a database, for
+ * use without a network. The catalogue is held in the same in-memory model
+ * and indexes as BooksDb, and every change is appended to a checksummed log
+ * before it is applied; see CatalogueLog for the files.
+ *
+ * A change is in the log file when the call returns, so it survives a
+ * crash of the process, and is forced to the disk within the sync interval,
+ * on updateDb and on disconnect. A sync interval of 0 forces every change,
+ * which makes each write as slow as the disk's flush. In the background and
+ * on disconnect, the log is compacted into a snapshot once it has grown
+ * larger than the last snapshot, which bounds the time to open.
+ */
+public class EmbeddedBooksDb implements IBooksDb {
+    private static final System.Logger LOG = System.getLogger(EmbeddedBooksDb.class.getName());
+
+    private final BooksDb model = new BooksDb((ConnectionRouter) null);
+    private final CatalogueLog log;
+    private final Object compactLock = new Object();
+    private long syncIntervalMillis = 1000;
+    private ScheduledExecutorService syncer;
+
+    /**
+     * @param directory where the catalogue is stored, created if needed
+     */
+    public EmbeddedBooksDb(Path directory) {
+        this.log = new CatalogueLog(directory);
+    }
+
+    /**
+     * Set how often changes are forced to the disk, 0 for every change.
+     * Takes effect on connect.
+     */
+    public void setSyncInterval(long millis) {
+        this.syncIntervalMillis = millis;
+    }
+
+    /**
+     * Set the user whose ratings rateBook(Book, int) records.
+     */
+    public void setUser(String user) {
+        model.setUser(user);
+    }
+
+    @Override
+    public boolean connect() throws BooksDbException {
+        long start = System.nanoTime();
+        try {
+            log.setSyncEachWrite(syncIntervalMillis <= 0);
+            model.restore(log.open());
+        } catch (IOException | RuntimeException e) {
+            throw new BooksDbException("Failed to open the catalogue", e);
+        }
+        model.setJournal(log);
+        LOG.log(System.Logger.Level.INFO, "Opened {0} books in {1} ms",
+                model.getBooks().size(), (System.nanoTime() - start) / 1000000);
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "EmbeddedBooksDb log syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    log.sync();
+                    if (log.needsCompaction()) {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    LOG.log(System.Logger.Level.WARNING, "Failed to write the catalogue log", e);
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() throws BooksDbException {
+        if (syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            syncer = null;
+        }
+        try {
+            if (log.needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to compact the catalogue log", e);
+        } finally {
+            model.setJournal(null);
+            try {
+                log.close();
+            } catch (IOException e) {
+                throw new BooksDbException("Failed to close the catalogue log", e);
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the model and drop the logs it replaces. Changes
+     * are only held while the model is captured, not while it is written.
+     */
+    private void compact() throws IOException {
+        synchronized (compactLock) {
+            long start = System.nanoTime();
+            log.writeSnapshot(model.captureState());
+            LOG.log(System.Logger.Level.DEBUG, "Compacted the catalogue log in {0} ms",
+                    (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    @Override
+    public List<Book> getBooks() {
+        return model.getBooks();
+    }
+
+    @Override
+    public List<Author> getAuthors() {
+        return model.getAuthors();
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return model.searchBooksByTitle(title);
+    }
+
+    @Override
+    public List<Book> searchBooksByISBN(String isbn) throws BooksDbException {
+        return model.searchBooksByISBN(isbn);
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String name) throws BooksDbException {
+        return model.searchBooksByAuthor(name);
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(String rating) throws BooksDbException {
+        return model.searchBooksByRating(rating);
+    }
+
+    @Override
+    public List<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return model.searchBooksByGenre(genre);
+    }
+
+    @Override
+    public List<Book> searchBooksByRatingRange(int min, int max) throws BooksDbException {
+        return model.searchBooksByRatingRange(min, max);
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(LocalDate from, LocalDate to) throws BooksDbException {
+        return model.searchBooksByPublished(from, to);
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return model.searchBooksFuzzy(query);
+    }
+
+    @Override
+    public void searchBooks(SearchMode mode, String searchFor, int chunkSize, SearchListener listener) throws BooksDbException {
+        model.searchBooks(mode, searchFor, chunkSize, listener);
+    }
+
+    @Override
+    public Stream<Book> streamBooks(SearchMode mode, String searchFor) throws BooksDbException {
+        return model.streamBooks(mode, searchFor);
+    }
+
+    @Override
+    public List<Book> searchTopBooks(SearchMode mode, String searchFor, BookOrder order, int k) throws BooksDbException {
+        return model.searchTopBooks(mode, searchFor, order, k);
+    }
+
+    @Override
+    public List<Book> findBooks(String prefix, int limit) throws BooksDbException {
+        return model.findBooks(prefix, limit);
+    }
+
+    @Override
+    public List<Author> searchAuthors(String name, int limit) throws BooksDbException {
+        return model.searchAuthors(name, limit);
+    }
+
+    @Override
+    public int suggest(CharSequence prefix, Suggestion[] out) {
+        return model.suggest(prefix, out);
+    }
+
+    @Override
+    public void rateBook(Book book, int rating) {
+        model.rateBook(book, rating);
+    }
+
+    @Override
+    public void createBook(String title, String isbn, String genre, String rating) throws BooksDbException {
+        model.createBook(title, isbn, genre, rating);
+    }
+
+    @Override
+    public void createAuthor(String firstName, String lastName, LocalDate birthDay) throws BooksDbException {
+        model.createAuthor(firstName, lastName, birthDay);
+    }
+
+    @Override
+    public boolean createRelation(Book book, Author author) {
+        return model.createRelation(book, author);
+    }
+
+    /**
+     * Force the changes so far to the disk, and compact the log if it has
+     * grown large.
+     */
+    @Override
+    public void updateDb() throws BooksDbException {
+        try {
+            log.sync();
+            if (log.needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new BooksDbException("Failed to write the catalogue log", e);
+        }
+    }
+
+    @Override
+    public void addChangeListener(Runnable listener) {
+        model.addChangeListener(listener); // changes only come from this process, so never called
+    }
+
+    @Override
+    public ImportStats importCatalogue(Path file, Consumer<ImportStats> progress) throws BooksDbException {
+        return model.importCatalogue(file, progress);
+    }
+
+    @Override
+    public long exportCatalogue(Path directory, ExportFormat format) throws BooksDbException {
+        return model.exportCatalogue(directory, format);
+    }
+}
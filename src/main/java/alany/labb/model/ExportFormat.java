@@ -0,0 +1,23 @@
+package alany.labb.model;
+
+/**
+ * File formats for catalogue exports, see IBooksDb.exportCatalogue.
+ */
+public enum ExportFormat {
+    /** CSV with a header row, readable by the catalogue import */
+    CSV(".csv"),
+    /** one JSON object per line, readable by the catalogue import */
+    JSON_LINES(".jsonl"),
+    /** compact binary file with the rows stored column by column in row groups, see ExportWriter */
+    COLUMNAR(".col");
+
+    private final String extension;
+
+    ExportFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+}
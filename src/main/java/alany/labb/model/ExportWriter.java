@@ -0,0 +1,405 @@
+package alany.labb.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Writes the rows of one exported table to a file through a FileChannel.
+ *
+ * Values are encoded straight into reusable direct buffers: strings are
+ * escaped and UTF-8 encoded char by char, numbers and dates are written as
+ * digits, so writing a row allocates nothing. A row is written by calling
+ * the field methods in column order between beginRow and endRow.
+ *
+ * The COLUMNAR format is little endian:
+ * <pre>
+ * "BKCOL1" int columnCount
+ * per column: byte type, short nameLength, name (UTF-8)
+ * row groups: int rowCount, then per column: int byteLength, values
+ * int 0 after the last row group
+ * </pre>
+ * Values are int32 for INT, int32 epoch day for DATE, one byte for BYTE,
+ * and a varint length followed by UTF-8 for STRING. A missing DATE is
+ * written as NO_DATE, an empty CSV field, or a JSON null.
+ */
+class ExportWriter implements Closeable {
+    static final byte INT = 1;
+    static final byte STRING = 2;
+    static final byte DATE = 3;
+    static final byte BYTE = 4;
+    /** The COLUMNAR epoch day of a missing date. */
+    static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final int MAX_ROWS_PER_GROUP = 65536;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileChannel channel;
+    private final ExportFormat format;
+    private final byte[][] jsonNames;
+    private final ByteBuffer out;
+    private final ByteBuffer[] columns;
+    private final byte[] digits = new byte[20];
+    private int column;
+    private int groupRows;
+    private long rows;
+
+    /**
+     * @param buffers the direct buffers to write through; index 0 is the output
+     *                buffer, and COLUMNAR also needs one buffer per column after it
+     */
+    ExportWriter(Path file, ExportFormat format, String[] names, byte[] types, ByteBuffer[] buffers) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.format = format;
+        this.out = buffers[0].clear();
+        this.columns = new ByteBuffer[types.length];
+        this.jsonNames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            jsonNames[i] = ((i == 0 ? "{\"" : ",\"") + names[i] + "\":").getBytes(StandardCharsets.UTF_8);
+        }
+
+        switch (format) {
+            case CSV:
+                for (int i = 0; i < names.length; i++) {
+                    if (i > 0) {
+                        put((byte) ',');
+                    }
+                    putText(names[i], false);
+                }
+                put((byte) '\n');
+                break;
+            case COLUMNAR:
+                out.order(ByteOrder.LITTLE_ENDIAN);
+                out.put("BKCOL1".getBytes(StandardCharsets.US_ASCII)).putInt(types.length);
+                for (int i = 0; i < types.length; i++) {
+                    byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+                    out.put(types[i]).putShort((short) name.length).put(name);
+                    columns[i] = buffers[i + 1].clear().order(ByteOrder.LITTLE_ENDIAN);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    void beginRow() throws IOException {
+        column = 0;
+        if (format == ExportFormat.COLUMNAR) {
+            // a row must not be split over two groups, so end the group while every column has headroom
+            for (ByteBuffer buffer : columns) {
+                if (buffer.remaining() < buffer.capacity() / 4) {
+                    flushGroup();
+                    break;
+                }
+            }
+        }
+    }
+
+    void endRow() throws IOException {
+        rows++;
+        switch (format) {
+            case CSV:
+                put((byte) '\n');
+                break;
+            case JSON_LINES:
+                put((byte) '}');
+                put((byte) '\n');
+                break;
+            case COLUMNAR:
+                if (++groupRows == MAX_ROWS_PER_GROUP) {
+                    flushGroup();
+                }
+                break;
+        }
+    }
+
+    void intField(int value) throws IOException {
+        if (format == ExportFormat.COLUMNAR) {
+            column(5).putInt(value);
+        } else {
+            separator();
+            putLong(value);
+        }
+        column++;
+    }
+
+    void byteField(int value) throws IOException {
+        if (format == ExportFormat.COLUMNAR) {
+            column(2).put((byte) value);
+        } else {
+            separator();
+            putLong(value);
+        }
+        column++;
+    }
+
+    /**
+     * @param date the date, or null when there is none
+     */
+    void dateField(LocalDate date) throws IOException {
+        if (format == ExportFormat.COLUMNAR) {
+            column(5).putInt(date == null ? NO_DATE : (int) date.toEpochDay());
+        } else if (date == null) {
+            separator();
+            if (format == ExportFormat.JSON_LINES) {
+                put((byte) 'n');
+                put((byte) 'u');
+                put((byte) 'l');
+                put((byte) 'l');
+            }
+        } else {
+            separator();
+            if (format == ExportFormat.JSON_LINES) {
+                put((byte) '"');
+            }
+            putPadded(date.getYear(), 4);
+            put((byte) '-');
+            putPadded(date.getMonthValue(), 2);
+            put((byte) '-');
+            putPadded(date.getDayOfMonth(), 2);
+            if (format == ExportFormat.JSON_LINES) {
+                put((byte) '"');
+            }
+        }
+        column++;
+    }
+
+    void stringField(String value) throws IOException {
+        if (format == ExportFormat.COLUMNAR) {
+            // worst case 3 bytes per char plus the length
+            ByteBuffer buffer = column(value.length() * 3 + 5);
+            int length = utf8Length(value);
+            while ((length & ~0x7F) != 0) {
+                buffer.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            buffer.put((byte) length);
+            for (int i = 0; i < value.length(); i++) {
+                i = encode(buffer, value, i);
+            }
+        } else {
+            separator();
+            putText(value, format == ExportFormat.JSON_LINES);
+        }
+        column++;
+    }
+
+    void enumField(Enum<?> value) throws IOException {
+        if (format == ExportFormat.COLUMNAR) {
+            byteField(value.ordinal());
+        } else {
+            stringField(value.name());
+        }
+    }
+
+    long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (format == ExportFormat.COLUMNAR) {
+                flushGroup();
+                if (out.remaining() < 4) {
+                    drain();
+                }
+                out.putInt(0);
+            }
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void separator() throws IOException {
+        if (format == ExportFormat.JSON_LINES) {
+            byte[] name = jsonNames[column];
+            if (out.remaining() < name.length) {
+                drain();
+            }
+            out.put(name);
+        } else if (column > 0) {
+            put((byte) ',');
+        }
+    }
+
+    /**
+     * The buffer of the current column, checked to have room for needed more bytes.
+     */
+    private ByteBuffer column(int needed) throws IOException {
+        ByteBuffer buffer = columns[column];
+        if (buffer.remaining() < needed) {
+            throw new IOException("Value too large for the column buffer");
+        }
+        return buffer;
+    }
+
+    private void flushGroup() throws IOException {
+        if (groupRows == 0) {
+            return;
+        }
+        if (out.remaining() < 4) {
+            drain();
+        }
+        out.putInt(groupRows);
+        for (ByteBuffer buffer : columns) {
+            buffer.flip();
+            if (out.remaining() < 4) {
+                drain();
+            }
+            out.putInt(buffer.remaining());
+            drain();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        groupRows = 0;
+    }
+
+    private void putText(String value, boolean json) throws IOException {
+        if (json) {
+            put((byte) '"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    put((byte) '\\');
+                    put((byte) c);
+                } else if (c < 0x20) {
+                    put((byte) '\\');
+                    put((byte) 'u');
+                    put((byte) '0');
+                    put((byte) '0');
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xF]);
+                } else {
+                    i = putChar(value, i);
+                }
+            }
+            put((byte) '"');
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quote) {
+            put((byte) '"');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                put((byte) '"');
+            }
+            i = putChar(value, i);
+        }
+        if (quote) {
+            put((byte) '"');
+        }
+    }
+
+    private int putChar(String value, int i) throws IOException {
+        if (out.remaining() < 4) {
+            drain();
+        }
+        return encode(out, value, i);
+    }
+
+    /**
+     * UTF-8 encode the char at i, or the surrogate pair starting at i.
+     *
+     * @return the index of the last char consumed
+     */
+    private static int encode(ByteBuffer buffer, String value, int i) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, value.charAt(++i));
+            buffer.put((byte) (0xF0 | (cp >> 18)));
+            buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            if (Character.isSurrogate(c)) {
+                c = '?';
+            }
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return i;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void putLong(long value) throws IOException {
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    private void putPadded(int value, int width) throws IOException {
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0 || n < width);
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!out.hasRemaining()) {
+            drain();
+        }
+        out.put(b);
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
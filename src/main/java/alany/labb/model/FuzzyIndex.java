@@ -0,0 +1,310 @@
+package alany.labb.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * A typo tolerant index of the words of book titles and author names.
+ *
+ * Words are normalized: lower-cased, without accents, split on anything
+ * that is not a letter or a digit. A query matches a book when each of its
+ * words is within a few edits (Levenshtein distance) of some word of the
+ * book's title or authors; words shorter than three letters are ignored
+ * unless the query has nothing else. Books are ranked by the sum of the
+ * distances.
+ *
+ * Candidates are found with a symmetric delete index, as in SymSpell: each
+ * word is indexed under every string made by deleting up to MAX_EDITS
+ * letters from its first PREFIX letters, and a query word looks up its own
+ * deletes, so only words sharing a delete with it are compared. The deletes
+ * are stored as int hashes in a chained hash table of int arrays; a hash
+ * collision only adds a candidate, since every candidate is verified with
+ * the real edit distance.
+ *
+ * Words are added as books and relations are added; nothing is removed.
+ * Searches share a read lock, so they run concurrently.
+ */
+class FuzzyIndex {
+    static final int MAX_EDITS = 2;
+    private static final int PREFIX = 7;
+    private static final int MIN_WORD = 3;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the words, by id, and the books each word occurs in
+    private final Map<String, Integer> wordIds = new HashMap<>();
+    private final List<String> words = new ArrayList<>();
+    private final List<List<Book>> wordBooks = new ArrayList<>();
+
+    // delete hash table: heads[hash & mask] is the first entry + 1 of a chain
+    private int[] heads = new int[1 << 10];
+    private int[] entryHash = new int[1 << 10];
+    private int[] entryWord = new int[1 << 10];
+    private int[] entryNext = new int[1 << 10];
+    private int entries;
+
+    void addBook(Book book) {
+        String[] titleWords = split(book.getTitle());
+        lock.writeLock().lock();
+        try {
+            for (String word : titleWords) {
+                add(word, book);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index the name of an author of the book.
+     */
+    void addAuthor(Book book, Author author) {
+        String[] nameWords = split(author.getFirstName() + " " + author.getLastName());
+        lock.writeLock().lock();
+        try {
+            for (String word : nameWords) {
+                add(word, book);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the books matching every word of the query, closest first, then by title
+     */
+    List<Book> search(String query) {
+        String[] queryWords = split(query);
+        List<String> significant = new ArrayList<>();
+        for (String word : queryWords) {
+            if (word.length() >= MIN_WORD) {
+                significant.add(word);
+            }
+        }
+        if (significant.isEmpty()) {
+            significant.addAll(Arrays.asList(queryWords));
+        }
+        if (significant.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<Book, Integer> scores = null;
+        lock.readLock().lock();
+        try {
+            for (String word : significant) {
+                Map<Book, Integer> matches = match(word);
+                if (scores == null) {
+                    scores = matches;
+                } else {
+                    // keep the books that also match this word, adding its distance
+                    Map<Book, Integer> both = new HashMap<>();
+                    for (Map.Entry<Book, Integer> score : scores.entrySet()) {
+                        Integer distance = matches.get(score.getKey());
+                        if (distance != null) {
+                            both.put(score.getKey(), score.getValue() + distance);
+                        }
+                    }
+                    scores = both;
+                }
+                if (scores.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Map.Entry<Book, Integer>> hits = new ArrayList<>(scores.entrySet());
+        hits.sort(Map.Entry.<Book, Integer>comparingByValue()
+                .thenComparing(entry -> entry.getKey().getTitle()));
+        List<Book> result = new ArrayList<>(hits.size());
+        for (Map.Entry<Book, Integer> hit : hits) {
+            result.add(hit.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * @return the books with a word within the allowed distance of word, with the smallest distance
+     */
+    private Map<Book, Integer> match(String word) {
+        int maxDistance = maxDistance(word.length());
+        int[] candidates = new int[16];
+        int n = 0;
+        int prefix = Math.min(PREFIX, word.length());
+        int[] hashes = deleteHashes(word, prefix, maxDistance);
+        for (int hash : hashes) {
+            for (int e = heads[hash & (heads.length - 1)] - 1; e >= 0; e = entryNext[e] - 1) {
+                if (entryHash[e] == hash) {
+                    if (n == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, n * 2);
+                    }
+                    candidates[n++] = entryWord[e];
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, n);
+
+        Map<Book, Integer> matches = new HashMap<>();
+        int[][] rows = new int[2][word.length() + 1];
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && candidates[i] == candidates[i - 1]) {
+                continue;
+            }
+            String candidate = words.get(candidates[i]);
+            if (Math.abs(candidate.length() - word.length()) > maxDistance) {
+                continue;
+            }
+            int distance = distance(word, candidate, maxDistance, rows);
+            if (distance <= maxDistance) {
+                for (Book book : wordBooks.get(candidates[i])) {
+                    matches.merge(book, distance, Math::min);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private void add(String word, Book book) {
+        Integer id = wordIds.get(word);
+        if (id != null) {
+            List<Book> books = wordBooks.get(id);
+            // the same book adds a word again when e.g. it repeats in the title
+            if (books.get(books.size() - 1) != book) {
+                books.add(book);
+            }
+            return;
+        }
+        id = words.size();
+        wordIds.put(word, id);
+        words.add(word);
+        List<Book> books = new ArrayList<>(1);
+        books.add(book);
+        wordBooks.add(books);
+        for (int hash : deleteHashes(word, Math.min(PREFIX, word.length()), MAX_EDITS)) {
+            addEntry(hash, id);
+        }
+    }
+
+    private void addEntry(int hash, int word) {
+        if (entries == entryHash.length) {
+            int capacity = entries * 2;
+            entryHash = Arrays.copyOf(entryHash, capacity);
+            entryWord = Arrays.copyOf(entryWord, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        if (entries >= heads.length) {
+            // rehash to keep the chains short
+            heads = new int[heads.length * 2];
+            for (int e = 0; e < entries; e++) {
+                int slot = entryHash[e] & (heads.length - 1);
+                entryNext[e] = heads[slot];
+                heads[slot] = e + 1;
+            }
+        }
+        int slot = hash & (heads.length - 1);
+        entryHash[entries] = hash;
+        entryWord[entries] = word;
+        entryNext[entries] = heads[slot];
+        heads[slot] = ++entries;
+    }
+
+    /**
+     * The hashes of the strings made by deleting up to edits letters from
+     * the first prefix letters of word, without building the strings.
+     */
+    private static int[] deleteHashes(String word, int prefix, int edits) {
+        int count = 1 + (edits >= 1 ? prefix : 0) + (edits >= 2 ? prefix * (prefix - 1) / 2 : 0);
+        int[] hashes = new int[count];
+        int n = 0;
+        hashes[n++] = hash(word, prefix, -1, -1);
+        if (edits >= 1) {
+            for (int i = 0; i < prefix; i++) {
+                hashes[n++] = hash(word, prefix, i, -1);
+            }
+        }
+        if (edits >= 2) {
+            for (int i = 0; i < prefix; i++) {
+                for (int j = i + 1; j < prefix; j++) {
+                    hashes[n++] = hash(word, prefix, i, j);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private static int hash(String word, int prefix, int skip1, int skip2) {
+        int h = 0;
+        int length = 0;
+        for (int i = 0; i < prefix; i++) {
+            if (i != skip1 && i != skip2) {
+                h = h * 31 + word.charAt(i);
+                length++;
+            }
+        }
+        h ^= length * 0x9E3779B9;
+        // spread the bits, since the table uses the low ones
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Edit distances allowed for a word of the given length: none for very
+     * short words, where one edit changes most of the word.
+     */
+    static int maxDistance(int length) {
+        return length <= 3 ? 0 : length <= 5 ? 1 : MAX_EDITS;
+    }
+
+    static String normalize(String text) {
+        String stripped = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        return SEPARATORS.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    private static String[] split(String text) {
+        String normalized = normalize(text);
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+
+    /**
+     * Levenshtein distance of a and b, or max + 1 once it is known to be
+     * larger than max. rows are two arrays of at least a.length() + 1 ints.
+     */
+    private static int distance(String a, String b, int max, int[][] rows) {
+        int[] previous = rows[0];
+        int[] current = rows[1];
+        int n = a.length();
+        for (int i = 0; i <= n; i++) {
+            previous[i] = i;
+        }
+        for (int j = 1; j <= b.length(); j++) {
+            current[0] = j;
+            int rowMin = j;
+            char c = b.charAt(j - 1);
+            for (int i = 1; i <= n; i++) {
+                int substitute = previous[i - 1] + (a.charAt(i - 1) == c ? 0 : 1);
+                current[i] = Math.min(substitute, Math.min(previous[i], current[i - 1]) + 1);
+                rowMin = Math.min(rowMin, current[i]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[n];
+    }
+}
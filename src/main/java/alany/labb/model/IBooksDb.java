@@ -2,9 +2,12 @@ package alany.labb.model;
 
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * This interface declares methods for querying a Books database.
@@ -29,9 +32,99 @@ public interface IBooksDb {
     public List<Book> searchBooksByAuthor(String name) throws BooksDbException;
     public List<Book> searchBooksByRating(String rating) throws BooksDbException;
     public List<Book> searchBooksByGenre(String genre) throws BooksDbException;
+
+    /**
+     * @return the books rated from min to max inclusive, in ascending rating order
+     */
+    public List<Book> searchBooksByRatingRange(int min, int max) throws BooksDbException;
+
+    /**
+     * @param from the first publish date to include, or null for no lower limit
+     * @param to the last publish date to include, or null for no upper limit
+     * @return the books published in the range, in publish date order
+     */
+    public List<Book> searchBooksByPublished(LocalDate from, LocalDate to) throws BooksDbException;
+
+    /**
+     * Typo tolerant search of titles, title words and author names. Case,
+     * accents and punctuation are ignored, and the more letters the query
+     * has the more edits it may be away from a match.
+     *
+     * @return the matching books, closest match first
+     */
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException;
+
+    /**
+     * Search for books and deliver the matches in chunks of at most chunkSize
+     * books as they are found, instead of as one list when the search is done.
+     * The listener is called on the calling thread and can cancel the search.
+     */
+    public void searchBooks(SearchMode mode, String searchFor, int chunkSize, SearchListener listener) throws BooksDbException;
+
+    /**
+     * A lazy stream of the books matching a search. Books are matched as the
+     * stream is consumed, so short-circuiting operations such as limit or
+     * findFirst stop the search early.
+     */
+    public Stream<Book> streamBooks(SearchMode mode, String searchFor) throws BooksDbException;
+
+    /**
+     * The k best books matching a search, best first, without sorting the
+     * whole result.
+     */
+    public List<Book> searchTopBooks(SearchMode mode, String searchFor, BookOrder order, int k) throws BooksDbException;
+
+    /**
+     * Books whose title or ISBN starts with prefix, ignoring case, sorted
+     * by title, e.g. for a picker.
+     *
+     * @param limit the most books to return
+     */
+    public List<Book> findBooks(String prefix, int limit) throws BooksDbException;
+
+    /**
+     * Authors whose first, last or full name starts with name, ignoring
+     * case, sorted by last name.
+     *
+     * @param limit the most authors to return
+     */
+    public List<Author> searchAuthors(String name, int limit) throws BooksDbException;
+
+    /**
+     * Fill out with the best completions of a prefix of a title, an
+     * author's name or an ISBN, best first, ignoring case. Ranked by rating
+     * and by number of ratings, or of books for authors.
+     *
+     * @return the number of suggestions filled in, at most out.length
+     */
+    public int suggest(CharSequence prefix, Suggestion[] out) throws BooksDbException;
     public void rateBook(Book book, int rating);
-    public void createBook(String title, String isbn, String genre, String rating);
-    public void createAuthor(String firstName, String lastName, LocalDate birthDay);
+    public void createBook(String title, String isbn, String genre, String rating) throws BooksDbException;
+    public void createAuthor(String firstName, String lastName, LocalDate birthDay) throws BooksDbException;
     public boolean createRelation(Book book, Author author);
     public void updateDb() throws BooksDbException;
+
+    /**
+     * Register a listener that is called, on a background thread, after
+     * changes made by other clients have been applied to the model.
+     */
+    public void addChangeListener(Runnable listener);
+
+    /**
+     * Import books, authors and relations from a CSV or JSON file, streaming
+     * the file in batches. See CatalogueImporter for the file format.
+     *
+     * @param file the file to import
+     * @param progress called after every committed batch, may be null
+     * @return the final counts
+     */
+    public ImportStats importCatalogue(Path file, Consumer<ImportStats> progress) throws BooksDbException;
+
+    /**
+     * Export books, authors and relations to the files books, authors and
+     * author_book in a directory, in the given format.
+     *
+     * @return the number of rows written
+     */
+    public long exportCatalogue(Path directory, ExportFormat format) throws BooksDbException;
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package alany.labb.model;
+
+/**
+ * Counters of a running or finished catalogue import.
+ * Instances handed to progress listeners are snapshots and do not change.
+ */
+public class ImportStats {
+    long records;
+    long books;
+    long authors;
+    long relations;
+    long duplicates;
+    long invalid;
+    long bytesRead;
+    long totalBytes;
+    long resumedFrom;
+
+    ImportStats() {
+    }
+
+    ImportStats copy() {
+        ImportStats copy = new ImportStats();
+        copy.records = records;
+        copy.books = books;
+        copy.authors = authors;
+        copy.relations = relations;
+        copy.duplicates = duplicates;
+        copy.invalid = invalid;
+        copy.bytesRead = bytesRead;
+        copy.totalBytes = totalBytes;
+        copy.resumedFrom = resumedFrom;
+        return copy;
+    }
+
+    /** @return the number of records read from the file, including skipped ones */
+    public long getRecords() { return records; }
+    public long getBooks() { return books; }
+    public long getAuthors() { return authors; }
+    public long getRelations() { return relations; }
+    /** @return books whose ISBN already existed and relations that already existed */
+    public long getDuplicates() { return duplicates; }
+    public long getInvalid() { return invalid; }
+    public long getBytesRead() { return bytesRead; }
+    public long getTotalBytes() { return totalBytes; }
+    /** @return the number of records skipped because an earlier run had already imported them */
+    public long getResumedFrom() { return resumedFrom; }
+
+    /**
+     * @return the share of the file read so far, from 0 to 100
+     */
+    public int getPercent() {
+        return totalBytes <= 0 ? 100 : (int) Math.min(100, 100 * bytesRead / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return records + " records (" + getPercent() + "%): " + books + " books, " + authors + " authors, "
+                + relations + " relations imported, " + duplicates + " duplicates, " + invalid + " invalid";
+    }
+}
@@ -0,0 +1,163 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming reader of flat JSON objects. The input may be a JSON array of
+ * objects or a sequence of objects, e.g. JSON Lines. Values must be strings,
+ * numbers, booleans or null; they are all returned as strings, with null as
+ * a missing field. Only the current object is held in memory.
+ */
+class JsonRecordReader implements RecordReader {
+    private final Reader in;
+    private final StringBuilder text = new StringBuilder();
+    private final char[] buffer = new char[8192]; // read in blocks, Reader.read() locks per char
+    private int position;
+    private int limit;
+    private int peeked = -2;
+
+    JsonRecordReader(Reader in) {
+        this.in = in;
+    }
+
+    @Override
+    public Map<String, String> next() throws IOException {
+        int c = skipSeparators();
+        if (c == -1) {
+            return null;
+        }
+        if (c != '{') {
+            throw new IOException("Expected a JSON object but found '" + (char) c + "'");
+        }
+        Map<String, String> record = new HashMap<>();
+        c = skipWhitespace();
+        if (c == '}') {
+            return record;
+        }
+        while (true) {
+            if (c != '"') {
+                throw new IOException("Expected a field name in JSON object");
+            }
+            String name = readString();
+            if (skipWhitespace() != ':') {
+                throw new IOException("Expected ':' after JSON field name " + name);
+            }
+            String value = readValue(skipWhitespace());
+            if (value != null) {
+                record.put(name, value);
+            }
+            c = skipWhitespace();
+            if (c == '}') {
+                return record;
+            }
+            if (c != ',') {
+                throw new IOException("Expected ',' or '}' in JSON object");
+            }
+            c = skipWhitespace();
+        }
+    }
+
+    private String readValue(int c) throws IOException {
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            throw new IOException("Nested JSON values are not supported");
+        }
+        text.setLength(0);
+        while (c != -1 && c != ',' && c != '}' && !Character.isWhitespace(c)) {
+            text.append((char) c);
+            c = read();
+        }
+        peeked = c;
+        String literal = text.toString();
+        if (literal.isEmpty()) {
+            throw new IOException("Missing JSON value");
+        }
+        return literal.equals("null") ? null : literal;
+    }
+
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n': text.append('\n'); break;
+                    case 't': text.append('\t'); break;
+                    case 'r': text.append('\r'); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'u': {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int h = read();
+                            int digit = h < 128 ? Character.digit(h, 16) : -1; // no other scripts' digits
+                            if (digit < 0) {
+                                throw new IOException("Invalid \\u escape in JSON string");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        text.append((char) code);
+                        break;
+                    }
+                    case -1: throw new IOException("Unterminated JSON string");
+                    default: text.append((char) c);
+                }
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Skip whitespace and the array brackets and commas between objects.
+     */
+    private int skipSeparators() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == '[' || c == ']' || c == ',' || Character.isWhitespace(c));
+        return c;
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,41 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives every change a BooksDb makes to its model while it is not
+ * connected to a database, before the change is applied, so the changes
+ * can be stored elsewhere; see EmbeddedBooksDb. A change whose write fails
+ * is not applied.
+ */
+interface ModelJournal {
+    void book(Book book) throws IOException;
+
+    void author(Author author) throws IOException;
+
+    void relation(int authorId, int bookId) throws IOException;
+
+    void rating(String user, int bookId, int rating) throws IOException;
+
+    /**
+     * Make the changes stored so far durable.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Called by BooksDb.captureState at the point it captures; the changes
+     * after it are stored apart from those before.
+     */
+    void checkpoint() throws IOException;
+
+    /**
+     * The whole model at one point between changes, to be stored instead
+     * of the changes that led to it.
+     *
+     * @param relations {author id, book id} pairs, one after the other
+     * @param ratings the users' ratings, by user and book id
+     */
+    record State(List<Book> books, List<Author> authors, int[] relations, Map<UserRatings.Key, Integer> ratings) {}
+}
@@ -0,0 +1,325 @@
+package alany.labb.model;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Optional tracing wrapper for the JDBC objects used by BooksDb.
+ * A traced Connection hands out traced statements, plain, prepared and
+ * callable, each as a proxy of its own interface, which record the SQL
+ * shape, bind count, execution time and row count of every execution. A
+ * plain statement takes its shape from the SQL of each execution. Statistics are aggregated per SQL shape, and executions
+ * slower than the threshold are logged as warnings.
+ *
+ * The per-execution cost is a couple of System.nanoTime calls and a few
+ * LongAdder increments, so the tracer can stay enabled in production.
+ * Individual statements are only logged when the logger is at DEBUG.
+ */
+public class QueryTracer {
+    private static final System.Logger LOG = System.getLogger(QueryTracer.class.getName());
+    private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final int MAX_CACHED_SHAPES = 1024;
+
+    private final long slowThresholdNanos;
+    private final Map<String, StatementStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, String> shapes = new ConcurrentHashMap<>(); // raw SQL to shape, see shape()
+    private final LongAdder roundTrips = new LongAdder();
+
+    /**
+     * @param slowThresholdMillis executions taking longer than this are logged as slow
+     */
+    public QueryTracer(long slowThresholdMillis) {
+        this.slowThresholdNanos = slowThresholdMillis * 1_000_000L;
+    }
+
+    /**
+     * Wrap a connection so that every statement prepared on it is traced.
+     *
+     * @param connection the connection to trace
+     * @return a proxy of the connection
+     */
+    public Connection trace(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(
+                QueryTracer.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new ConnectionHandler(connection));
+    }
+
+    /**
+     * @return the total number of statement executions sent to the database
+     */
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    /**
+     * @return a snapshot of the per-statement statistics, slowest total time first
+     */
+    public List<StatementStats> getStatistics() {
+        List<StatementStats> result = new ArrayList<>(stats.values());
+        result.sort(Comparator.comparingLong(StatementStats::getTotalNanos).reversed());
+        return result;
+    }
+
+    public void reset() {
+        stats.clear();
+        roundTrips.reset();
+    }
+
+    /**
+     * Log the aggregated statistics at INFO.
+     */
+    public void logSummary() {
+        if (!LOG.isLoggable(System.Logger.Level.INFO)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("JDBC statement statistics (" + getRoundTrips() + " round trips)");
+        for (StatementStats s : getStatistics()) {
+            sb.append(System.lineSeparator()).append("  ").append(s);
+        }
+        LOG.log(System.Logger.Level.INFO, sb.toString());
+    }
+
+    /**
+     * Reduce a SQL string to its shape: collapsed whitespace, literals
+     * replaced by '?' and IN lists of any length by IN (?...), so that
+     * statements differing only in values share statistics.
+     */
+    static String shapeOf(String sql) {
+        String shape = LITERALS.matcher(sql).replaceAll("?");
+        shape = IN_LIST.matcher(shape).replaceAll("IN (?...)");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    /**
+     * The shape of sql, cached by the raw SQL. Statements built with
+     * values in them would fill the cache without end, so it is dropped
+     * whenever it gets too big.
+     */
+    private String shape(String sql) {
+        String shape = shapes.get(sql);
+        if (shape == null) {
+            if (shapes.size() >= MAX_CACHED_SHAPES) {
+                shapes.clear();
+            }
+            shape = shapeOf(sql);
+            shapes.put(sql, shape);
+        }
+        return shape;
+    }
+
+    private void record(String shape, int binds, long nanos, long rows) {
+        roundTrips.increment();
+        StatementStats s = stats.computeIfAbsent(shape, StatementStats::new);
+        s.add(nanos, rows);
+        if (nanos >= slowThresholdNanos) {
+            s.slow.increment();
+            LOG.log(System.Logger.Level.WARNING, "Slow statement ({0} ms, {1} binds, {2} rows): {3}",
+                    nanos / 1_000_000, binds, rows, shape);
+        } else if (LOG.isLoggable(System.Logger.Level.DEBUG)) {
+            LOG.log(System.Logger.Level.DEBUG, "{0} us, {1} binds, {2} rows: {3}",
+                    nanos / 1_000, binds, rows, shape);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Aggregated statistics for one SQL shape.
+     */
+    public static class StatementStats {
+        private final String sql;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        StatementStats(String sql) {
+            this.sql = sql;
+        }
+
+        private void add(long nanos, long rowCount) {
+            executions.increment();
+            totalNanos.add(nanos);
+            rows.add(rowCount);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public String getSql() { return sql; }
+        public long getExecutions() { return executions.sum(); }
+        public long getTotalNanos() { return totalNanos.sum(); }
+        public long getMaxNanos() { return maxNanos.get(); }
+        public long getRows() { return rows.sum(); }
+        public long getSlowExecutions() { return slow.sum(); }
+
+        @Override
+        public String toString() {
+            long n = getExecutions();
+            return n + "x, total " + getTotalNanos() / 1_000_000 + " ms, avg "
+                    + (n == 0 ? 0 : getTotalNanos() / n / 1_000) + " us, max "
+                    + getMaxNanos() / 1_000 + " us, " + getRows() + " rows, "
+                    + getSlowExecutions() + " slow: " + sql;
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = QueryTracer.invoke(connection, method, args);
+            String name = method.getName();
+            if (result instanceof Statement && (name.startsWith("prepare") || name.equals("createStatement"))) {
+                String shape = name.startsWith("prepare") ? shape((String) args[0]) : null;
+                // the declared type, so prepareCall still hands out a CallableStatement
+                return Proxy.newProxyInstance(
+                        QueryTracer.class.getClassLoader(),
+                        new Class<?>[]{method.getReturnType()},
+                        new StatementHandler((Statement) result, shape));
+            }
+            return result;
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+        private final String shape; // null for a plain statement
+        private final BitSet bound = new BitSet();
+        private String batchShape; // of the first SQL in a plain statement's batch
+
+        StatementHandler(Statement statement, String shape) {
+            this.statement = statement;
+            this.shape = shape;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bound.set((Integer) args[0]);
+                return QueryTracer.invoke(statement, method, args);
+            }
+            if (!name.startsWith("execute")) {
+                if (name.equals("clearParameters")) {
+                    bound.clear();
+                } else if (name.equals("addBatch") && args != null && batchShape == null) {
+                    batchShape = shape((String) args[0]);
+                } else if (name.equals("clearBatch")) {
+                    batchShape = null;
+                }
+                return QueryTracer.invoke(statement, method, args);
+            }
+
+            String shape = this.shape;
+            if (shape == null) {
+                if (args != null && args[0] instanceof String) {
+                    shape = shape((String) args[0]);
+                } else {
+                    shape = batchShape == null ? "(empty batch)" : batchShape + " (batch)";
+                    batchShape = null;
+                }
+            }
+            long start = System.nanoTime();
+            Object result = QueryTracer.invoke(statement, method, args);
+            long nanos = System.nanoTime() - start;
+            long rows;
+            if (result instanceof Integer) {
+                rows = (Integer) result;
+            } else if (result instanceof Long) {
+                rows = (Long) result;
+            } else if (result instanceof int[]) {
+                rows = 0;
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            } else if (result instanceof long[]) {
+                rows = 0;
+                for (long count : (long[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            } else {
+                rows = 0;
+            }
+            if (result instanceof ResultSet) {
+                // rows of a query are only known once the cursor has been read
+                return Proxy.newProxyInstance(
+                        QueryTracer.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class},
+                        new ResultSetHandler((ResultSet) result, shape, bound.cardinality(), nanos));
+            }
+            record(shape, bound.cardinality(), nanos, rows);
+            return result;
+        }
+    }
+
+    private class ResultSetHandler implements InvocationHandler {
+        private final ResultSet resultSet;
+        private final String shape;
+        private final int binds;
+        private final long executeNanos;
+        private long fetchNanos;
+        private long rows;
+        private boolean recorded;
+
+        ResultSetHandler(ResultSet resultSet, String shape, int binds, long executeNanos) {
+            this.resultSet = resultSet;
+            this.shape = shape;
+            this.binds = binds;
+            this.executeNanos = executeNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                long start = System.nanoTime();
+                Object result = QueryTracer.invoke(resultSet, method, args);
+                fetchNanos += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    rows++;
+                } else {
+                    done();
+                }
+                return result;
+            }
+            if (name.equals("close")) {
+                done();
+            }
+            return QueryTracer.invoke(resultSet, method, args);
+        }
+
+        private void done() {
+            if (!recorded) {
+                recorded = true;
+                record(shape, binds, executeNanos + fetchNanos, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package alany.labb.model;
+
+import java.util.Arrays;
+
+/**
+ * The aggregated user ratings of one book: how many users rated it, the sum
+ * and a histogram of their ratings. Instances are immutable; a new rating
+ * makes a new instance from the old one in constant time, so readers never
+ * wait for writers and never aggregate.
+ */
+public final class RatingStats {
+    public static final int MIN_RATING = 1;
+    public static final int MAX_RATING = 5;
+    static final RatingStats EMPTY = new RatingStats(0, 0, new int[MAX_RATING]);
+
+    private final int count;
+    private final long sum;
+    private final int[] histogram;
+
+    RatingStats(int count, long sum, int[] histogram) {
+        this.count = count;
+        this.sum = sum;
+        this.histogram = histogram;
+    }
+
+    /**
+     * @param oldRating the user's previous rating of the book, or 0 if none
+     * @param newRating the user's new rating
+     * @return the stats with the user's rating replaced
+     */
+    RatingStats rate(int oldRating, int newRating) {
+        int[] h = histogram.clone();
+        if (oldRating != 0) {
+            h[oldRating - 1]--;
+        }
+        h[newRating - 1]++;
+        return new RatingStats(oldRating == 0 ? count + 1 : count, sum - oldRating + newRating, h);
+    }
+
+    /**
+     * @return the stats with the counts of a batch of changes added
+     */
+    RatingStats plus(int countDelta, long sumDelta, int[] histogramDelta) {
+        int[] h = histogram.clone();
+        for (int i = 0; i < h.length; i++) {
+            h[i] += histogramDelta[i];
+        }
+        return new RatingStats(count + countDelta, sum + sumDelta, h);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the average rating, or 0 if there are no ratings
+     */
+    public double getAverage() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param rating from MIN_RATING to MAX_RATING
+     * @return the number of users who gave the rating
+     */
+    public int getCount(int rating) {
+        return histogram[rating - 1];
+    }
+
+    /**
+     * @return the histogram as the counts of each rating separated by spaces
+     */
+    String histogramString() {
+        StringBuilder text = new StringBuilder();
+        for (int count : histogram) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(count);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The inverse of histogramString.
+     */
+    static RatingStats parse(int count, long sum, String histogram) {
+        int[] h = new int[MAX_RATING];
+        String[] counts = histogram.split(" ");
+        for (int i = 0; i < h.length && i < counts.length; i++) {
+            h[i] = Integer.parseInt(counts[i]);
+        }
+        return new RatingStats(count, sum, h);
+    }
+
+    @Override
+    public String toString() {
+        return count + " ratings, average " + getAverage() + ", histogram " + Arrays.toString(histogram);
+    }
+}
@@ -0,0 +1,15 @@
+package alany.labb.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads flat records, one at a time, from an import file.
+ */
+interface RecordReader extends Closeable {
+    /**
+     * @return the next record as field name to value, or null at the end of the input
+     */
+    Map<String, String> next() throws IOException;
+}
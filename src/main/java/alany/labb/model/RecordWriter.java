@@ -0,0 +1,80 @@
+package alany.labb.model;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes flat JSON objects, one per line, for JsonRecordReader to read.
+ * A record is written by calling field for each name and value between
+ * begin and end, and is built in a StringBuilder and written in one call.
+ */
+class RecordWriter {
+    private final Writer out;
+    private final StringBuilder record = new StringBuilder(256);
+    private boolean first;
+
+    RecordWriter(Writer out) {
+        this.out = out;
+    }
+
+    RecordWriter begin(String type) {
+        record.setLength(0);
+        record.append('{');
+        first = true;
+        return field("type", type);
+    }
+
+    RecordWriter field(String name, String value) {
+        if (value == null) {
+            return this;
+        }
+        name(name);
+        string(value);
+        return this;
+    }
+
+    RecordWriter field(String name, long value) {
+        name(name);
+        record.append(value);
+        return this;
+    }
+
+    RecordWriter field(String name, boolean value) {
+        name(name);
+        record.append(value);
+        return this;
+    }
+
+    void end() throws IOException {
+        record.append("}\n");
+        out.append(record);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void name(String name) {
+        if (!first) {
+            record.append(',');
+        }
+        first = false;
+        string(name);
+        record.append(':');
+    }
+
+    private void string(String value) {
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                record.append('\\').append(c);
+            } else if (c < 0x20) {
+                record.append(String.format("\\u%04x", (int) c));
+            } else {
+                record.append(c);
+            }
+        }
+        record.append('"');
+    }
+}
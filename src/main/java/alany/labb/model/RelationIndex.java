@@ -0,0 +1,295 @@
+package alany.labb.model;
+
+import java.util.Arrays;
+
+/**
+ * The author_book relation as primitive arrays, so a pair is checked
+ * without scanning the authors of a book or the books of an author.
+ *
+ * Each pair is packed into a long, author id in the high half and book id
+ * in the low half, and kept in an open addressing hash set with linear
+ * probing, so membership is one probe in the common case. The neighbours
+ * of each id are kept in both directions in CSR form: the ids of all
+ * neighbours in one int pool, and per id the start of its segment in the
+ * pool, the number of neighbours and the room of the segment. A bulk add
+ * into an empty index lays the segments out back to back in one counting
+ * sort. A later add to a full segment moves it to the end of the pool with
+ * twice the room, and the pool is compacted once the moved-out segments
+ * take more than half of it. Neighbours are read by position, so walking
+ * them allocates nothing.
+ *
+ * Ids are array positions, which suits the dense ids the database hands
+ * out. Nothing is removed, as relations are never deleted. The index is
+ * not thread safe; BooksDb only uses it under its own monitor.
+ */
+class RelationIndex {
+    private static final long FREE = -1L; // no pair packs to this, as ids are not negative
+
+    private long[] pairs = newTable(16);
+    private int size;
+    private final Adjacency booksOf = new Adjacency(); // by author id
+    private final Adjacency authorsOf = new Adjacency(); // by book id
+
+    static long pack(int authorId, int bookId) {
+        return ((long) authorId << 32) | (bookId & 0xffffffffL);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int authorId, int bookId) {
+        long pair = pack(authorId, bookId);
+        long[] table = pairs;
+        int mask = table.length - 1;
+        for (int slot = hash(pair) & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if (entry == pair) {
+                return true;
+            }
+            if (entry == FREE) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return false if the pair was already in the index
+     */
+    boolean add(int authorId, int bookId) {
+        if (!insert(pack(authorId, bookId))) {
+            return false;
+        }
+        booksOf.add(authorId, bookId);
+        authorsOf.add(bookId, authorId);
+        return true;
+    }
+
+    /**
+     * Add n pairs, given as author id and book id after each other in
+     * relations, and move the pairs that were not already in the index to
+     * its front, in their original order.
+     *
+     * @return the number of pairs added
+     */
+    int addAll(int[] relations, int n) {
+        reserve(size + n);
+        int added = 0;
+        for (int i = 0; i < n; i++) {
+            int authorId = relations[2 * i];
+            int bookId = relations[2 * i + 1];
+            if (insert(pack(authorId, bookId))) {
+                relations[2 * added] = authorId;
+                relations[2 * added + 1] = bookId;
+                added++;
+            }
+        }
+        if (booksOf.isEmpty()) {
+            booksOf.build(relations, added, 0);
+            authorsOf.build(relations, added, 1);
+        } else {
+            for (int i = 0; i < added; i++) {
+                booksOf.add(relations[2 * i], relations[2 * i + 1]);
+                authorsOf.add(relations[2 * i + 1], relations[2 * i]);
+            }
+        }
+        return added;
+    }
+
+    int bookCount(int authorId) {
+        return booksOf.degree(authorId);
+    }
+
+    /**
+     * @param i from 0 to bookCount(authorId), in the order the pairs were added
+     */
+    int bookAt(int authorId, int i) {
+        return booksOf.neighbour(authorId, i);
+    }
+
+    int authorCount(int bookId) {
+        return authorsOf.degree(bookId);
+    }
+
+    int authorAt(int bookId, int i) {
+        return authorsOf.neighbour(bookId, i);
+    }
+
+    /**
+     * The number of ids for which bookCount may be non-zero.
+     */
+    int authorIdLimit() {
+        return booksOf.idLimit();
+    }
+
+    private boolean insert(long pair) {
+        if (2 * (size + 1) > pairs.length) {
+            rehash(pairs.length * 2);
+        }
+        long[] table = pairs;
+        int mask = table.length - 1;
+        int slot = hash(pair) & mask;
+        while (table[slot] != FREE) {
+            if (table[slot] == pair) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = pair;
+        size++;
+        return true;
+    }
+
+    /**
+     * Grow the table once for expected pairs, at most half full.
+     */
+    private void reserve(int expected) {
+        int capacity = pairs.length;
+        while (capacity < 2 * expected) {
+            capacity *= 2;
+        }
+        if (capacity != pairs.length) {
+            rehash(capacity);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] old = pairs;
+        long[] table = newTable(capacity);
+        int mask = capacity - 1;
+        for (long pair : old) {
+            if (pair != FREE) {
+                int slot = hash(pair) & mask;
+                while (table[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = pair;
+            }
+        }
+        pairs = table;
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, FREE);
+        return table;
+    }
+
+    // the finalizer of MurmurHash3, as consecutive ids differ only in their low bits
+    private static int hash(long pair) {
+        pair ^= pair >>> 33;
+        pair *= 0xff51afd7ed558ccdL;
+        pair ^= pair >>> 33;
+        pair *= 0xc4ceb9fe1a85ec53L;
+        pair ^= pair >>> 33;
+        return (int) pair;
+    }
+
+    /**
+     * The neighbours of each id in one direction.
+     */
+    private static final class Adjacency {
+        private int[] start = new int[0]; // by id, where the id's segment begins in pool
+        private int[] degree = new int[0]; // by id, the neighbours in the segment
+        private int[] room = new int[0]; // by id, the length of the segment
+        private int[] pool = new int[16];
+        private int used; // of pool, including the segments that were moved out
+        private int moved; // slots of pool left behind by moved segments
+
+        boolean isEmpty() {
+            return used == 0;
+        }
+
+        int idLimit() {
+            return degree.length;
+        }
+
+        int degree(int id) {
+            return id < degree.length ? degree[id] : 0;
+        }
+
+        int neighbour(int id, int i) {
+            return pool[start[id] + i];
+        }
+
+        void add(int id, int neighbour) {
+            if (id >= degree.length) {
+                growIds(Math.max(id + 1, degree.length * 2));
+            }
+            if (degree[id] == room[id]) {
+                moveToEnd(id, Math.max(1, room[id] * 2));
+            }
+            pool[start[id] + degree[id]++] = neighbour;
+        }
+
+        /**
+         * Lay out n pairs of relations back to back, taking the id from
+         * position side of each pair and the neighbour from the other.
+         */
+        void build(int[] relations, int n, int side) {
+            int limit = degree.length;
+            for (int i = 0; i < n; i++) {
+                limit = Math.max(limit, relations[2 * i + side] + 1);
+            }
+            growIds(limit);
+            for (int i = 0; i < n; i++) {
+                degree[relations[2 * i + side]]++;
+            }
+            int offset = 0;
+            for (int id = 0; id < limit; id++) {
+                start[id] = offset;
+                room[id] = degree[id];
+                offset += degree[id];
+                degree[id] = 0;
+            }
+            pool = new int[Math.max(16, offset)];
+            used = offset;
+            moved = 0;
+            for (int i = 0; i < n; i++) {
+                int id = relations[2 * i + side];
+                pool[start[id] + degree[id]++] = relations[2 * i + 1 - side];
+            }
+        }
+
+        private void growIds(int limit) {
+            if (limit > degree.length) {
+                start = Arrays.copyOf(start, limit);
+                degree = Arrays.copyOf(degree, limit);
+                room = Arrays.copyOf(room, limit);
+            }
+        }
+
+        private void moveToEnd(int id, int newRoom) {
+            if (used + newRoom > pool.length) {
+                if (moved > used / 2) {
+                    compact();
+                }
+                if (used + newRoom > pool.length) {
+                    pool = Arrays.copyOf(pool, Math.max(pool.length * 2, used + newRoom));
+                }
+            }
+            System.arraycopy(pool, start[id], pool, used, degree[id]);
+            moved += room[id];
+            start[id] = used;
+            room[id] = newRoom;
+            used += newRoom;
+        }
+
+        /**
+         * Drop the slots left behind by moved segments, keeping the spare
+         * room of the segments that have it.
+         */
+        private void compact() {
+            int[] packed = new int[pool.length];
+            int offset = 0;
+            for (int id = 0; id < degree.length; id++) {
+                System.arraycopy(pool, start[id], packed, offset, degree[id]);
+                start[id] = offset;
+                offset += room[id];
+            }
+            pool = packed;
+            used = offset;
+            moved = 0;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package alany.labb.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An IBooksDb backed by a CatalogueServer. Every call is a request to the
+ * server, and returns copies of its books and authors. Books and authors
+ * passed back in, e.g. to rateBook, are identified by their ids.
+ *
+ * Each book has one copy while it is in use, e.g. in a table: a book read
+ * again updates that copy and is returned as it. When the server reports
+ * a change, the copies in use are read again before the change listeners
+ * are called, so that redrawing them shows the change.
+ *
+ * Import and export files are paths on the server. Change listeners are
+ * called from a daemon thread that long polls the server for changes.
+ */
+public class RemoteBooksDb implements IBooksDb {
+    private static final System.Logger LOG = System.getLogger(RemoteBooksDb.class.getName());
+    private static final long CHANGE_WAIT_MILLIS = 25000;
+    private static final long RETRY_MILLIS = 2000;
+    private static final int LIST_CHUNK = 4096;
+    private static final int ID_CHUNK = 500; // ids per /booksById request, which go in its query string
+
+    private final URI server;
+    private final String user;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Copy> copies = new HashMap<>(); // by book id, guarded by itself, see copy
+    private final ReferenceQueue<Book> unused = new ReferenceQueue<>();
+    private volatile Thread changeWatcher;
+
+    /**
+     * @param server the address of the server, e.g. http://localhost:8090
+     */
+    public RemoteBooksDb(URI server) {
+        this(server, System.getProperty("user.name", "anonymous"));
+    }
+
+    /**
+     * @param user the user whose ratings rateBook records
+     */
+    public RemoteBooksDb(URI server, String user) {
+        this.server = server;
+        this.user = user;
+    }
+
+    @Override
+    public boolean connect() throws BooksDbException {
+        long version;
+        try (Response response = request("/changes", "since", "0")) {
+            version = response.result().getOrDefault("version", 0L);
+        }
+        Thread watcher = new Thread(() -> watchChanges(version), "RemoteBooksDb change watcher");
+        watcher.setDaemon(true);
+        changeWatcher = watcher;
+        watcher.start();
+        return true;
+    }
+
+    @Override
+    public void disconnect() throws BooksDbException {
+        Thread watcher = changeWatcher;
+        changeWatcher = null;
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+    }
+
+    @Override
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * A copy of a book that is dropped once nothing else refers to it.
+     */
+    private static class Copy extends WeakReference<Book> {
+        final int bookId;
+
+        Copy(Book book, ReferenceQueue<Book> queue) {
+            super(book, queue);
+            this.bookId = book.getBookId();
+        }
+    }
+
+    /**
+     * The copy of a book just read from the server: the one in use, brought
+     * up to date with it, or else the book itself, which is then in use.
+     */
+    private Book copy(Book book) {
+        synchronized (copies) {
+            Reference<? extends Book> dropped;
+            while ((dropped = unused.poll()) != null) {
+                Copy copy = (Copy) dropped;
+                copies.remove(copy.bookId, copy);
+            }
+            Copy copy = copies.get(book.getBookId());
+            Book inUse = copy == null ? null : copy.get();
+            if (inUse == null) {
+                copies.put(book.getBookId(), new Copy(book, unused));
+                return book;
+            }
+            inUse.setRating(book.getCatalogueRating());
+            inUse.setRatingStats(book.getRatingStats());
+            for (Author author : book.getAuthors()) {
+                inUse.addAuthor(author);
+                author.addBook(inUse);
+            }
+            return inUse;
+        }
+    }
+
+    /**
+     * Read the copies in use again, which updates them.
+     */
+    private void refreshCopies() throws BooksDbException {
+        List<Integer> ids = new ArrayList<>();
+        synchronized (copies) {
+            for (Copy copy : copies.values()) {
+                if (copy.get() != null) {
+                    ids.add(copy.bookId);
+                }
+            }
+        }
+        for (int start = 0; start < ids.size(); start += ID_CHUNK) {
+            StringBuilder chunk = new StringBuilder();
+            for (int id : ids.subList(start, Math.min(ids.size(), start + ID_CHUNK))) {
+                chunk.append(chunk.length() == 0 ? "" : " ").append(id);
+            }
+            books("/booksById", "ids", chunk.toString());
+        }
+    }
+
+    private void watchChanges(long version) {
+        while (changeWatcher == Thread.currentThread()) {
+            try (Response response = request("/changes", "since", Long.toString(version),
+                    "wait", Long.toString(CHANGE_WAIT_MILLIS))) {
+                long latest = response.result().getOrDefault("version", version);
+                if (latest != version) {
+                    version = latest;
+                    refreshCopies();
+                    for (Runnable listener : changeListeners) {
+                        listener.run();
+                    }
+                }
+            } catch (BooksDbException e) {
+                if (changeWatcher != Thread.currentThread()) {
+                    return;
+                }
+                LOG.log(System.Logger.Level.WARNING, "Failed to watch the server for changes", e);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Book> getBooks() {
+        try {
+            return books("/books");
+        } catch (BooksDbException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to fetch books from the server", e);
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public List<Author> getAuthors() {
+        try (Response response = request("/authors")) {
+            while (response.nextBook() != null) {
+                // only author records are expected
+            }
+            return new ArrayList<>(response.authors.values());
+        } catch (BooksDbException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to fetch authors from the server", e);
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return search(SearchMode.Title, title);
+    }
+
+    @Override
+    public List<Book> searchBooksByISBN(String isbn) throws BooksDbException {
+        return search(SearchMode.ISBN, isbn);
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String name) throws BooksDbException {
+        return search(SearchMode.Author, name);
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(String rating) throws BooksDbException {
+        return search(SearchMode.Rating, rating);
+    }
+
+    @Override
+    public List<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return search(SearchMode.Genre, genre);
+    }
+
+    @Override
+    public List<Book> searchBooksByRatingRange(int min, int max) throws BooksDbException {
+        return books("/rating", "min", Integer.toString(min), "max", Integer.toString(max));
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(LocalDate from, LocalDate to) throws BooksDbException {
+        return books("/published", "from", from == null ? "" : from.toString(), "to", to == null ? "" : to.toString());
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return search(SearchMode.Fuzzy, query);
+    }
+
+    @Override
+    public void searchBooks(SearchMode mode, String searchFor, int chunkSize, SearchListener listener) throws BooksDbException {
+        try (Response response = request("/search", "mode", mode.name(), "q", searchFor,
+                "chunk", Integer.toString(chunkSize))) {
+            List<Book> chunk = new ArrayList<>(chunkSize);
+            while (true) {
+                Book book = response.nextBook();
+                if (book != null) {
+                    chunk.add(book);
+                    continue;
+                }
+                Map<String, String> control = response.control;
+                if (control == null) {
+                    return;
+                }
+                if (control.get("type").equals("chunk")) {
+                    // closing the response stops the search on the server
+                    if (!listener.onChunk(chunk, Integer.parseInt(control.get("scanned")),
+                            Integer.parseInt(control.get("total")))) {
+                        return;
+                    }
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Stream<Book> streamBooks(SearchMode mode, String searchFor) throws BooksDbException {
+        Response response = request("/search", "mode", mode.name(), "q", searchFor);
+        Iterator<Book> books = new Iterator<>() {
+            private Book next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        next = response.nextBook();
+                        if (next == null && response.control == null) {
+                            return false;
+                        }
+                    }
+                    return true;
+                } catch (BooksDbException e) {
+                    throw new UncheckedIOException(new IOException(e.getMessage(), e));
+                }
+            }
+
+            @Override
+            public Book next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Book book = next;
+                next = null;
+                return book;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(books, Spliterator.ORDERED), false)
+                .onClose(response::close);
+    }
+
+    @Override
+    public List<Book> searchTopBooks(SearchMode mode, String searchFor, BookOrder order, int k) throws BooksDbException {
+        return books("/top", "mode", mode.name(), "q", searchFor, "order", order.name(), "k", Integer.toString(k));
+    }
+
+    @Override
+    public List<Book> findBooks(String prefix, int limit) throws BooksDbException {
+        return books("/findBooks", "q", prefix, "limit", Integer.toString(limit));
+    }
+
+    @Override
+    public List<Author> searchAuthors(String name, int limit) throws BooksDbException {
+        try (Response response = request("/searchAuthors", "q", name, "limit", Integer.toString(limit))) {
+            while (response.nextBook() != null) {
+                // only author records are expected
+            }
+            return new ArrayList<>(response.authors.values());
+        }
+    }
+
+    @Override
+    public int suggest(CharSequence prefix, Suggestion[] out) throws BooksDbException {
+        try (Response response = request("/suggest", "q", prefix.toString(), "limit", Integer.toString(out.length))) {
+            int size = 0;
+            while (response.nextBook() != null || response.control != null) {
+                if (size < out.length && "suggestion".equals(response.control.get("type"))) {
+                    try {
+                        out[size].set(response.control.get("text"), SearchMode.valueOf(response.control.get("mode")));
+                    } catch (RuntimeException e) {
+                        throw new BooksDbException("Invalid response from the server", e);
+                    }
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+
+    @Override
+    public void rateBook(Book book, int rating) {
+        try (Response response = request("/rate", "book", Integer.toString(book.getBookId()),
+                "user", user, "rating", Integer.toString(rating))) {
+            Book rated = response.nextBook();
+            if (rated != null) {
+                book.setRatingStats(rated.getRatingStats());
+            }
+        } catch (BooksDbException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to rate " + book.getTitle(), e);
+        }
+    }
+
+    @Override
+    public void createBook(String title, String isbn, String genre, String rating) throws BooksDbException {
+        try (Response response = request("/book", "title", title, "isbn", isbn, "genre", genre, "rating", rating)) {
+            response.result();
+        }
+    }
+
+    @Override
+    public void createAuthor(String firstName, String lastName, LocalDate birthDay) throws BooksDbException {
+        try (Response response = request("/author", "firstName", firstName, "lastName", lastName,
+                "birthDay", birthDay.toString())) {
+            response.result();
+        }
+    }
+
+    @Override
+    public boolean createRelation(Book book, Author author) {
+        try (Response response = request("/relation", "book", Integer.toString(book.getBookId()),
+                "author", Integer.toString(author.getAuthorId()))) {
+            boolean created = response.result().getOrDefault("created", 0L) != 0;
+            if (created) {
+                book.addAuthor(author);
+                author.addBook(book);
+            }
+            return created;
+        } catch (BooksDbException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to relate " + book.getTitle() + " to " + author, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void updateDb() throws BooksDbException {
+        try (Response response = request("/update")) {
+            response.result();
+        }
+    }
+
+    @Override
+    public ImportStats importCatalogue(Path file, Consumer<ImportStats> progress) throws BooksDbException {
+        try (Response response = request("/import", "file", file.toString())) {
+            while (response.nextBook() != null || response.control != null) {
+                Map<String, String> control = response.control;
+                if (control == null) {
+                    continue;
+                }
+                ImportStats stats = stats(control);
+                if (control.get("type").equals("result")) {
+                    return stats;
+                }
+                if (progress != null) {
+                    progress.accept(stats);
+                }
+            }
+        }
+        throw new BooksDbException("The server ended the import of " + file + " without a result");
+    }
+
+    @Override
+    public long exportCatalogue(Path directory, ExportFormat format) throws BooksDbException {
+        try (Response response = request("/export", "dir", directory.toString(), "format", format.name())) {
+            return response.result().getOrDefault("rows", 0L);
+        }
+    }
+
+    private List<Book> search(SearchMode mode, String searchFor) throws BooksDbException {
+        return books("/search", "mode", mode.name(), "q", searchFor, "chunk", Integer.toString(LIST_CHUNK));
+    }
+
+    private List<Book> books(String path, String... params) throws BooksDbException {
+        List<Book> result = new ArrayList<>();
+        try (Response response = request(path, params)) {
+            while (true) {
+                Book book = response.nextBook();
+                if (book != null) {
+                    result.add(book);
+                } else if (response.control == null) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    private static ImportStats stats(Map<String, String> record) {
+        ImportStats stats = new ImportStats();
+        stats.records = Long.parseLong(record.getOrDefault("records", "0"));
+        stats.books = Long.parseLong(record.getOrDefault("books", "0"));
+        stats.authors = Long.parseLong(record.getOrDefault("authors", "0"));
+        stats.relations = Long.parseLong(record.getOrDefault("relations", "0"));
+        stats.duplicates = Long.parseLong(record.getOrDefault("duplicates", "0"));
+        stats.invalid = Long.parseLong(record.getOrDefault("invalid", "0"));
+        stats.bytesRead = Long.parseLong(record.getOrDefault("bytesRead", "0"));
+        stats.totalBytes = Long.parseLong(record.getOrDefault("totalBytes", "0"));
+        stats.resumedFrom = Long.parseLong(record.getOrDefault("resumedFrom", "0"));
+        return stats;
+    }
+
+    /**
+     * Send a request with the given name and value pairs as query parameters.
+     */
+    private Response request(String path, String... params) throws BooksDbException {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            query.append(i == 0 ? '?' : '&')
+                    .append(URLEncoder.encode(params[i], StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(params[i + 1], StandardCharsets.UTF_8));
+        }
+        HttpRequest request = HttpRequest.newBuilder(server.resolve(path + query))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != 200) {
+                throw new BooksDbException(errorMessage(response, path));
+            }
+            return new Response(response.body(), this::copy);
+        } catch (IOException e) {
+            throw new BooksDbException("Failed to reach the server at " + server, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException("Interrupted while waiting for the server", e);
+        }
+    }
+
+    /**
+     * The message of the error record the server sends with a failure
+     * status, or the status itself if there is none.
+     */
+    private static String errorMessage(HttpResponse<InputStream> response, String path) {
+        try (InputStream in = response.body()) {
+            Map<String, String> record = new JsonRecordReader(
+                    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))).next();
+            if (record != null && "error".equals(record.get("type")) && record.get("message") != null) {
+                return record.get("message");
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(System.Logger.Level.DEBUG, "Unreadable error response to " + path, e);
+        }
+        return "The server answered " + response.statusCode() + " to " + path;
+    }
+
+    /**
+     * The records of one response, read as they arrive.
+     */
+    private static class Response implements AutoCloseable {
+        private final JsonRecordReader records;
+        private final Map<Integer, Author> authors = new LinkedHashMap<>(); // in the server's order
+        private Map<String, String> control; // the last record that was not a book or an author
+
+        private final UnaryOperator<Book> copies;
+
+        /**
+         * @param copies gives the copy in use of each book read
+         */
+        Response(InputStream in, UnaryOperator<Book> copies) {
+            this.records = new JsonRecordReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            this.copies = copies;
+        }
+
+        /**
+         * @return the next book, or null at a record that is not a book, which
+         * is then in control, or at the end of the response, when control is null
+         */
+        Book nextBook() throws BooksDbException {
+            try {
+                Map<String, String> record;
+                while ((record = records.next()) != null) {
+                    String type = record.getOrDefault("type", "");
+                    if (type.equals("author")) {
+                        int id = Integer.parseInt(record.get("id"));
+                        authors.put(id, new Author(id, record.get("firstName"), record.get("lastName"),
+                                LocalDate.parse(record.get("birthDay"))));
+                    } else if (type.equals("book")) {
+                        control = null;
+                        return copies.apply(book(record));
+                    } else if (type.equals("error")) {
+                        throw new BooksDbException(record.get("message"));
+                    } else {
+                        control = record;
+                        return null;
+                    }
+                }
+                control = null;
+                return null;
+            } catch (IOException | RuntimeException e) {
+                throw new BooksDbException("Invalid response from the server", e);
+            }
+        }
+
+        /**
+         * Read to the end of the response.
+         *
+         * @return the numeric fields of the result record, empty if there was none
+         */
+        Map<String, Long> result() throws BooksDbException {
+            Map<String, Long> result = new HashMap<>();
+            while (nextBook() != null || control != null) {
+                if (control != null && "result".equals(control.get("type"))) {
+                    for (Map.Entry<String, String> field : control.entrySet()) {
+                        String value = field.getValue();
+                        if (value.equals("true") || value.equals("false")) {
+                            result.put(field.getKey(), value.equals("true") ? 1L : 0L);
+                        } else if (!field.getKey().equals("type")) {
+                            result.put(field.getKey(), Long.parseLong(value));
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private Book book(Map<String, String> record) {
+            String published = record.get("published"); // left out for an undated book
+            Book book = new Book(Integer.parseInt(record.get("id")), record.get("isbn"), record.get("title"),
+                    published == null ? null : Date.valueOf(published), Genre.valueOf(record.get("genre")),
+                    Integer.parseInt(record.get("rating")));
+            String histogram = record.get("histogram");
+            if (histogram != null) {
+                book.setRatingStats(RatingStats.parse(Integer.parseInt(record.get("ratings")),
+                        Long.parseLong(record.get("rating_sum")), histogram));
+            }
+            String ids = record.get("authors");
+            if (ids != null && !ids.isEmpty()) {
+                for (String id : ids.split(" ")) {
+                    Author author = authors.get(Integer.parseInt(id));
+                    if (author != null) {
+                        book.addAuthor(author);
+                        author.addBook(book);
+                    }
+                }
+            }
+            return book;
+        }
+
+        @Override
+        public void close() {
+            try {
+                records.close();
+            } catch (IOException e) {
+                // nothing more to read
+            }
+        }
+    }
+}
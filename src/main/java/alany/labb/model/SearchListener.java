@@ -0,0 +1,21 @@
+package alany.labb.model;
+
+import java.util.List;
+
+/**
+ * Receives the result of a search in chunks while the search is running.
+ * See IBooksDb.searchBooks.
+ */
+@FunctionalInterface
+public interface SearchListener {
+    /**
+     * Called for every chunk of matching books, in order. A chunk may be
+     * empty when it only reports progress.
+     *
+     * @param chunk the books found since the previous call
+     * @param scanned the number of books examined so far
+     * @param total the number of books that will be examined
+     * @return false to cancel the rest of the search
+     */
+    boolean onChunk(List<Book> chunk, int scanned, int total);
+}
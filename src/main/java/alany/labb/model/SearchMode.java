@@ -2,5 +2,5 @@ package alany.labb.model;
 
 
 public enum SearchMode {
-    Title, ISBN, Author, Rating, Genre;
+    Title, ISBN, Author, Rating, Genre, MinRating, Published, Fuzzy;
 }
\ No newline at end of file
@@ -0,0 +1,293 @@
+package alany.labb.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A secondary index of books sorted on a primitive long key, e.g. the
+ * rating or the publish date as an epoch day. Keys live in a long[] next
+ * to a parallel Book[], so range lookups are two binary searches and
+ * ordered iteration is a walk over the arrays.
+ *
+ * Books with equal keys are ordered by book id, which is the order they
+ * were added in as ids only grow; the ids are kept in a parallel int[] so
+ * a book is found by a binary search on its key and id, however many
+ * books share its key. The key of a book must not change while it is in
+ * the index; use update to move a book when its key changes.
+ */
+class SortedIndex {
+    private final ToLongFunction<Book> keyOf;
+    private long[] keys = new long[16];
+    private int[] ids = new int[16];
+    private Book[] books = new Book[16];
+    private int size;
+
+    SortedIndex(ToLongFunction<Book> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    /**
+     * Replace the content of the index with the given books, sorting once.
+     * Each key is computed once, and the books are sorted as packed
+     * primitives, see sortedOrder.
+     */
+    synchronized void build(Collection<Book> content) {
+        Book[] unsorted = content.toArray(new Book[0]);
+        int n = unsorted.length;
+        long[] unsortedKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            unsortedKeys[i] = keyOf.applyAsLong(unsorted[i]);
+        }
+        int capacity = Math.max(16, n + n / 4);
+        keys = new long[capacity];
+        ids = new int[capacity];
+        books = new Book[capacity];
+        size = n;
+        int[] order = sortedOrder(unsorted, unsortedKeys);
+        for (int i = 0; i < n; i++) {
+            keys[i] = unsortedKeys[order[i]];
+            books[i] = unsorted[order[i]];
+            ids[i] = books[i].getBookId();
+        }
+    }
+
+    /**
+     * The positions of books in the order of their keys, and of their ids
+     * among equal keys, without a comparator: each key is packed with a
+     * position into a long and the longs are sorted as primitives. Books
+     * not in id order are first sorted the same way by id, and keys that do
+     * not fit in an int are replaced by their rank among the distinct keys.
+     */
+    private static int[] sortedOrder(Book[] books, long[] keys) {
+        int n = books.length;
+        long[] packed = new long[n];
+        int[] byId = new int[n];
+        boolean idOrder = true;
+        boolean intKeys = true;
+        for (int i = 0; i < n; i++) {
+            idOrder &= i == 0 || books[i - 1].getBookId() < books[i].getBookId();
+            intKeys &= keys[i] == (int) keys[i];
+            packed[i] = (long) books[i].getBookId() << 32 | i;
+        }
+        if (!idOrder) {
+            Arrays.sort(packed);
+        }
+        for (int i = 0; i < n; i++) {
+            byId[i] = idOrder ? i : (int) packed[i];
+        }
+        long[] distinct = null;
+        int distinctKeys = 0;
+        if (!intKeys) {
+            distinct = keys.clone();
+            Arrays.sort(distinct);
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || distinct[i] != distinct[distinctKeys - 1]) {
+                    distinct[distinctKeys++] = distinct[i];
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            long key = keys[byId[i]];
+            long sortKey = intKeys ? key : Arrays.binarySearch(distinct, 0, distinctKeys, key);
+            packed[i] = sortKey << 32 | i;
+        }
+        Arrays.sort(packed);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = byId[(int) packed[i]];
+        }
+        return order;
+    }
+
+    synchronized void add(Book book) {
+        long key = keyOf.applyAsLong(book);
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+            books = Arrays.copyOf(books, size * 2);
+        }
+        int pos = position(key, book.getBookId());
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+        System.arraycopy(books, pos, books, pos + 1, size - pos);
+        keys[pos] = key;
+        ids[pos] = book.getBookId();
+        books[pos] = book;
+        size++;
+    }
+
+    /**
+     * Add many books at once: sort the new ones and merge them in from the
+     * back in one pass, instead of shifting the entries once per book.
+     */
+    synchronized void addAll(Collection<Book> added) {
+        int n = added.size();
+        if (n == 0) {
+            return;
+        }
+        Book[] sorted = added.toArray(new Book[0]);
+        long[] sortedKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedKeys[i] = keyOf.applyAsLong(sorted[i]);
+        }
+        int[] order = sortedOrder(sorted, sortedKeys);
+        if (size + n > keys.length) {
+            int capacity = Math.max(size * 2, size + n);
+            keys = Arrays.copyOf(keys, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            books = Arrays.copyOf(books, capacity);
+        }
+        int i = size - 1; // the last old entry not yet placed
+        int j = n - 1; // the last new one
+        for (int to = size + n - 1; j >= 0; to--) {
+            Book book = sorted[order[j]];
+            long key = sortedKeys[order[j]];
+            if (i >= 0 && (keys[i] > key || keys[i] == key && ids[i] > book.getBookId())) {
+                keys[to] = keys[i];
+                ids[to] = ids[i];
+                books[to] = books[i];
+                i--;
+            } else {
+                keys[to] = key;
+                ids[to] = book.getBookId();
+                books[to] = book;
+                j--;
+            }
+        }
+        size += n;
+    }
+
+    /**
+     * Move a book whose key has changed from oldKey to its current key,
+     * shifting only the entries between its old and new place. If the book
+     * is not at oldKey, e.g. because a concurrent update already moved it,
+     * it is looked for among all books.
+     */
+    synchronized void update(Book book, long oldKey) {
+        int from = find(book, oldKey);
+        if (from < 0) {
+            from = findAnywhere(book);
+            if (from < 0) {
+                return;
+            }
+        }
+        long key = keyOf.applyAsLong(book);
+        int to = position(key, book.getBookId());
+        if (to > from) {
+            to--; // the place once the book is taken out
+            System.arraycopy(keys, from + 1, keys, from, to - from);
+            System.arraycopy(ids, from + 1, ids, from, to - from);
+            System.arraycopy(books, from + 1, books, from, to - from);
+        } else if (to < from) {
+            System.arraycopy(keys, to, keys, to + 1, from - to);
+            System.arraycopy(ids, to, ids, to + 1, from - to);
+            System.arraycopy(books, to, books, to + 1, from - to);
+        }
+        keys[to] = key;
+        ids[to] = book.getBookId();
+        books[to] = book;
+    }
+
+    synchronized boolean remove(Book book, long key) {
+        int i = find(book, key);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        System.arraycopy(books, i + 1, books, i, size - i - 1);
+        books[--size] = null;
+        return true;
+    }
+
+    /**
+     * @return the position of book if it is at key, else -1
+     */
+    private int find(Book book, long key) {
+        int i = position(key, book.getBookId() - 1);
+        return i < size && books[i] == book ? i : -1;
+    }
+
+    private int findAnywhere(Book book) {
+        for (int i = 0; i < size; i++) {
+            if (books[i] == book) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the books with from <= key <= to, in ascending key order
+     */
+    synchronized List<Book> range(long from, long to) {
+        int start = lowerBound(from);
+        int end = to == Long.MAX_VALUE ? size : lowerBound(to + 1);
+        List<Book> result = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            result.add(books[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Visit the books from the highest key to the lowest, until the
+     * visitor returns false.
+     */
+    synchronized void forEachDescending(Predicate<Book> visitor) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (!visitor.test(books[i])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visit the books from the lowest key to the highest, until the
+     * visitor returns false.
+     */
+    synchronized void forEachAscending(Predicate<Book> visitor) {
+        for (int i = 0; i < size; i++) {
+            if (!visitor.test(books[i])) {
+                return;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private int lowerBound(long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the position after the entries up to key and id
+     */
+    private int position(long key, int id) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key || keys[mid] == key && ids[mid] <= id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,30 @@
+package alany.labb.model;
+
+/**
+ * A completion of a search prefix: a title, an author's name or an ISBN,
+ * and the search mode that finds it. Suggestions are filled in place by
+ * IBooksDb.suggest, so the same objects can be reused for every lookup.
+ */
+public final class Suggestion {
+    private String text;
+    private SearchMode mode;
+    int key; // the entry in the autocomplete index, while it is being filled
+
+    public String getText() {
+        return text;
+    }
+
+    public SearchMode getMode() {
+        return mode;
+    }
+
+    void set(String text, SearchMode mode) {
+        this.text = text;
+        this.mode = mode;
+    }
+
+    @Override
+    public String toString() {
+        return text + " (" + mode + ")";
+    }
+}
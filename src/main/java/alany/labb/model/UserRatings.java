@@ -0,0 +1,339 @@
+package alany.labb.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The individual ratings users give books, in the user_rating table, and
+ * their per-book aggregates, in the book_rating table.
+ *
+ * The aggregates are never computed by a query: each rating changes the
+ * in-memory RatingStats of its book by the difference from the user's
+ * previous rating, and the same differences are added to book_rating when
+ * the pending ratings are written. Pending ratings are kept per user and
+ * book, so a user changing their mind before the next write costs one row.
+ *
+ * To know a user's previous rating, the ratings of each user who rates a
+ * book are loaded on their first rating, and again after another client
+ * has rated a book, as the same user may have rated from there. Those are
+ * only used for the in-memory aggregates, which are replaced by the stored
+ * ones when the book changes. The differences added to book_rating are
+ * taken from the stored ratings, read and locked in the transaction that
+ * writes them, so they stay right however stale this client's copy is.
+ */
+class UserRatings {
+    private static final int HISTOGRAM = RatingStats.MAX_RATING;
+    private static final int LOCK_CHUNK = 500; // book ids per locking select
+    static final String SELECT_STATS = "SELECT book_id, ratings, rating_sum, r1, r2, r3, r4, r5 FROM book_rating";
+
+    record Key(String user, int bookId) {}
+
+    // the loaded users' ratings, by user and book id
+    private final Map<String, Map<Integer, Integer>> byUser = new HashMap<>();
+    // loaded users whose ratings another client may have changed since
+    private final Set<String> stale = new HashSet<>();
+    // per user and book: {rating before the first pending change, latest rating}
+    private Map<Key, int[]> pending = new LinkedHashMap<>();
+
+    void createTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_rating ("
+                    + "user_name VARCHAR(64) NOT NULL, "
+                    + "book_id INT NOT NULL, "
+                    + "rating TINYINT NOT NULL, "
+                    + "rated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+                    + "PRIMARY KEY (user_name, book_id))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS book_rating ("
+                    + "book_id INT PRIMARY KEY, "
+                    + "ratings INT NOT NULL, "
+                    + "rating_sum BIGINT NOT NULL, "
+                    + "r1 INT NOT NULL, r2 INT NOT NULL, r3 INT NOT NULL, r4 INT NOT NULL, r5 INT NOT NULL)");
+        }
+    }
+
+    /**
+     * Read a row selected with SELECT_STATS.
+     */
+    static RatingStats readStats(ResultSet resultSet) throws SQLException {
+        int[] histogram = new int[HISTOGRAM];
+        for (int i = 0; i < HISTOGRAM; i++) {
+            histogram[i] = resultSet.getInt(4 + i);
+        }
+        return new RatingStats(resultSet.getInt(2), resultSet.getLong(3), histogram);
+    }
+
+    /**
+     * @return the stored aggregates of all rated books, by book id
+     */
+    Map<Integer, RatingStats> loadStats(Connection connection) throws SQLException {
+        Map<Integer, RatingStats> stats = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_STATS);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                stats.put(resultSet.getInt(1), readStats(resultSet));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return whether the user's ratings are loaded and not stale
+     */
+    synchronized boolean isLoaded(String user) {
+        return byUser.containsKey(user) && !stale.contains(user);
+    }
+
+    /**
+     * Load a user's stored ratings, with their pending ones on top.
+     */
+    void loadUser(Connection connection, String user) throws SQLException {
+        Map<Integer, Integer> ratings = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT book_id, rating FROM user_rating WHERE user_name = ?")) {
+            statement.setString(1, user);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ratings.put(resultSet.getInt(1), resultSet.getInt(2));
+                }
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<Key, int[]> change : pending.entrySet()) {
+                if (change.getKey().user().equals(user)) {
+                    ratings.put(change.getKey().bookId(), change.getValue()[1]);
+                }
+            }
+            byUser.put(user, ratings);
+            stale.remove(user);
+        }
+    }
+
+    /**
+     * Note that another client has rated a book, so every loaded user is
+     * loaded again before their next rating.
+     */
+    synchronized void ratedElsewhere() {
+        stale.addAll(byUser.keySet());
+    }
+
+    /**
+     * Replace the ratings of all users with stored ones, which makes every
+     * user loaded.
+     */
+    synchronized void restore(Map<Key, Integer> ratings) {
+        byUser.clear();
+        stale.clear();
+        for (Map.Entry<Key, Integer> rating : ratings.entrySet()) {
+            byUser.computeIfAbsent(rating.getKey().user(), u -> new HashMap<>())
+                    .put(rating.getKey().bookId(), rating.getValue());
+        }
+    }
+
+    /**
+     * @return the ratings of the loaded users, by user and book id
+     */
+    synchronized Map<Key, Integer> copyRatings() {
+        Map<Key, Integer> ratings = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, Integer>> user : byUser.entrySet()) {
+            for (Map.Entry<Integer, Integer> rating : user.getValue().entrySet()) {
+                ratings.put(new Key(user.getKey(), rating.getKey()), rating.getValue());
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * @return the aggregates of the given ratings, by book id
+     */
+    static Map<Integer, RatingStats> aggregate(Map<Key, Integer> ratings) {
+        Map<Integer, long[]> deltas = new HashMap<>();
+        for (Map.Entry<Key, Integer> rating : ratings.entrySet()) {
+            addDelta(deltas.computeIfAbsent(rating.getKey().bookId(), id -> new long[2 + HISTOGRAM]),
+                    new int[]{0, rating.getValue()});
+        }
+        Map<Integer, RatingStats> stats = new HashMap<>();
+        for (Map.Entry<Integer, long[]> delta : deltas.entrySet()) {
+            stats.put(delta.getKey(), plus(RatingStats.EMPTY, delta.getValue()));
+        }
+        return stats;
+    }
+
+    /**
+     * Record a user's rating of a book.
+     *
+     * @param queue whether to write the rating on the next flush
+     * @return the user's previous rating of the book, or 0 if none
+     */
+    synchronized int rate(String user, int bookId, int rating, boolean queue) {
+        Integer previous = byUser.computeIfAbsent(user, u -> new HashMap<>()).put(bookId, rating);
+        int oldRating = previous == null ? 0 : previous;
+        if (queue && oldRating != rating) {
+            int[] change = pending.get(new Key(user, bookId));
+            if (change == null) {
+                pending.put(new Key(user, bookId), new int[]{oldRating, rating});
+            } else {
+                change[1] = rating;
+            }
+        }
+        return oldRating;
+    }
+
+    /**
+     * Take the pending ratings, to write them.
+     */
+    synchronized Map<Key, int[]> takePending() {
+        Map<Key, int[]> taken = pending;
+        pending = new LinkedHashMap<>();
+        return taken;
+    }
+
+    /**
+     * Put back ratings whose write failed, keeping newer ratings made meanwhile.
+     */
+    synchronized void restorePending(Map<Key, int[]> failed) {
+        for (Map.Entry<Key, int[]> entry : pending.entrySet()) {
+            int[] older = failed.get(entry.getKey());
+            if (older != null) {
+                older[1] = entry.getValue()[1];
+            } else {
+                failed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pending = failed;
+    }
+
+    /**
+     * @return the pending change of a book's aggregates: {count, sum, histogram...}
+     */
+    synchronized long[] pendingDelta(int bookId) {
+        long[] delta = new long[2 + HISTOGRAM];
+        for (Map.Entry<Key, int[]> entry : pending.entrySet()) {
+            if (entry.getKey().bookId() == bookId) {
+                addDelta(delta, entry.getValue());
+            }
+        }
+        return delta;
+    }
+
+    static RatingStats plus(RatingStats stats, long[] delta) {
+        int[] histogram = new int[HISTOGRAM];
+        for (int i = 0; i < HISTOGRAM; i++) {
+            histogram[i] = (int) delta[2 + i];
+        }
+        return stats.plus((int) delta[0], delta[1], histogram);
+    }
+
+    private static void addDelta(long[] delta, int[] change) {
+        int oldRating = change[0];
+        int newRating = change[1];
+        if (oldRating == 0) {
+            delta[0]++;
+        } else {
+            delta[2 + oldRating - 1]--;
+        }
+        delta[1] += newRating - oldRating;
+        delta[2 + newRating - 1]++;
+    }
+
+    /**
+     * Write a batch of ratings and add their differences from the stored
+     * ratings to the book aggregates, in the caller's transaction.
+     *
+     * @return a change log entry for each book whose aggregates changed
+     */
+    static List<ChangeLog.Change> write(Connection connection, Map<Key, int[]> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Key, Integer> stored = lockStored(connection, batch.keySet());
+        Map<Integer, long[]> deltas = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO user_rating (user_name, book_id, rating) VALUES (?, ?, ?) "
+                        + "ON DUPLICATE KEY UPDATE rating = VALUES(rating)")) {
+            for (Map.Entry<Key, int[]> entry : batch.entrySet()) {
+                int[] change = {stored.getOrDefault(entry.getKey(), 0), entry.getValue()[1]};
+                if (change[0] == change[1]) {
+                    continue;
+                }
+                statement.setString(1, entry.getKey().user());
+                statement.setInt(2, entry.getKey().bookId());
+                statement.setInt(3, change[1]);
+                statement.addBatch();
+                addDelta(deltas.computeIfAbsent(entry.getKey().bookId(), id -> new long[2 + HISTOGRAM]), change);
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO book_rating (book_id, ratings, rating_sum, r1, r2, r3, r4, r5) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE "
+                        + "ratings = ratings + VALUES(ratings), rating_sum = rating_sum + VALUES(rating_sum), "
+                        + "r1 = r1 + VALUES(r1), r2 = r2 + VALUES(r2), r3 = r3 + VALUES(r3), "
+                        + "r4 = r4 + VALUES(r4), r5 = r5 + VALUES(r5)")) {
+            for (Map.Entry<Integer, long[]> entry : deltas.entrySet()) {
+                long[] delta = entry.getValue();
+                statement.setInt(1, entry.getKey());
+                statement.setLong(2, delta[0]);
+                statement.setLong(3, delta[1]);
+                for (int i = 0; i < HISTOGRAM; i++) {
+                    statement.setLong(4 + i, delta[2 + i]);
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        List<ChangeLog.Change> changes = new ArrayList<>(deltas.size());
+        for (int bookId : deltas.keySet()) {
+            changes.add(new ChangeLog.Change(ChangeLog.BOOK, ChangeLog.RATE, bookId, 0));
+        }
+        return changes;
+    }
+
+    /**
+     * Read the stored ratings of the given users and books, locking them,
+     * or the gaps where they would go, until the transaction ends, so no
+     * other client writes them in between.
+     *
+     * @return the stored ratings, without the keys that have none
+     */
+    private static Map<Key, Integer> lockStored(Connection connection, Set<Key> keys) throws SQLException {
+        Map<String, List<Integer>> booksByUser = new LinkedHashMap<>();
+        for (Key key : keys) {
+            booksByUser.computeIfAbsent(key.user(), u -> new ArrayList<>()).add(key.bookId());
+        }
+        Map<Key, Integer> stored = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> user : booksByUser.entrySet()) {
+            List<Integer> bookIds = user.getValue();
+            for (int start = 0; start < bookIds.size(); start += LOCK_CHUNK) {
+                List<Integer> chunk = bookIds.subList(start, Math.min(bookIds.size(), start + LOCK_CHUNK));
+                StringBuilder sql = new StringBuilder(
+                        "SELECT book_id, rating FROM user_rating WHERE user_name = ? AND book_id IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(") FOR UPDATE");
+                try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                    statement.setString(1, user.getKey());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        statement.setInt(2 + i, chunk.get(i));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            stored.put(new Key(user.getKey(), resultSet.getInt(1)), resultSet.getInt(2));
+                        }
+                    }
+                }
+            }
+        }
+        return stored;
+    }
+}
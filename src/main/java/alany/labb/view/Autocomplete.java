@@ -0,0 +1,134 @@
+package alany.labb.view;
+
+import alany.labb.model.BooksDbException;
+import alany.labb.model.Suggestion;
+import javafx.application.Platform;
+import javafx.geometry.Side;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Shows completions of the text of a search field in a menu below it as
+ * the user types. The model answers from a precomputed index, so there is
+ * no pause before a lookup; it still runs in the background, on the thread
+ * Lookups shares with pickers, as a remote catalogue answers over the
+ * network. A lookup overtaken by a newer one is dropped, before it runs if
+ * it is still waiting. Picking a completion fills in the field and hands
+ * it over.
+ */
+class Autocomplete {
+    private static final int SUGGESTIONS = 8;
+
+    /**
+     * Looks up the completions of a prefix. Called on a background thread.
+     */
+    interface Source {
+        int suggest(CharSequence prefix, Suggestion[] out) throws BooksDbException;
+    }
+
+    private final TextField field;
+    private final Source source;
+    private final Consumer<Suggestion> onPick;
+    private final ContextMenu menu = new ContextMenu();
+    private final Lookups lookups = new Lookups();
+    private boolean enabled = true;
+    private boolean filling; // the field is being filled in from a suggestion
+    private int generation; // of the latest lookup, FX thread only
+
+    Autocomplete(TextField field, Source source, Consumer<Suggestion> onPick) {
+        this.field = field;
+        this.source = source;
+        this.onPick = onPick;
+        field.textProperty().addListener((observable, oldText, newText) -> {
+            if (!filling) {
+                lookUp(newText);
+            }
+        });
+        field.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) {
+                hide();
+            }
+        });
+    }
+
+    /**
+     * Turn suggestions off, e.g. for search modes that do not take text.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            hide();
+        }
+    }
+
+    private void hide() {
+        generation++; // drop a lookup still running
+        lookups.cancel();
+        menu.hide();
+    }
+
+    private void lookUp(String text) {
+        String prefix = text.stripLeading();
+        if (!enabled || prefix.isEmpty()) {
+            hide();
+            return;
+        }
+        int gen = ++generation;
+        lookups.submit(() -> {
+            Suggestion[] found = new Suggestion[SUGGESTIONS];
+            for (int i = 0; i < found.length; i++) {
+                found[i] = new Suggestion();
+            }
+            try {
+                int size = source.suggest(prefix, found);
+                Platform.runLater(() -> show(gen, found, size));
+            } catch (BooksDbException | RuntimeException e) {
+                // suggestions only save typing, so a failed lookup just shows none
+                Platform.runLater(() -> {
+                    if (gen == generation) {
+                        menu.hide();
+                    }
+                });
+            }
+        });
+    }
+
+    private void show(int gen, Suggestion[] found, int size) {
+        if (gen != generation) {
+            return;
+        }
+        if (size == 0) {
+            menu.hide();
+            return;
+        }
+        List<MenuItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Suggestion suggestion = found[i];
+            MenuItem item = new MenuItem(suggestion.getText() + "  (" + suggestion.getMode() + ")");
+            item.setMnemonicParsing(false);
+            item.setOnAction(event -> pick(suggestion));
+            items.add(item);
+        }
+        menu.getItems().setAll(items);
+        if (!menu.isShowing()) {
+            menu.show(field, Side.BOTTOM, 0, 0);
+        }
+    }
+
+    private void pick(Suggestion suggestion) {
+        filling = true;
+        try {
+            field.setText(suggestion.getText());
+            field.positionCaret(suggestion.getText().length());
+        } finally {
+            filling = false;
+        }
+        hide();
+        onPick.accept(suggestion);
+    }
+}
@@ -1,10 +1,16 @@
 package alany.labb.view;
 
 
+import java.io.File;
+import java.nio.file.Path;
 import java.sql.Date;
 import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
 import alany.labb.model.*;
 import javafx.collections.FXCollections;
@@ -13,11 +19,12 @@ import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.scene.control.*;
-import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 
 
 public class BooksPane extends VBox {
@@ -25,11 +32,14 @@ public class BooksPane extends VBox {
     private ObservableList<Book> booksInTable; // the data backing the table view
     private ComboBox<SearchMode> searchModeBox;
     private TextField searchField;
+    private Autocomplete autocomplete;
     private Button searchButton;
+    private Label statusLabel;
+    private ResultFeed resultFeed;
 
     private MenuBar menuBar;
 
-    public BooksPane(BooksDb booksDb) {
+    public BooksPane(IBooksDb booksDb) {
         final Controller controller = new Controller(booksDb, this);
         this.init(controller);
     }
@@ -41,18 +51,66 @@ public class BooksPane extends VBox {
      * @param books the books to display
      */
     public void displayBooks(List<Book> books) {
+        resultFeed.cancel();
         booksInTable.clear();
         booksInTable.addAll(books);
+        statusLabel.setText(books.size() + " rows");
     }
 
-    public Author chooseAuthor(List<Author> authors) {
-        ChoiceDialog<Author> dialog = new ChoiceDialog<>(authors.get(0), authors);
-        dialog.setTitle("Choose a Book");
-        dialog.setHeaderText(null);
-        dialog.setContentText("Select a book:");
+    /**
+     * Clear the table for a new search whose result is delivered with
+     * appendResults, cancelling any delivery still in flight.
+     * Must be called on the FX thread.
+     *
+     * @param onEmpty run if the search finishes without results
+     * @return the id of the delivery, to pass to appendResults and endResults
+     */
+    public int beginResults(Runnable onEmpty) {
+        return resultFeed.start(onEmpty);
+    }
 
-        Optional<Author> result = dialog.showAndWait();
-        return result.orElse(null);
+    /**
+     * Append a chunk of search results to the table. May be called from
+     * any thread; the rows are added in batches on the FX thread.
+     *
+     * @return false if the delivery has been cancelled by a newer one
+     */
+    public boolean appendResults(int delivery, List<Book> books, int scanned, int total) {
+        return resultFeed.offer(delivery, books, scanned, total);
+    }
+
+    /**
+     * Mark a delivery as complete. May be called from any thread.
+     */
+    public void endResults(int delivery) {
+        resultFeed.finish(delivery);
+    }
+
+    /**
+     * Mark a delivery as failed, unless a newer one has replaced it.
+     * Must be called on the FX thread.
+     */
+    public void failResults(int delivery) {
+        resultFeed.fail(delivery);
+    }
+
+    /**
+     * Redraw the visible rows, e.g. after ratings or authors of the
+     * displayed books have been changed by another client.
+     */
+    public void refreshBooks() {
+        booksTable.refresh();
+    }
+
+    /**
+     * Let the user pick an author found by name.
+     *
+     * @return the author, or null if cancelled
+     */
+    Author chooseAuthor(Picker.Source<Author> authors) {
+        return new Picker<>("Choose an Author", "Type a name...", authors,
+                author -> author.getFirstName() + " " + author.getLastName() + " (" + author.getBirthDay() + ")")
+                .showAndWait();
     }
 
     /**
@@ -69,6 +127,8 @@ public class BooksPane extends VBox {
 
     private void init(Controller controller) {
         booksInTable = FXCollections.observableArrayList();
+        statusLabel = new Label();
+        resultFeed = new ResultFeed(booksInTable, statusLabel);
 
         // init views and event handlers
         initBooksTable();
@@ -78,7 +138,7 @@ public class BooksPane extends VBox {
         FlowPane bottomPane = new FlowPane();
         bottomPane.setHgap(10);
         bottomPane.setPadding(new Insets(10, 10, 10, 10));
-        bottomPane.getChildren().addAll(searchModeBox, searchField, searchButton);
+        bottomPane.getChildren().addAll(searchModeBox, searchField, searchButton, statusLabel);
 
         BorderPane mainPane = new BorderPane();
         mainPane.setCenter(booksTable);
@@ -99,27 +159,76 @@ public class BooksPane extends VBox {
         TableColumn<Book, String> isbnCol = new TableColumn<>("ISBN");
         TableColumn<Book, Date> publishedCol = new TableColumn<>("Published");
         TableColumn<Book, Genre> genreCol = new TableColumn<>("Genre");
-        TableColumn<Book, Date> ratingCol = new TableColumn<>("Rating");
-        TableColumn<Book, Date> authorsCol = new TableColumn<>("Authors");
+        TableColumn<Book, String> ratingCol = new TableColumn<>("Rating");
+        TableColumn<Book, String> authorsCol = new TableColumn<>("Authors");
         booksTable.getColumns().addAll(titleCol, isbnCol, publishedCol, genreCol, ratingCol, authorsCol);
         // give title column some extra space
         titleCol.prefWidthProperty().bind(booksTable.widthProperty().multiply(0.2));
         isbnCol.prefWidthProperty().bind(booksTable.widthProperty().multiply(0.1));
         authorsCol.prefWidthProperty().bind(booksTable.widthProperty().multiply(0.4));
 
-        // define how to fill data for each cell,
-        // get values from Book properties
-        titleCol.setCellValueFactory(new PropertyValueFactory<>("title"));
-        isbnCol.setCellValueFactory(new PropertyValueFactory<>("isbn"));
-        publishedCol.setCellValueFactory(new PropertyValueFactory<>("published"));
-        genreCol.setCellValueFactory(new PropertyValueFactory<>("Genre"));
-        ratingCol.setCellValueFactory(new PropertyValueFactory<>("rating"));
-        authorsCol.setCellValueFactory(new PropertyValueFactory<>("authors"));
+        // define how to fill data for each cell: the cells read the Book
+        // getters of their row directly, so there are no cell values to allocate
+        Map<TableColumn<Book, ?>, Comparator<Book>> orders = new HashMap<>();
+        showColumn(titleCol, Book::getTitle, orders);
+        showColumn(isbnCol, Book::getIsbn, orders);
+        showColumn(publishedCol, Book::getPublished, orders);
+        showColumn(genreCol, Book::getGenre, orders);
+        showColumn(ratingCol, Book::getRatingDisplay, orders);
+        orders.put(ratingCol, Comparator.comparingDouble(Book::getAverageRating)); // not by the text
+        showColumn(authorsCol, Book::getAuthorsDisplay, orders);
+        // without cell values the default policy has nothing to sort by
+        booksTable.setSortPolicy(table -> {
+            Comparator<Book> order = null;
+            for (TableColumn<Book, ?> column : table.getSortOrder()) {
+                Comparator<Book> byColumn = orders.get(column);
+                if (column.getSortType() == TableColumn.SortType.DESCENDING) {
+                    byColumn = byColumn.reversed();
+                }
+                order = order == null ? byColumn : order.thenComparing(byColumn);
+            }
+            if (order != null) {
+                FXCollections.sort(table.getItems(), order);
+            }
+            return true;
+        });
 
         // associate the table view with the data
         booksTable.setItems(booksInTable);
     }
 
+    private static <T extends Comparable<? super T>> void showColumn(
+            TableColumn<Book, T> column, Function<Book, T> value, Map<TableColumn<Book, ?>, Comparator<Book>> orders) {
+        column.setCellFactory(c -> new BookCell<>(value));
+        orders.put(column, Comparator.comparing(value, Comparator.nullsLast(Comparator.naturalOrder())));
+    }
+
+    /**
+     * Plain text cell that reads its value from the book of its row, and
+     * only touches its text when the displayed value changes, so reusing a
+     * cell for the same value on a layout pass does not format or allocate
+     * anything.
+     */
+    private static class BookCell<T> extends TableCell<Book, T> {
+        private final Function<Book, T> valueOf;
+        private Object shown;
+
+        BookCell(Function<Book, T> valueOf) {
+            this.valueOf = valueOf;
+        }
+
+        @Override
+        protected void updateItem(T item, boolean empty) {
+            super.updateItem(item, empty);
+            Book book = empty || getTableRow() == null ? null : getTableRow().getItem();
+            Object value = book == null ? null : valueOf.apply(book);
+            if (value != shown) {
+                shown = value;
+                setText(value == null ? null : value.toString());
+            }
+        }
+    }
+
     private void initSearchView(Controller controller) {
         searchField = new TextField();
         searchField.setPromptText("Search for...");
@@ -127,6 +236,18 @@ public class BooksPane extends VBox {
         searchModeBox.getItems().addAll(SearchMode.values());
         searchModeBox.setValue(SearchMode.Title);
         searchButton = new Button("Search");
+        searchModeBox.valueProperty().addListener((observable, oldMode, newMode) -> {
+            searchField.setPromptText(newMode == SearchMode.Published
+                    ? "e.g. 1990..1999 or 2001-01-01..2005-06-30"
+                    : newMode == SearchMode.Fuzzy ? "Title or author, misspelled is fine" : "Search for...");
+            autocomplete.setEnabled(newMode == SearchMode.Title || newMode == SearchMode.ISBN
+                    || newMode == SearchMode.Author || newMode == SearchMode.Fuzzy);
+        });
+        // picking a title, author or ISBN searches for it at once
+        autocomplete = new Autocomplete(searchField, controller::suggest, suggestion -> {
+            searchModeBox.setValue(suggestion.getMode());
+            controller.onSearchSelected(suggestion.getText(), suggestion.getMode());
+        });
 
         // event handling (dispatch to controller)
         searchButton.setOnAction(new EventHandler<ActionEvent>() {
@@ -146,7 +267,10 @@ public class BooksPane extends VBox {
         MenuItem addRelationItem = new MenuItem("Add Relation");
         MenuItem rateItem = new MenuItem("Rate");
         MenuItem updateItem = new MenuItem("Update");
-        manageMenu.getItems().addAll(addBookItem, addAuthorItem, addRelationItem, rateItem, updateItem);
+        MenuItem importItem = new MenuItem("Import...");
+        MenuItem exportItem = new MenuItem("Export...");
+        manageMenu.getItems().addAll(addBookItem, addAuthorItem, addRelationItem, rateItem, updateItem,
+                new SeparatorMenuItem(), importItem, exportItem);
 
         addBookItem.setOnAction(new EventHandler<ActionEvent>() {
             @Override
@@ -183,6 +307,20 @@ public class BooksPane extends VBox {
             }
         });
 
+        importItem.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                controller.onImportSelected();
+            }
+        });
+
+        exportItem.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                controller.onExportSelected();
+            }
+        });
+
         menuBar = new MenuBar();
         menuBar.getMenus().addAll(manageMenu);
     }
@@ -218,14 +356,15 @@ public class BooksPane extends VBox {
         return ratingComboBox.getValue();
     }
 
-    public Book chooseBook(List<Book> bookList) {
-        ChoiceDialog<Book> dialog = new ChoiceDialog<>(bookList.get(0), bookList);
-        dialog.setTitle("Choose a Book");
-        dialog.setHeaderText(null);
-        dialog.setContentText("Select a book:");
-
-        Optional<Book> result = dialog.showAndWait();
-        return result.orElse(null);
+    /**
+     * Let the user pick a book found by title or ISBN.
+     *
+     * @return the book, or null if cancelled
+     */
+    Book chooseBook(Picker.Source<Book> books) {
+        return new Picker<>("Choose a Book", "Type a title or ISBN...", books,
+                book -> book.getTitle() + " (" + book.getIsbn() + ")")
+                .showAndWait();
     }
 
     public String enterTitle() {
@@ -323,6 +462,41 @@ public class BooksPane extends VBox {
         return result.orElse(null);
     }
 
+    public Path chooseImportFile() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Catalogue");
+        chooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV or JSON", "*.csv", "*.json", "*.jsonl", "*.ndjson"),
+                new FileChooser.ExtensionFilter("All files", "*.*"));
+        File file = chooser.showOpenDialog(getScene().getWindow());
+        return file == null ? null : file.toPath();
+    }
+
+    public ExportFormat selectExportFormat() {
+        ChoiceDialog<ExportFormat> dialog = new ChoiceDialog<>(ExportFormat.CSV, ExportFormat.values());
+        dialog.setTitle("Export Catalogue");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Select a format:");
+
+        Optional<ExportFormat> result = dialog.showAndWait();
+        return result.orElse(null);
+    }
+
+    public Path chooseExportDirectory() {
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Export Catalogue To");
+        File directory = chooser.showDialog(getScene().getWindow());
+        return directory == null ? null : directory.toPath();
+    }
+
+    /**
+     * Show a short status text next to the search field.
+     * Must be called on the FX thread.
+     */
+    public void showStatus(String status) {
+        statusLabel.setText(status);
+    }
+
     public void alreadyAssociated(String bookTitle, String authorName) {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setTitle("Already Associated");
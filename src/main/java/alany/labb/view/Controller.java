@@ -2,6 +2,7 @@ package alany.labb.view;
 
 import alany.labb.model.*;
 
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,60 +10,82 @@ import java.util.List;
 import static javafx.scene.control.Alert.AlertType.*;
 
 public class Controller {
+    private static final int SEARCH_CHUNK_SIZE = 256;
+
     private final BooksPane booksView; // view
     private final IBooksDb booksDb; // model
     public Controller(IBooksDb booksDb, BooksPane booksView) {
         this.booksDb = booksDb;
         this.booksView = booksView;
+        // changes from other clients arrive on the poller thread
+        booksDb.addChangeListener(() -> javafx.application.Platform.runLater(booksView::refreshBooks));
     }
 
     protected void onSearchSelected(String searchFor, SearchMode mode) {
-        List<Book> result;
-        try {
-            if (mode == SearchMode.Genre){
-                searchFor = booksView.getSelectedGenre();
-                result = booksDb.searchBooksByGenre(searchFor);
-            }
-            else if(mode == SearchMode.Rating){
-                searchFor = booksView.getSelectedRating();
-                result = booksDb.searchBooksByRating(searchFor);
-            }
-            else {
-                if (searchFor == null || searchFor.length() < 2){
-                    booksView.showAlertAndWait("Enter a string.", INFORMATION);
-                    return;
-                }
-                switch (mode) {
-                    case Title:
-                        result = booksDb.searchBooksByTitle(searchFor);
-                        break;
-                    case ISBN:
-                        result = booksDb.searchBooksByISBN(searchFor);
-                        break;
-                    case Author:
-                        result = booksDb.searchBooksByAuthor(searchFor);
-                        break;
-                    default:
-                        result = new ArrayList<>();
-                }
-            }
+        if (mode == SearchMode.Genre){
+            searchFor = booksView.getSelectedGenre();
+        }
+        else if(mode == SearchMode.Rating || mode == SearchMode.MinRating){
+            searchFor = booksView.getSelectedRating();
+        }
+        else if (searchFor == null || searchFor.length() < 2){
+            booksView.showAlertAndWait("Enter a string.", INFORMATION);
+            return;
+        }
+        if (searchFor == null){
+            return;
+        }
 
-            if (result == null || result.isEmpty()) {
-                booksView.showAlertAndWait(
-                        "No results found.", INFORMATION);
-            } else {
-                booksView.displayBooks(result);
+        // the view cancels the previous delivery, so a stale search stops at its next chunk
+        final String query = searchFor;
+        final int delivery = booksView.beginResults(
+                () -> booksView.showAlertAndWait("No results found.", INFORMATION));
+        new Thread(() -> {
+            try {
+                booksDb.searchBooks(mode, query, SEARCH_CHUNK_SIZE,
+                        (chunk, scanned, total) -> booksView.appendResults(delivery, chunk, scanned, total));
+                booksView.endResults(delivery);
+            } catch (Exception e) {
+                javafx.application.Platform.runLater(() -> {
+                    booksView.failResults(delivery);
+                    booksView.showAlertAndWait("Database error.",ERROR);
+                });
             }
+        }).start();
+    }
 
-        } catch (Exception e) {
-            booksView.showAlertAndWait("Database error.",ERROR);
+    /**
+     * Completions of what the user is typing in the search field.
+     */
+    int suggest(CharSequence prefix, Suggestion[] out) throws BooksDbException {
+        return booksDb.suggest(prefix, out);
+    }
+
+    /**
+     * Books whose title or ISBN starts with query, in title order;
+     * misspelled titles are tried fuzzily.
+     */
+    private List<Book> findBooks(String query, int limit) throws BooksDbException {
+        List<Book> books = booksDb.findBooks(query, limit);
+        if (books.isEmpty() && query.length() >= 3) {
+            books = booksDb.searchBooksFuzzy(query);
+            if (books.size() > limit) {
+                books = new ArrayList<>(books.subList(0, limit));
+            }
         }
+        return books;
     }
 
     protected void onRateSelected(){
-        Book book = booksView.chooseBook(booksDb.getBooks());
-        int rating = Integer.parseInt(booksView.getSelectedRating());
-        booksDb.rateBook(book, rating);
+        Book book = booksView.chooseBook(this::findBooks);
+        if (book == null) {
+            return;
+        }
+        String rating = booksView.getSelectedRating();
+        if (rating == null) {
+            return;
+        }
+        booksDb.rateBook(book, Integer.parseInt(rating));
     }
 
     protected void onAddBookSelected(){
@@ -71,7 +94,11 @@ public class Controller {
         String genre = booksView.selectGenre();
         String rating = booksView.selectRating();
 
-        booksDb.createBook(title, isbn, genre, rating);
+        try {
+            booksDb.createBook(title, isbn, genre, rating);
+        } catch (BooksDbException e) {
+            booksView.showAlertAndWait(e.getMessage(), ERROR);
+        }
     }
 
     protected void onAddAuthorSelected(){
@@ -79,17 +106,80 @@ public class Controller {
         String lastName = booksView.enterLastName();
         LocalDate date = booksView.pickDateOfBirth();
 
-        booksDb.createAuthor(firstName, lastName, date);
+        try {
+            booksDb.createAuthor(firstName, lastName, date);
+        } catch (BooksDbException e) {
+            booksView.showAlertAndWait(e.getMessage(), ERROR);
+        }
     }
 
     protected void onAddRelationSelected(){
-        Book book = booksView.chooseBook(booksDb.getBooks());
-        Author author = booksView.chooseAuthor(booksDb.getAuthors());
+        Book book = booksView.chooseBook(this::findBooks);
+        if (book == null) {
+            return;
+        }
+        Author author = booksView.chooseAuthor(booksDb::searchAuthors);
+        if (author == null) {
+            return;
+        }
         if (!booksDb.createRelation(book, author)){
             booksView.alreadyAssociated(book.getTitle(), author.getFirstName() + " " + author.getLastName());
         }
     }
 
+    protected void onImportSelected() {
+        Path file = booksView.chooseImportFile();
+        if (file == null) {
+            return;
+        }
+        booksView.showStatus("Importing " + file.getFileName() + "...");
+        new Thread(() -> {
+            try {
+                ImportStats stats = booksDb.importCatalogue(file, progress -> {
+                    javafx.application.Platform.runLater(() -> {
+                        booksView.showStatus("Importing: " + progress);
+                    });
+                });
+                javafx.application.Platform.runLater(() -> {
+                    booksView.showStatus("");
+                    booksView.showAlertAndWait("Import done: " + stats, INFORMATION);
+                });
+            } catch (BooksDbException e) {
+                javafx.application.Platform.runLater(() -> {
+                    booksView.showStatus("");
+                    booksView.showAlertAndWait(e.getMessage()
+                            + ". Import the same file again to resume.", ERROR);
+                });
+            }
+        }).start();
+    }
+
+    protected void onExportSelected() {
+        ExportFormat format = booksView.selectExportFormat();
+        if (format == null) {
+            return;
+        }
+        Path directory = booksView.chooseExportDirectory();
+        if (directory == null) {
+            return;
+        }
+        booksView.showStatus("Exporting...");
+        new Thread(() -> {
+            try {
+                long rows = booksDb.exportCatalogue(directory, format);
+                javafx.application.Platform.runLater(() -> {
+                    booksView.showStatus("");
+                    booksView.showAlertAndWait("Exported " + rows + " rows to " + directory, INFORMATION);
+                });
+            } catch (BooksDbException e) {
+                javafx.application.Platform.runLater(() -> {
+                    booksView.showStatus("");
+                    booksView.showAlertAndWait(e.getMessage(), ERROR);
+                });
+            }
+        }).start();
+    }
+
     protected void onUpdateSelected() {
         new Thread(() -> {
             try {
@@ -0,0 +1,46 @@
+package alany.labb.view;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the lookups of the search field's autocomplete and of pickers on
+ * one shared background thread, so typing does not start a thread per
+ * keystroke.
+ *
+ * Each field submits through its own Lookups. A lookup that is still
+ * waiting when its field submits a newer one is dropped without running,
+ * so a burst of keystrokes costs at most the lookup already running and
+ * the latest one.
+ */
+class Lookups {
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Lookups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicReference<Runnable> waiting = new AtomicReference<>();
+
+    /**
+     * Run a lookup on the shared thread, in place of this field's waiting one.
+     */
+    void submit(Runnable lookup) {
+        if (waiting.getAndSet(lookup) == null) {
+            EXECUTOR.execute(() -> {
+                Runnable next = waiting.getAndSet(null);
+                if (next != null) {
+                    next.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop this field's waiting lookup, if any.
+     */
+    void cancel() {
+        waiting.set(null);
+    }
+}
@@ -0,0 +1,138 @@
+package alany.labb.view;
+
+import alany.labb.model.BooksDbException;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
+import javafx.scene.layout.VBox;
+import javafx.util.Duration;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * A dialog that picks one book or author out of a catalogue of any size.
+ *
+ * Opening loads nothing up front: the first matches of an empty query are
+ * looked up in the background once the dialog shows. As the user types,
+ * the query is looked up in the model after a short pause, and only the
+ * first LIMIT matches are shown, in a ListView, which only creates cells
+ * for the visible rows. Lookups run on the thread Lookups shares with the
+ * search field's autocomplete, and one overtaken by a newer one is dropped.
+ */
+class Picker<T> {
+    static final int LIMIT = 200;
+    private static final Duration DEBOUNCE = Duration.millis(150);
+
+    /**
+     * Looks up the items matching a query. Called on a background thread.
+     */
+    interface Source<T> {
+        List<T> find(String query, int limit) throws BooksDbException;
+    }
+
+    private final Source<T> source;
+    private final Dialog<T> dialog = new Dialog<>();
+    private final TextField queryField = new TextField();
+    private final ListView<T> matches = new ListView<>();
+    private final Label status = new Label();
+    private final PauseTransition pause = new PauseTransition(DEBOUNCE);
+    private final Lookups lookups = new Lookups();
+    private int generation; // of the latest lookup, FX thread only
+
+    /**
+     * @param label the text to show for an item
+     */
+    Picker(String title, String prompt, Source<T> source, Function<T, String> label) {
+        this.source = source;
+        dialog.setTitle(title);
+        dialog.setHeaderText(null);
+        dialog.setResizable(true);
+        queryField.setPromptText(prompt);
+        matches.setPrefSize(480, 320);
+        matches.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(T item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : label.apply(item));
+            }
+        });
+
+        VBox content = new VBox(8, queryField, matches, status);
+        content.setPadding(new Insets(10));
+        dialog.getDialogPane().setContent(content);
+        dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        dialog.getDialogPane().lookupButton(ButtonType.OK).disableProperty()
+                .bind(matches.getSelectionModel().selectedItemProperty().isNull());
+        dialog.setResultConverter(button -> button == ButtonType.OK
+                ? matches.getSelectionModel().getSelectedItem() : null);
+
+        pause.setOnFinished(event -> lookUp(queryField.getText()));
+        queryField.textProperty().addListener((observable, oldText, newText) -> pause.playFromStart());
+        // arrow down moves from the query to the list, a double click picks
+        queryField.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.DOWN && !matches.getItems().isEmpty()) {
+                matches.requestFocus();
+                matches.getSelectionModel().selectFirst();
+            }
+        });
+        matches.setOnMouseClicked(event -> {
+            if (event.getButton() == MouseButton.PRIMARY && event.getClickCount() == 2
+                    && matches.getSelectionModel().getSelectedItem() != null) {
+                dialog.setResult(matches.getSelectionModel().getSelectedItem());
+                dialog.close();
+            }
+        });
+        dialog.setOnShown(event -> {
+            queryField.requestFocus();
+            lookUp("");
+        });
+    }
+
+    /**
+     * @return the picked item, or null if the dialog was cancelled
+     */
+    T showAndWait() {
+        Optional<T> result = dialog.showAndWait();
+        pause.stop();
+        generation++; // drop a lookup still running
+        lookups.cancel();
+        return result.orElse(null);
+    }
+
+    private void lookUp(String query) {
+        int gen = ++generation;
+        status.setText("Searching...");
+        lookups.submit(() -> {
+            try {
+                List<T> found = source.find(query.trim(), LIMIT);
+                Platform.runLater(() -> show(gen, found));
+            } catch (BooksDbException | RuntimeException e) {
+                Platform.runLater(() -> {
+                    if (gen == generation) {
+                        status.setText("Search failed: " + e.getMessage());
+                    }
+                });
+            }
+        });
+    }
+
+    private void show(int gen, List<T> found) {
+        if (gen != generation) {
+            return;
+        }
+        matches.getItems().setAll(found);
+        status.setText(found.isEmpty() ? "No matches"
+                : found.size() >= LIMIT ? "First " + LIMIT + " matches, type more to narrow them down"
+                : found.size() + " matches");
+    }
+}
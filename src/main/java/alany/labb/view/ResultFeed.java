@@ -0,0 +1,144 @@
+package alany.labb.view;
+
+import alany.labb.model.Book;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves search results from a background search thread into the table
+ * data in batches on the FX thread, so the first rows show up while the
+ * search is still running.
+ *
+ * Chunks offered from any thread are queued, and at most one flush is
+ * scheduled on the FX thread at a time; a flush appends up to
+ * MAX_ROWS_PER_FLUSH rows and reschedules itself if more are waiting.
+ * Every delivery has a generation number. Starting a new delivery makes
+ * all chunks of older generations stale, which cancels them.
+ */
+class ResultFeed {
+    private static final int MAX_ROWS_PER_FLUSH = 2000;
+
+    private final ObservableList<Book> target;
+    private final Label status;
+    private final ConcurrentLinkedQueue<Chunk> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile int generation;
+    private Runnable onEmpty;
+
+    private record Chunk(int generation, List<Book> books, int scanned, int total) {}
+
+    ResultFeed(ObservableList<Book> target, Label status) {
+        this.target = target;
+        this.status = status;
+    }
+
+    /**
+     * Start a new delivery, cancelling any delivery in flight and
+     * clearing the table. Must be called on the FX thread.
+     *
+     * @param onEmpty run on the FX thread if the delivery finishes without any rows
+     * @return the generation to offer chunks with
+     */
+    int start(Runnable onEmpty) {
+        int gen = ++generation;
+        this.onEmpty = onEmpty;
+        pending.clear();
+        target.clear();
+        status.setText("Searching...");
+        return gen;
+    }
+
+    /**
+     * Cancel any delivery in flight. Must be called on the FX thread.
+     */
+    void cancel() {
+        generation++;
+        pending.clear();
+        status.setText("");
+    }
+
+    /**
+     * End a delivery whose search failed, keeping the rows shown so far
+     * but dropping those still queued. Must be called on the FX thread.
+     */
+    void fail(int gen) {
+        if (gen == generation) {
+            cancel();
+            status.setText("Search failed after " + target.size() + " rows");
+        }
+    }
+
+    /**
+     * Queue a chunk of results. May be called from any thread.
+     *
+     * @return false if the delivery has been cancelled and the producer should stop
+     */
+    boolean offer(int gen, List<Book> books, int scanned, int total) {
+        if (gen != generation) {
+            return false;
+        }
+        pending.add(new Chunk(gen, books, scanned, total));
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Mark the end of a delivery. May be called from any thread.
+     */
+    void finish(int gen) {
+        if (gen == generation) {
+            pending.add(new Chunk(gen, null, 0, 0));
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        int gen = generation;
+        List<Book> batch = new ArrayList<>();
+        boolean done = false;
+        String progress = null;
+        Chunk chunk;
+        while (batch.size() < MAX_ROWS_PER_FLUSH && (chunk = pending.poll()) != null) {
+            if (chunk.generation() != gen) {
+                continue;
+            }
+            if (chunk.books() == null) {
+                done = true;
+                break;
+            }
+            batch.addAll(chunk.books());
+            if (chunk.total() > 0) {
+                progress = (int) (100L * chunk.scanned() / chunk.total()) + "%";
+            }
+        }
+        if (!batch.isEmpty()) {
+            target.addAll(batch);
+        }
+        if (done) {
+            status.setText(target.size() + " rows");
+            if (target.isEmpty() && onEmpty != null) {
+                onEmpty.run();
+            }
+        } else {
+            if (progress != null) {
+                status.setText(target.size() + " rows (searched " + progress + ")");
+            }
+            if (!pending.isEmpty()) {
+                scheduleFlush();
+            }
+        }
+    }
+}
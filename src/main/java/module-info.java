@@ -3,8 +3,9 @@ module alany.labb {
     requires javafx.base;
 
     opens alany.labb to javafx.base;
-    opens alany.labb.model to javafx.base; // open alany.labb.model package for reflection from PropertyValuesFactory (sigh ...)
     exports alany.labb;
 
     requires java.sql;
+    requires java.net.http;
+    requires jdk.httpserver;
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AutocompleteIndexTest {
+
+    /**
+     * A key as the index should hold it: the text from start on is matched,
+     * and order is the order keys were added in, which breaks weight ties.
+     */
+    private record Key(String text, int start, SearchMode mode, Object owner, int order) {
+        boolean matches(String prefix) {
+            return text.substring(start).toLowerCase().startsWith(prefix.toLowerCase());
+        }
+
+        int weight() {
+            return owner instanceof Book ? AutocompleteIndex.weight((Book) owner)
+                    : AutocompleteIndex.weight((Author) owner);
+        }
+
+        String suggested() {
+            return text + "|" + mode;
+        }
+    }
+
+    private static String word(Random random, String letters, int length) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            word.append(letters.charAt(random.nextInt(letters.length())));
+        }
+        return word.toString();
+    }
+
+    @Test
+    void completesLikeRankingAllKeys() {
+        Random random = new Random(1);
+        AutocompleteIndex index = new AutocompleteIndex(16);
+        List<Key> keys = new ArrayList<>();
+        List<Book> books = new ArrayList<>();
+        List<Author> authors = new ArrayList<>();
+        Set<Long> linked = new HashSet<>();
+        for (int id = 0; id < 3000; id++) {
+            if (random.nextInt(5) == 0) {
+                String first = (char) ('a' + random.nextInt(3)) + word(random, "abc", 3);
+                String last = (char) ('x' + random.nextInt(3)) + word(random, "xyz", 3);
+                Author author = new Author(id, first, last, LocalDate.of(1950, 1, 1));
+                authors.add(author);
+                index.addAuthor(author);
+                keys.add(new Key(first + " " + last, 0, SearchMode.Author, author, keys.size()));
+                keys.add(new Key(first + " " + last, first.length() + 1, SearchMode.Author, author, keys.size()));
+            } else {
+                // short titles over few letters, so many share prefixes and some repeat
+                String title = (random.nextBoolean() ? "T" : "t") + word(random, "abcde ", 1 + random.nextInt(8));
+                Book book = new Book(id, "9" + (100000 + id), title, Date.valueOf("2000-01-01"),
+                        Genre.values()[0], 1 + random.nextInt(5));
+                books.add(book);
+                index.addBook(book);
+                keys.add(new Key(title, 0, SearchMode.Title, book, keys.size()));
+                keys.add(new Key(book.getIsbn(), 0, SearchMode.ISBN, book, keys.size()));
+            }
+            if (random.nextInt(4) == 0 && !books.isEmpty()) {
+                Book book = books.get(random.nextInt(books.size()));
+                book.rate(0, 1 + random.nextInt(5));
+                index.updateBook(book);
+            }
+            if (random.nextInt(4) == 0 && !books.isEmpty() && !authors.isEmpty()) {
+                Author author = authors.get(random.nextInt(authors.size()));
+                Book book = books.get(random.nextInt(books.size()));
+                if (linked.add(RelationIndex.pack(author.getAuthorId(), book.getBookId()))) {
+                    author.linkBook(book);
+                    index.updateAuthor(author);
+                }
+            }
+        }
+
+        Suggestion[] out = new Suggestion[AutocompleteIndex.TOP];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new Suggestion();
+        }
+        for (int query = 0; query < 1000; query++) {
+            String prefix = query == 0 ? "" : word(random, "tTabcde xyz9", random.nextInt(5));
+            // the best weight of each text and mode, and their best first keys
+            Map<String, Integer> weights = new HashMap<>();
+            List<Key> matching = new ArrayList<>();
+            for (Key key : keys) {
+                if (key.matches(prefix)) {
+                    matching.add(key);
+                    weights.merge(key.suggested(), key.weight(), Math::max);
+                }
+            }
+            matching.sort(Comparator.comparingInt(Key::weight).reversed().thenComparingInt(Key::order));
+            List<String> expected = new ArrayList<>();
+            for (Key key : matching) {
+                if (expected.size() < out.length && !expected.contains(key.suggested())) {
+                    expected.add(key.suggested());
+                }
+            }
+            List<String> actual = new ArrayList<>();
+            int size = index.complete(prefix, out);
+            for (int i = 0; i < size; i++) {
+                actual.add(out[i].getText() + "|" + out[i].getMode());
+            }
+
+            assertEquals(expected.stream().map(weights::get).toList(), actual.stream().map(weights::get).toList(),
+                    "weights of the completions of '" + prefix + "'");
+            assertEquals(new HashSet<>(expected), new HashSet<>(actual), "completions of '" + prefix + "'");
+
+            // the pickers find every book and author with a matching key, once
+            Set<Object> owners = new HashSet<>();
+            for (Key key : matching) {
+                owners.add(key.owner());
+            }
+            List<Book> foundBooks = index.books(prefix, Integer.MAX_VALUE);
+            List<Author> foundAuthors = index.authors(prefix, Integer.MAX_VALUE);
+            Set<Object> found = new HashSet<>(foundBooks);
+            found.addAll(foundAuthors);
+            assertEquals(owners, found, "books and authors of '" + prefix + "'");
+            assertEquals(found.size(), foundBooks.size() + foundAuthors.size());
+            assertEquals(Math.min(3, foundBooks.size()), index.books(prefix, 3).size());
+        }
+    }
+}
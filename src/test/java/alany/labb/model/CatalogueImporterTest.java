@@ -0,0 +1,96 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CatalogueImporterTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * A book, its author and their relation after each other, n times.
+     */
+    private Path interleaved(int n) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("{\"type\":\"book\",\"isbn\":\"isbn").append(i).append("\",\"title\":\"Title ").append(i)
+                    .append("\",\"genre\":\"Fiction\"}\n");
+            sb.append("{\"type\":\"author\",\"id\":\"a").append(i).append("\",\"firstName\":\"First").append(i)
+                    .append("\",\"lastName\":\"Last\",\"birthDay\":\"1970-01-01\"}\n");
+            sb.append("{\"type\":\"relation\",\"isbn\":\"isbn").append(i).append("\",\"author_id\":\"a").append(i)
+                    .append("\"}\n");
+        }
+        Path file = dir.resolve("catalogue.jsonl");
+        Files.writeString(file, sb);
+        return file;
+    }
+
+    private static void assertLinked(BooksDb db, int n) {
+        for (int i = 0; i < n; i++) {
+            Book book = db.findBookByIsbn("isbn" + i);
+            assertEquals(1, book.getAuthors().size(), "authors of isbn" + i);
+            assertEquals("First" + i, book.getAuthors().get(0).getFirstName());
+        }
+    }
+
+    @Test
+    void relationsToRowsOfTheSameBatchStayInTheBatch() throws Exception {
+        BooksDb db = new BooksDb((ConnectionRouter) null);
+        List<ImportStats> batches = new ArrayList<>();
+        ImportStats stats = new CatalogueImporter(db, 30).importFile(interleaved(100), batches::add);
+        assertEquals(100, stats.getBooks());
+        assertEquals(100, stats.getAuthors());
+        assertEquals(100, stats.getRelations());
+        // 300 records in batches of 30, plus the final progress call
+        assertEquals(11, batches.size());
+        assertLinked(db, 100);
+    }
+
+    @Test
+    void resumeAfterACommittedButUncheckpointedBatchAddsNoAuthorsTwice() throws Exception {
+        BooksDb db = new BooksDb((ConnectionRouter) null);
+        Path file = interleaved(20);
+        new CatalogueImporter(db, 30).importFile(file, null);
+        // as if the process died after committing everything but before the checkpoint said so
+        Files.writeString(dir.resolve("catalogue.jsonl.checkpoint"), "batch 0 60\n");
+        ImportStats stats = new CatalogueImporter(db, 30).importFile(file, null);
+        assertEquals(0, stats.getBooks());
+        assertEquals(0, stats.getAuthors());
+        assertEquals(0, stats.getRelations());
+        assertEquals(20, db.getAuthors().size());
+        assertLinked(db, 20);
+        assertFalse(Files.exists(dir.resolve("catalogue.jsonl.checkpoint")));
+    }
+
+    @Test
+    void resumeAfterAnUncommittedBatchAddsItsRows() throws Exception {
+        BooksDb db = new BooksDb((ConnectionRouter) null);
+        Path file = interleaved(20);
+        Files.writeString(dir.resolve("catalogue.jsonl.checkpoint"), "batch 0 30\nrecords 30\nbatch 30 60\n");
+        ImportStats stats = new CatalogueImporter(db, 30).importFile(file, null);
+        assertEquals(30, stats.getResumedFrom());
+        assertEquals(10, stats.getBooks());
+        assertEquals(10, stats.getAuthors());
+        assertEquals(10, stats.getRelations());
+    }
+
+    @Test
+    void badUnicodeEscapeIsAFormatError() throws Exception {
+        JsonRecordReader reader = new JsonRecordReader(new StringReader("{\"title\":\"a\\u12g4\"}"));
+        assertThrows(IOException.class, reader::next);
+        reader = new JsonRecordReader(new StringReader("{\"title\":\"a\\u00e9\"}"));
+        assertEquals(Map.of("title", "aé"), reader.next());
+    }
+}
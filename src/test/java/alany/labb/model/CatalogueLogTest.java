@@ -0,0 +1,148 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CatalogueLogTest {
+    @TempDir
+    Path directory;
+
+    private static Book book(int id) {
+        return new Book(id, "isbn" + id, "title " + id, Date.valueOf(LocalDate.of(2000, 1, 1).plusDays(id)),
+                Genre.values()[id % Genre.values().length], 1 + id % 5);
+    }
+
+    private static Author author(int id) {
+        return new Author(id, "first" + id, "last" + id, LocalDate.of(1950, 1, 1).plusDays(id));
+    }
+
+    /**
+     * The contents of a state as comparable strings, as books and authors have no equals.
+     */
+    private static List<String> describe(ModelJournal.State state) {
+        List<String> lines = new ArrayList<>();
+        for (Book book : state.books()) {
+            lines.add("book " + book.getBookId() + " " + book.getIsbn() + " " + book.getTitle() + " "
+                    + book.getPublished() + " " + book.getGenre() + " " + book.getCatalogueRating());
+        }
+        for (Author author : state.authors()) {
+            lines.add("author " + author.getAuthorId() + " " + author.getFirstName() + " "
+                    + author.getLastName() + " " + author.getBirthDay());
+        }
+        for (int i = 0; i + 1 < state.relations().length; i += 2) {
+            lines.add("relation " + state.relations()[i] + " " + state.relations()[i + 1]);
+        }
+        List<String> ratings = new ArrayList<>(); // in no particular order in the state
+        for (Map.Entry<UserRatings.Key, Integer> rating : state.ratings().entrySet()) {
+            ratings.add("rating " + rating.getKey().user() + " " + rating.getKey().bookId() + " " + rating.getValue());
+        }
+        ratings.sort(null);
+        lines.addAll(ratings);
+        return lines;
+    }
+
+    private List<Path> logs() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("log-")).sorted().toList();
+        }
+    }
+
+    private ModelJournal.State reopen() throws IOException {
+        CatalogueLog log = new CatalogueLog(directory);
+        ModelJournal.State state = log.open();
+        log.close();
+        return state;
+    }
+
+    @Test
+    void replayRestoresAppendedChanges() throws IOException {
+        CatalogueLog log = new CatalogueLog(directory);
+        log.open();
+        log.book(book(1));
+        log.book(book(2));
+        log.author(author(1));
+        log.relation(1, 2);
+        log.rating("anna", 1, 4);
+        log.rating("anna", 1, 5);
+        log.rating("bo", 2, 3);
+        log.close();
+
+        ModelJournal.State expected = new ModelJournal.State(List.of(book(1), book(2)), List.of(author(1)),
+                new int[]{1, 2}, Map.of(new UserRatings.Key("anna", 1), 5, new UserRatings.Key("bo", 2), 3));
+        assertEquals(describe(expected), describe(reopen()));
+    }
+
+    @Test
+    void tornTailIsDroppedAndLaterChangesSurvive() throws IOException {
+        CatalogueLog log = new CatalogueLog(directory);
+        log.open();
+        log.book(book(1));
+        log.book(book(2));
+        log.close();
+        // a record header promising more than was written, as after a crash mid-append
+        try (FileChannel channel = FileChannel.open(logs().get(0), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(11).putInt(100).putInt(12345).put((byte) 1).flip());
+        }
+
+        log = new CatalogueLog(directory);
+        assertEquals(2, log.open().books().size());
+        log.book(book(3));
+        log.close();
+
+        assertEquals(2, logs().size(), "changes after a torn tail go to a new generation");
+        assertEquals(describe(new ModelJournal.State(List.of(book(1), book(2), book(3)), List.of(),
+                new int[0], Map.of())), describe(reopen()));
+    }
+
+    @Test
+    void snapshotAndLaterLogsRoundTrip() throws IOException {
+        CatalogueLog log = new CatalogueLog(directory);
+        log.open();
+        log.book(book(1));
+        log.author(author(1));
+        log.relation(1, 1);
+        log.rating("anna", 1, 2);
+        log.checkpoint();
+        // made after the state was captured, so only in the new log
+        log.book(book(2));
+        log.rating("anna", 1, 3);
+        log.writeSnapshot(new ModelJournal.State(List.of(book(1)), List.of(author(1)), new int[]{1, 1},
+                Map.of(new UserRatings.Key("anna", 1), 2)));
+        log.close();
+
+        assertTrue(Files.exists(directory.resolve("snapshot.dat")));
+        assertEquals(1, logs().size(), "the logs before the snapshot are deleted");
+        ModelJournal.State expected = new ModelJournal.State(List.of(book(1), book(2)), List.of(author(1)),
+                new int[]{1, 1}, Map.of(new UserRatings.Key("anna", 1), 3));
+        assertEquals(describe(expected), describe(reopen()));
+    }
+
+    @Test
+    void undatedBookIsRefusedAndLeavesNothingForTheNextRecord() throws IOException {
+        CatalogueLog log = new CatalogueLog(directory);
+        log.open();
+        Book undated = new Book(1, "isbn1", "undated", null, Genre.values()[0], 3);
+        assertThrows(IOException.class, () -> log.book(undated));
+        log.book(book(2));
+        log.close();
+        assertEquals(describe(new ModelJournal.State(List.of(book(2)), List.of(), new int[0], Map.of())),
+                describe(reopen()));
+    }
+}
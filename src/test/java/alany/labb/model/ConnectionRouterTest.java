@@ -0,0 +1,190 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the router against a fake driver, whose databases only answer the
+ * change log position query, in place of a primary and replicas.
+ */
+class ConnectionRouterTest {
+    private static final String PRIMARY = "jdbc:routertest:primary";
+    private static final String REPLICA = "jdbc:routertest:replica";
+    private static final String STALE = "jdbc:routertest:stale";
+
+    private static final Map<String, Long> positions = new ConcurrentHashMap<>();
+    private static final List<FakeConnection> opened = new CopyOnWriteArrayList<>();
+
+    private ConnectionRouter router;
+
+    private static class FakeConnection {
+        final String url;
+        volatile boolean closed;
+
+        FakeConnection(String url) {
+            this.url = url;
+        }
+    }
+
+    @BeforeAll
+    static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(new Driver() {
+            @Override
+            public Connection connect(String url, Properties info) {
+                return acceptsURL(url) ? open(url) : null;
+            }
+
+            @Override
+            public boolean acceptsURL(String url) {
+                return url.startsWith("jdbc:routertest:");
+            }
+
+            @Override
+            public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+                return new DriverPropertyInfo[0];
+            }
+
+            @Override
+            public int getMajorVersion() {
+                return 1;
+            }
+
+            @Override
+            public int getMinorVersion() {
+                return 0;
+            }
+
+            @Override
+            public boolean jdbcCompliant() {
+                return false;
+            }
+
+            @Override
+            public Logger getParentLogger() {
+                return Logger.getGlobal();
+            }
+        });
+    }
+
+    private static Connection open(String url) {
+        FakeConnection fake = new FakeConnection(url);
+        opened.add(fake);
+        return (Connection) Proxy.newProxyInstance(ConnectionRouterTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "prepareStatement" -> statement(url);
+                    case "close" -> {
+                        fake.closed = true;
+                        yield null;
+                    }
+                    case "isClosed" -> fake.closed;
+                    case "toString" -> url;
+                    default -> null;
+                });
+    }
+
+    private static PreparedStatement statement(String url) {
+        return (PreparedStatement) Proxy.newProxyInstance(ConnectionRouterTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("executeQuery")) {
+                        return null;
+                    }
+                    long position = positions.get(url);
+                    boolean[] read = {false};
+                    return Proxy.newProxyInstance(ConnectionRouterTest.class.getClassLoader(),
+                            new Class<?>[]{ResultSet.class}, (resultSet, call, callArgs) -> switch (call.getName()) {
+                                case "next" -> {
+                                    boolean first = !read[0];
+                                    read[0] = true;
+                                    yield first;
+                                }
+                                case "getLong" -> position;
+                                default -> null;
+                            });
+                });
+    }
+
+    /**
+     * Read until the checks, which the first read starts, find a fresh replica.
+     */
+    private void awaitReplica() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Connection connection = router.read(0)) {
+                if (!connection.toString().equals(PRIMARY)) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("no replica became fresh");
+    }
+
+    @AfterEach
+    void closeRouter() {
+        if (router != null) {
+            router.close();
+        }
+        opened.clear();
+    }
+
+    @Test
+    void readsGoToTheFreshReplica() throws Exception {
+        positions.put(PRIMARY, 100L);
+        positions.put(REPLICA, 100L);
+        positions.put(STALE, 40L);
+        router = new ConnectionRouter(PRIMARY, List.of(REPLICA, STALE), "user", "password");
+        router.setLimits(10, 1000, 5000);
+        awaitReplica();
+        for (int i = 0; i < 20; i++) {
+            try (Connection connection = router.read(0)) {
+                assertEquals(REPLICA, connection.toString());
+            }
+        }
+    }
+
+    @Test
+    void readsThatMustSeeAWriteTheReplicaLacksGoToThePrimary() throws Exception {
+        positions.put(PRIMARY, 101L);
+        positions.put(REPLICA, 101L);
+        router = new ConnectionRouter(PRIMARY, List.of(REPLICA), "user", "password");
+        router.setLimits(10, 1000, 5000);
+        awaitReplica();
+        // this client's last write went to the primary after the replica's position
+        try (Connection connection = router.read(102)) {
+            assertEquals(PRIMARY, connection.toString());
+        }
+    }
+
+    @Test
+    void closeClosesTheCheckConnections() throws Exception {
+        positions.put(PRIMARY, 5L);
+        positions.put(REPLICA, 5L);
+        router = new ConnectionRouter(PRIMARY, List.of(REPLICA), "user", "password");
+        router.setLimits(10, 1000, 5000);
+        awaitReplica();
+        router.close();
+        assertTrue(opened.size() >= 2);
+        for (FakeConnection connection : opened) {
+            assertTrue(connection.closed, connection.url + " left open");
+        }
+    }
+}
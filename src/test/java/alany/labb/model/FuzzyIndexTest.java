@@ -0,0 +1,139 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FuzzyIndexTest {
+
+    private static Book book(int id, String title) {
+        return new Book(id, "isbn" + id, title, Date.valueOf(LocalDate.of(2000, 1, 1)), Genre.values()[0], 3);
+    }
+
+    private static FuzzyIndex index(Book... books) {
+        FuzzyIndex index = new FuzzyIndex();
+        for (Book book : books) {
+            index.addBook(book);
+        }
+        return index;
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int substitute = d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                d[i][j] = Math.min(substitute, Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    @Test
+    void wordsOfThreeLettersMustBeExact() {
+        Book cat = book(1, "cat");
+        FuzzyIndex index = index(cat);
+        assertEquals(List.of(cat), index.search("cat"));
+        assertEquals(List.of(), index.search("cot"));
+    }
+
+    @Test
+    void wordsOfFourAndFiveLettersAllowOneEdit() {
+        Book dune = book(1, "dune");
+        Book roots = book(2, "roots");
+        FuzzyIndex index = index(dune, roots);
+        assertEquals(List.of(dune), index.search("dume"));
+        assertEquals(List.of(dune), index.search("dunes"));
+        assertEquals(List.of(), index.search("duen")); // a swap is two edits
+        assertEquals(List.of(roots), index.search("rots"));
+        assertEquals(List.of(), index.search("rats"));
+    }
+
+    @Test
+    void wordsOfSixLettersOrMoreAllowTwoEdits() {
+        Book foundation = book(1, "foundation");
+        FuzzyIndex index = index(foundation);
+        assertEquals(List.of(foundation), index.search("foundatoin"));
+        assertEquals(List.of(foundation), index.search("fonudation")); // both edits in the indexed prefix
+        assertEquals(List.of(foundation), index.search("foundaton"));
+        assertEquals(List.of(), index.search("fonudatoin"));
+    }
+
+    @Test
+    void matchesAuthorsAccentsAndIgnoresShortWords() {
+        Book book = book(1, "Jane Eyre");
+        Book other = book(2, "Emma");
+        book.addAuthor(new Author(1, "charlotte", "brontë", LocalDate.of(1816, 4, 21)));
+        FuzzyIndex index = index(book, other);
+        index.addAuthor(book, book.getAuthors().get(0));
+        assertEquals(List.of(book), index.search("bronte"));
+        assertEquals(List.of(book), index.search("charlote eyre"));
+        assertEquals(List.of(book), index.search("of jane"));
+        assertEquals(List.of(other), index.search("emma"));
+    }
+
+    @Test
+    void closestBooksComeFirst() {
+        Book exact = book(1, "kingdom");
+        Book oneOff = book(2, "kingdoms");
+        Book twoOff = book(3, "kingdomsx");
+        FuzzyIndex index = index(twoOff, oneOff, exact);
+        assertEquals(List.of(exact, oneOff, twoOff), index.search("kingdom"));
+    }
+
+    @Test
+    void findsWhatAFullScanFinds() {
+        Random random = new Random(7);
+        List<Book> books = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        for (int id = 1; id <= 400; id++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(8);
+            for (int i = 0; i < length; i++) {
+                word.append((char) ('a' + random.nextInt(4)));
+            }
+            words.add(word.toString());
+            books.add(book(id, word.toString()));
+        }
+        FuzzyIndex index = index(books.toArray(new Book[0]));
+        for (int round = 0; round < 300; round++) {
+            // a word of the catalogue with a few random edits
+            StringBuilder query = new StringBuilder(words.get(random.nextInt(words.size())));
+            for (int edits = random.nextInt(4); edits > 0; edits--) {
+                int at = random.nextInt(query.length());
+                char letter = (char) ('a' + random.nextInt(4));
+                switch (random.nextInt(3)) {
+                    case 0 -> query.setCharAt(at, letter);
+                    case 1 -> query.insert(at, letter);
+                    default -> {
+                        if (query.length() > 1) {
+                            query.deleteCharAt(at);
+                        }
+                    }
+                }
+            }
+            String q = query.toString();
+            Set<Book> expected = new HashSet<>();
+            for (Book book : books) {
+                if (levenshtein(q, book.getTitle()) <= FuzzyIndex.maxDistance(q.length())) {
+                    expected.add(book);
+                }
+            }
+            assertEquals(expected, new HashSet<>(index.search(q)), q);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RatingStatsTest {
+
+    private static Book book(int catalogueRating, int... ratings) {
+        Book book = new Book(1, "isbn", "title", Date.valueOf(LocalDate.of(2000, 1, 1)), Genre.values()[0],
+                catalogueRating);
+        RatingStats stats = RatingStats.EMPTY;
+        for (int rating : ratings) {
+            stats = stats.rate(0, rating);
+        }
+        book.setRatingStats(stats);
+        return book;
+    }
+
+    @Test
+    void rateCountsNewRatingsAndReplacesEarlierOnes() {
+        RatingStats stats = RatingStats.EMPTY.rate(0, 4).rate(0, 2);
+        assertEquals(2, stats.getCount());
+        assertEquals(6, stats.getSum());
+        assertEquals(3.0, stats.getAverage());
+        assertEquals("0 1 0 1 0", stats.histogramString());
+
+        RatingStats rerated = stats.rate(4, 5);
+        assertEquals(2, rerated.getCount());
+        assertEquals(7, rerated.getSum());
+        assertEquals(0, rerated.getCount(4));
+        assertEquals(1, rerated.getCount(5));
+        assertEquals("0 1 0 0 1", rerated.histogramString());
+        // instances are immutable
+        assertEquals("0 1 0 1 0", stats.histogramString());
+    }
+
+    @Test
+    void plusAddsABatchOfChanges() {
+        RatingStats stats = RatingStats.EMPTY.rate(0, 3).plus(2, 9, new int[]{0, 0, -1, 1, 2});
+        assertEquals(3, stats.getCount());
+        assertEquals(12, stats.getSum());
+        assertEquals("0 0 0 1 2", stats.histogramString());
+    }
+
+    @Test
+    void parseReadsWhatHistogramStringWrites() {
+        RatingStats stats = RatingStats.EMPTY.rate(0, 1).rate(0, 5).rate(0, 5);
+        RatingStats parsed = RatingStats.parse(stats.getCount(), stats.getSum(), stats.histogramString());
+        assertEquals(stats.toString(), parsed.toString());
+    }
+
+    @Test
+    void bookRatingIsTheRoundedAverage() {
+        assertEquals(3, book(3).getRating()); // no user ratings: the catalogue rating
+        assertEquals(3.0, book(3).getAverageRating());
+        assertEquals(5, book(1, 4, 5).getRating()); // 4.5 rounds up
+        assertEquals(3, book(1, 2, 3).getRating()); // 2.5 rounds up
+        assertEquals(4, book(1, 4, 4, 5).getRating()); // 4.33
+        assertEquals(4, book(1, 3, 4, 5, 5).getRating()); // 4.25
+        assertEquals(2, book(5, 1, 2, 2).getRating()); // 1.67
+        assertEquals(433, book(1, 4, 4, 5).ratingKey());
+    }
+}
@@ -0,0 +1,87 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RelationIndexTest {
+
+    private static List<Integer> books(RelationIndex index, int authorId) {
+        List<Integer> books = new ArrayList<>();
+        for (int i = 0; i < index.bookCount(authorId); i++) {
+            books.add(index.bookAt(authorId, i));
+        }
+        return books;
+    }
+
+    private static List<Integer> authors(RelationIndex index, int bookId) {
+        List<Integer> authors = new ArrayList<>();
+        for (int i = 0; i < index.authorCount(bookId); i++) {
+            authors.add(index.authorAt(bookId, i));
+        }
+        return authors;
+    }
+
+    @Test
+    void pairsAndNeighboursMatchAddingToPlainCollections() {
+        Random random = new Random(1);
+        RelationIndex index = new RelationIndex();
+        Set<Long> pairs = new HashSet<>();
+        Map<Integer, List<Integer>> booksOf = new HashMap<>();
+        Map<Integer, List<Integer>> authorsOf = new HashMap<>();
+        int ids = 50;
+        for (int round = 0; round < 300; round++) {
+            // the first round is a bulk add into the empty index; ids grow so the arrays grow too
+            ids += random.nextInt(5);
+            int n = round == 0 ? 500 : random.nextInt(20);
+            int[] relations = new int[2 * n];
+            for (int i = 0; i < 2 * n; i++) {
+                relations[i] = random.nextInt(ids);
+            }
+            List<int[]> expectedAdded = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                int authorId = relations[2 * i];
+                int bookId = relations[2 * i + 1];
+                if (pairs.add(RelationIndex.pack(authorId, bookId))) {
+                    booksOf.computeIfAbsent(authorId, id -> new ArrayList<>()).add(bookId);
+                    authorsOf.computeIfAbsent(bookId, id -> new ArrayList<>()).add(authorId);
+                    expectedAdded.add(new int[]{authorId, bookId});
+                }
+            }
+            if (round == 0 || random.nextBoolean()) {
+                assertEquals(expectedAdded.size(), index.addAll(relations, n));
+                for (int i = 0; i < expectedAdded.size(); i++) {
+                    assertEquals(expectedAdded.get(i)[0], relations[2 * i]);
+                    assertEquals(expectedAdded.get(i)[1], relations[2 * i + 1]);
+                }
+            } else {
+                int added = 0;
+                for (int i = 0; i < n; i++) {
+                    if (index.add(relations[2 * i], relations[2 * i + 1])) {
+                        added++;
+                    }
+                }
+                assertEquals(expectedAdded.size(), added);
+            }
+
+            assertEquals(pairs.size(), index.size());
+            for (int id = 0; id < ids + 5; id++) {
+                assertEquals(booksOf.getOrDefault(id, List.of()), books(index, id), "books of author " + id);
+                assertEquals(authorsOf.getOrDefault(id, List.of()), authors(index, id), "authors of book " + id);
+            }
+            for (int i = 0; i < 200; i++) {
+                int authorId = random.nextInt(ids + 5);
+                int bookId = random.nextInt(ids + 5);
+                assertEquals(pairs.contains(RelationIndex.pack(authorId, bookId)), index.contains(authorId, bookId));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SortedIndexTest {
+
+    private static Book book(int id, int rating) {
+        return new Book(id, "isbn" + id, "title" + id, Date.valueOf(LocalDate.of(2000, 1, 1)), Genre.values()[0], rating);
+    }
+
+    private static List<Book> ascending(SortedIndex index) {
+        List<Book> result = new ArrayList<>();
+        index.forEachAscending(result::add);
+        return result;
+    }
+
+    private static void assertOrder(List<Book> expected, SortedIndex index) {
+        List<Book> sorted = new ArrayList<>(expected);
+        sorted.sort(Comparator.comparingInt(Book::getCatalogueRating).thenComparingInt(Book::getBookId));
+        assertEquals(sorted, ascending(index));
+    }
+
+    @Test
+    void addAllMergesLikeAddingOneByOne() {
+        Random random = new Random(1);
+        SortedIndex index = new SortedIndex(Book::getCatalogueRating);
+        List<Book> all = new ArrayList<>();
+        int id = 0;
+        for (int round = 0; round < 50; round++) {
+            List<Book> batch = new ArrayList<>();
+            int n = random.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                batch.add(book(++id, 1 + random.nextInt(5)));
+            }
+            if (random.nextBoolean()) {
+                index.addAll(batch);
+            } else {
+                batch.forEach(index::add);
+            }
+            all.addAll(batch);
+            assertOrder(all, index);
+        }
+        assertEquals(all.size(), index.size());
+    }
+
+    @Test
+    void addAllKeepsIdOrderWithinAKey() {
+        SortedIndex index = new SortedIndex(Book::getCatalogueRating);
+        List<Book> first = List.of(book(2, 3), book(5, 3), book(9, 1));
+        index.build(first);
+        // out of order, and with ids between the ones already there
+        List<Book> batch = List.of(book(7, 3), book(1, 3), book(3, 5), book(4, 1));
+        index.addAll(batch);
+        List<Book> all = new ArrayList<>(first);
+        all.addAll(batch);
+        assertOrder(all, index);
+        assertEquals(List.of(batch.get(1), first.get(0), first.get(1), batch.get(0)), index.range(3, 3));
+    }
+
+    @Test
+    void updateMovesABook() {
+        SortedIndex index = new SortedIndex(Book::getCatalogueRating);
+        List<Book> books = new ArrayList<>();
+        for (int id = 1; id <= 20; id++) {
+            books.add(book(id, 1 + id % 5));
+        }
+        index.addAll(books);
+        Book moved = books.get(7);
+        int oldKey = moved.getCatalogueRating();
+        moved.setRating(5);
+        index.update(moved, oldKey);
+        assertOrder(books, index);
+    }
+
+    @Test
+    void sortsLongKeysAndShuffledIdsLikeAComparator() {
+        Random random = new Random(2);
+        // keys beyond an int, such as the one for books without a date, take the ranked path
+        long[] choices = {Long.MIN_VALUE, -1L << 40, -3, 0, 7, 1L << 40};
+        Map<Book, Long> keyOf = new HashMap<>();
+        List<Book> books = new ArrayList<>();
+        for (int id = 1; id <= 300; id++) {
+            Book book = book(id, 1);
+            keyOf.put(book, choices[random.nextInt(choices.length)]);
+            books.add(book);
+        }
+        Collections.shuffle(books, random);
+        SortedIndex index = new SortedIndex(keyOf::get);
+        index.build(books.subList(0, 100));
+        index.addAll(books.subList(100, 300));
+
+        List<Book> expected = new ArrayList<>(books);
+        expected.sort(Comparator.comparingLong((Book book) -> keyOf.get(book)).thenComparingInt(Book::getBookId));
+        assertEquals(expected, ascending(index));
+    }
+}
@@ -0,0 +1,81 @@
+package alany.labb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UserRatingsTest {
+
+    @Test
+    void aggregateMatchesRatingOneByOne() {
+        Random random = new Random(3);
+        Map<UserRatings.Key, Integer> ratings = new HashMap<>();
+        Map<Integer, RatingStats> expected = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            UserRatings.Key key = new UserRatings.Key("user" + random.nextInt(50), random.nextInt(100));
+            int rating = 1 + random.nextInt(5);
+            Integer previous = ratings.put(key, rating);
+            expected.merge(key.bookId(), RatingStats.EMPTY.rate(0, rating),
+                    (stats, ignored) -> stats.rate(previous == null ? 0 : previous, rating));
+        }
+        Map<Integer, RatingStats> aggregated = UserRatings.aggregate(ratings);
+        assertEquals(expected.keySet(), aggregated.keySet());
+        for (Map.Entry<Integer, RatingStats> stats : expected.entrySet()) {
+            assertEquals(stats.getValue().toString(), aggregated.get(stats.getKey()).toString());
+        }
+    }
+
+    @Test
+    void reRatingBeforeAWriteKeepsOnePendingChange() {
+        UserRatings ratings = new UserRatings();
+        assertEquals(0, ratings.rate("ann", 1, 3, true));
+        assertEquals(3, ratings.rate("ann", 1, 5, true));
+        assertEquals(0, ratings.rate("bob", 1, 2, true));
+        // ann's change counts once, from no rating to her latest
+        assertArrayEquals(new long[]{2, 7, 0, 1, 0, 0, 1}, ratings.pendingDelta(1));
+        Map<UserRatings.Key, int[]> pending = ratings.takePending();
+        assertEquals(2, pending.size());
+        assertArrayEquals(new int[]{0, 5}, pending.get(new UserRatings.Key("ann", 1)));
+        assertArrayEquals(new long[7], ratings.pendingDelta(1));
+    }
+
+    @Test
+    void reRatingAStoredRatingReplacesIt() {
+        UserRatings ratings = new UserRatings();
+        ratings.restore(Map.of(new UserRatings.Key("ann", 1), 2));
+        assertEquals(2, ratings.rate("ann", 1, 4, true));
+        assertArrayEquals(new long[]{0, 2, 0, -1, 0, 1, 0}, ratings.pendingDelta(1));
+        assertEquals(4, ratings.rate("ann", 1, 2, true));
+        assertArrayEquals(new long[7], ratings.pendingDelta(1));
+    }
+
+    @Test
+    void restorePendingKeepsNewerRatings() {
+        UserRatings ratings = new UserRatings();
+        ratings.rate("ann", 1, 3, true);
+        Map<UserRatings.Key, int[]> failed = ratings.takePending();
+        ratings.rate("ann", 1, 4, true);
+        ratings.restorePending(failed);
+        assertArrayEquals(new int[]{0, 4}, ratings.takePending().get(new UserRatings.Key("ann", 1)));
+    }
+
+    @Test
+    void booksDbReplacesAUsersEarlierRating() throws BooksDbException {
+        BooksDb db = new BooksDb((ConnectionRouter) null);
+        db.createBook("Dune", "111", Genre.values()[0].name(), "1");
+        Book book = db.getBooks().get(0);
+        db.rateBook(book, "ann", 2);
+        db.rateBook(book, "bob", 4);
+        db.rateBook(book, "ann", 5);
+        assertEquals(2, book.getRatingStats().getCount());
+        assertEquals(9, book.getRatingStats().getSum());
+        assertEquals(0, book.getRatingStats().getCount(2));
+        assertEquals(5, book.getRating()); // 4.5 rounds up
+        assertEquals(1, book.getCatalogueRating());
+    }
+}